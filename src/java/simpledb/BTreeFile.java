@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import simpledb.Predicate.Op;
 
@@ -21,10 +22,17 @@ import simpledb.Predicate.Op;
 public class BTreeFile implements DbFile {
 
 	private final File f;
+	private final FileHandle handle;
+	private volatile boolean memoryMapped;
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
 
+	// times a reader descends without lock coupling before it falls back to it
+	private static final int LINKED_RETRIES = 3;
+	// bumped by every change that may move keys to a left sibling or free a page
+	private final AtomicLong mergeVersion = new AtomicLong();
+
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
 	 *
@@ -35,11 +43,25 @@ public class BTreeFile implements DbFile {
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
 		this.f = f;
+		this.handle = new FileHandle(f);
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
 	}
 
+	/**
+	 * Choose whether readPage takes page images from a memory mapping of
+	 * the file instead of reading them with a system call. Meant for
+	 * read-mostly indexes.
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
+	public boolean isMemoryMapped() {
+		return memoryMapped;
+	}
+
 	/**
 	 * Returns the File backing this BTreeFile on disk.
 	 */
@@ -78,14 +100,12 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-				if (retval == -1) {
+				int retval = readImage(pageBuf, 0);
+				if (retval == 0) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
 				if (retval < BTreeRootPtrPage.getPageSize()) {
@@ -93,18 +113,12 @@ public class BTreeFile implements DbFile {
 							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
-				return p;
+				return createPage(id, pageBuf);
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
+				int retval = readImage(pageBuf, pageOffset(id.getPageNumber()));
+				if (retval == 0) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
 				if (retval < BufferPool.getPageSize()) {
@@ -112,30 +126,52 @@ public class BTreeFile implements DbFile {
 							+ BufferPool.getPageSize() + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
-					return p;
-				}
-				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
-					return p;
-				}
-				else { // id.pgcateg() == BTreePageId.HEADER
-					BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
-					return p;
-				}
+				return createPage(id, pageBuf);
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
+		}
+	}
+
+	/**
+	 * Read a page image, from the mapping of the file in memory mapped mode.
+	 * The B+ tree pages parse arrays, so the image is copied out of the
+	 * mapping, which still saves the system call.
+	 */
+	private int readImage(byte[] buf, long position) throws IOException {
+		if (memoryMapped) {
+			java.nio.ByteBuffer image = handle.slice(position, buf.length);
+			if (image != null) {
+				image.get(buf);
+				return buf.length;
 			}
 		}
+		return handle.read(buf, position);
+	}
+
+	/**
+	 * Offset of a page in the file; the root pointer page comes first, the
+	 * other pages are numbered from 1
+	 */
+	private long pageOffset(int pageNo) {
+		return BTreeRootPtrPage.getPageSize() + (long)(pageNo-1) * BufferPool.getPageSize();
+	}
+
+	// see DbFile.java for javadocs
+	public Page createPage(PageId pid, byte[] data) throws IOException {
+		BTreePageId id = (BTreePageId) pid;
+		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
+			return new BTreeRootPtrPage(id, data);
+		}
+		else if(id.pgcateg() == BTreePageId.INTERNAL) {
+			return new BTreeInternalPage(id, data, keyField);
+		}
+		else if(id.pgcateg() == BTreePageId.LEAF) {
+			return new BTreeLeafPage(id, data, keyField);
+		}
+		else { // id.pgcateg() == BTreePageId.HEADER
+			return new BTreeHeaderPage(id, data);
+		}
 	}
 
 	/**
@@ -148,17 +184,18 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			handle.write(data, 0);
 		} else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			handle.write(data, pageOffset(page.getId().getPageNumber()));
 		}
 	}
 
+	// see DbFile.java for javadocs
+	public void close() throws IOException {
+		handle.close();
+	}
+
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
@@ -175,23 +212,30 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the
-	 * leaf node with permission perm.
+	 * Finds and locks the leaf page in the B+ tree corresponding to the left-most
+	 * page possibly containing the key field f, and locks it with permission perm.
+	 *
+	 * The internal nodes along the path are only latched: each is locked
+	 * READ_ONLY until its child is locked, and then unlocked again, unless the
+	 * transaction held a lock on it already. So a descent does not keep internal
+	 * pages locked until the end of the transaction, and a split or merge only
+	 * waits for the descents that are passing through the pages it changes, and
+	 * for the transactions that changed them. The locks a split or merge takes
+	 * are still held until commit, as an abort undoes it page by page.
 	 *
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 *
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param pid - the current page being searched
+	 * @param latched - the page pid was reached from, to unlock once pid is locked, or null
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 *
 	 */
-	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
-			Field f)
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid,
+			PageId latched, Permissions perm, Field f)
 					throws DbException, TransactionAbortedException {
 
 				if (pid.pgcateg() != BTreePageId.LEAF && pid.pgcateg() != BTreePageId.INTERNAL) {
@@ -199,37 +243,13 @@ public class BTreeFile implements DbFile {
 				}
 
 				while (pid.pgcateg() == BTreePageId.INTERNAL) {
+						boolean held = holdsLock(tid, dirtypages, pid);
 						BTreeInternalPage bp = (BTreeInternalPage)getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-						Iterator<BTreeEntry> it = bp.iterator();
-
-						BTreeEntry te = null;
-						while (it.hasNext()) {
-								BTreeEntry e = it.next();
-								if (f == null) {
-										te = e;
-										break;
-								}
-								if (f.compare(Predicate.Op.GREATER_THAN, e.getKey())) {
-										te = e;
-								} else if (f.compare(Predicate.Op.EQUALS, e.getKey())) {
-										te = e;
-										break;
-								} else {
-										if (!it.hasNext() || te == null) {
-												te = e;
-										}
-										break;
-								}
-						}
-
-						if (te == null) {
+						unlatch(tid, latched);
+						latched = held ? null : pid;
+						pid = bp.findChild(f);
+						if (pid == null) {
 								throw new DbException("Internal logical error or zero size iterator");
-						} else if (f == null) {
-								pid = te.getLeftChild();
-						} else if (f.compare(Predicate.Op.GREATER_THAN, te.getKey())) {
-							 	pid = te.getRightChild();
-						} else {
-								pid = te.getLeftChild();
 						}
 				}
 
@@ -238,25 +258,168 @@ public class BTreeFile implements DbFile {
 				}
 
 				BTreeLeafPage bp = (BTreeLeafPage)this.getPage(tid, dirtypages, pid, perm);
+				unlatch(tid, latched);
 				return bp;
 	}
 
 	/**
-	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+	 * Finds and locks the leaf page in the B+ tree corresponding to the left-most
+	 * page possibly containing the key field f, B-link style: each page is unlocked
+	 * before its child is locked, so a descent never waits for a page while holding
+	 * its parent, and never holds up a split of the parent.
+	 *
+	 * Splits only move keys to a new right sibling, so a descent that reaches a page
+	 * after it has split ends on a leaf left of the key. Readers get there through the
+	 * right sibling links, which the leaf iterators follow anyway. A writer must insert
+	 * into the right leaf. When every key on the leaf is less than f, it checks that the
+	 * leaf has not split since its parent was read: its right sibling must still be the
+	 * page that followed it in the parent, or, for the last child, a child of the page
+	 * that followed the parent. Otherwise it gives the leaf up.
+	 *
+	 * Steals from a right sibling, merges and root collapses move keys to the left or
+	 * free pages; they bump mergeVersion while holding the parent, and a descent that
+	 * finds it changed gives up the page it just locked.
 	 *
 	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param pid - the current page being searched
+	 * @param latched - the page pid was reached from, to unlock before pid is locked, or null
+	 * @param version - mergeVersion when the page holding pid was read
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return the leaf page, or null if the descent has to be tried again
+	 */
+	private BTreeLeafPage findLeafPageLinked(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			BTreePageId pid, PageId latched, long version, Permissions perm, Field f)
+					throws DbException, TransactionAbortedException {
+		// the page that followed pid in its parent, and the page that followed the parent,
+		// or null if there was none or it is not known
+		BTreePageId next = null;
+		BTreePageId nextParent = null;
+		while(true) {
+			if(pid.pgcateg() != BTreePageId.LEAF && pid.pgcateg() != BTreePageId.INTERNAL) {
+				throw new DbException("find wrong type page(should be leaf or internal)");
+			}
+			boolean leaf = pid.pgcateg() == BTreePageId.LEAF;
+			boolean held = holdsLock(tid, dirtypages, pid);
+			unlatch(tid, latched);
+			Page p = getPage(tid, dirtypages, pid, leaf ? perm : Permissions.READ_ONLY);
+			if(mergeVersion.get() != version
+					|| (leaf && perm == Permissions.READ_WRITE && f != null
+						&& !mayHold(tid, dirtypages, (BTreeLeafPage) p, f, next, nextParent, version))) {
+				if(!held) {
+					dirtypages.remove(pid);
+					unlatch(tid, pid);
+				}
+				return null;
+			}
+			if(leaf) {
+				return (BTreeLeafPage) p;
+			}
+			latched = held ? null : pid;
+			BTreeInternalPage bp = (BTreeInternalPage) p;
+			BTreePageId child = bp.findChild(f);
+			if(child == null) {
+				throw new DbException("Internal logical error or zero size iterator");
+			}
+			BTreePageId childNext = bp.findNextChild(f);
+			nextParent = childNext != null ? pid : next;
+			next = childNext;
+			pid = child;
+		}
+	}
+
+	/**
+	 * Whether key f belongs on a leaf reached by findLeafPageLinked. It does if some
+	 * key on the leaf is at least f, or if the leaf has not split since its parent was
+	 * read, when its right sibling is still the page next, or a child of nextParent.
+	 */
+	private boolean mayHold(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage leaf,
+			Field f, BTreePageId next, BTreePageId nextParent, long version)
+					throws DbException, TransactionAbortedException {
+		BTreePageId right = leaf.getRightSiblingId();
+		if(right == null || leaf.lowerBound(f) < leaf.getMaxTuples()) {
+			return true;
+		}
+		if(next != null) {
+			return right.equals(next);
+		}
+		if(nextParent == null) {
+			return false;
+		}
+		boolean held = holdsLock(tid, dirtypages, right);
+		BTreePageId parent = ((BTreeLeafPage) getPage(tid, dirtypages, right, Permissions.READ_ONLY)).getParentId();
+		if(!held) {
+			unlatch(tid, right);
+		}
+		return parent.equals(nextParent) && mergeVersion.get() == version;
+	}
+
+	/**
+	 * Find and lock the leaf page for the key field f starting at the root pointer
+	 * page. The descent is tried without lock coupling first, and falls back to it if
+	 * the tree keeps changing underneath it.
+	 * @see #findLeafPageLinked(TransactionId, HashMap, BTreePageId, PageId, long, Permissions, Field)
+	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, PageId, Permissions, Field)
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 *
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-			Field f)
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			Permissions perm, Field f)
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		for(int attempt = 0; ; attempt++) {
+			boolean held = holdsLock(tid, dirtypages, rootPtrId);
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY);
+			PageId latched = held ? null : rootPtrId;
+			if(attempt >= LINKED_RETRIES) {
+				return findLeafPage(tid, dirtypages, rootPtr.getRootId(), latched, perm, f);
+			}
+			BTreeLeafPage leaf = findLeafPageLinked(tid, dirtypages, rootPtr.getRootId(), latched,
+					mergeVersion.get(), perm, f);
+			if(leaf != null) {
+				return leaf;
+			}
+		}
+	}
+
+	/**
+	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
+	 * Used by the BTreeFile iterators.
+	 * @see #findLeafPage(TransactionId, HashMap, Permissions, Field)
+	 *
+	 * @param tid - the transaction id
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for
+	 * @return the left-most leaf page possibly containing the key field f
+	 *
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f)
+					throws DbException, TransactionAbortedException {
+		return findLeafPage(tid, new HashMap<PageId, Page>(), perm, f);
+	}
+
+	/**
+	 * Returns true if the transaction holds a lock on the page
+	 */
+	private boolean holdsLock(TransactionId tid, HashMap<PageId, Page> dirtypages, PageId pid) {
+		return dirtypages.containsKey(pid) || Database.getBufferPool().holdsLock(tid, pid);
+	}
+
+	/**
+	 * Unlock a page that was locked only to pass through it on the way down the tree
+	 * @param tid - the transaction id
+	 * @param pid - the page to unlock, or null
+	 */
+	private void unlatch(TransactionId tid, PageId pid) {
+		if(pid != null) {
+			Database.getBufferPool().releasePage(tid, pid);
+		}
 	}
 
 	/**
@@ -306,9 +469,11 @@ public class BTreeFile implements DbFile {
 						throw new DbException("end up with empty page");
 				}
 
+				Field sep = separator(page.reverseIterator().next().getField(this.keyField),
+						trueTuple.getField(this.keyField));
 				BTreeLeafPage choosen = page;
 
-				if (field.compare(Predicate.Op.GREATER_THAN, trueTuple.getField(this.keyField))) {
+				if (field.compare(Predicate.Op.GREATER_THAN, sep)) {
 						choosen = newLeaf;
 				}
 
@@ -324,14 +489,31 @@ public class BTreeFile implements DbFile {
 				newLeaf.setLeftSiblingId(page.getId());
 				page.setRightSiblingId(newLeaf.getId());
 
-				BTreeInternalPage parent = this.getParentWithEmptySlots(tid, dirtypages, page.getParentId(), trueTuple.getField(this.keyField));
+				BTreeInternalPage parent = this.getParentWithEmptySlots(tid, dirtypages, page.getParentId(), sep);
 
-				parent.insertEntry(new BTreeEntry(trueTuple.getField(this.keyField), page.getId(), newLeaf.getId()));
+				parent.insertEntry(new BTreeEntry(sep, page.getId(), newLeaf.getId()));
 			  updateParentPointers(tid, dirtypages, parent);
 
         return choosen;
 	}
 
+	/**
+	 * The key to copy up between two leaf pages whose keys are at most left and
+	 * at least right. For string keys this is the shortest prefix of right that
+	 * is still greater than left, which takes less room on a prefix-compressed
+	 * internal page.
+	 */
+	private static Field separator(Field left, Field right) {
+		if(!(right instanceof StringField) || !left.compare(Op.LESS_THAN, right)) {
+			return right;
+		}
+		String l = ((StringField) left).getValue();
+		String r = ((StringField) right).getValue();
+		int i = BTreeInternalPage.commonPrefix(l, r);
+		// r is greater than l, so it is longer than their common prefix
+		return new StringField(r.substring(0, i + 1), Type.STRING_LEN);
+	}
+
 	/**
 	 * Split an internal page to make room for new entries and recursively split its parent page
 	 * as needed to accommodate a new entry. The new entry for the parent should have a key matching
@@ -366,11 +548,12 @@ public class BTreeFile implements DbFile {
 		// will be useful here.  Return the page into which an entry with the given key field
 		// should be inserted.
 			BTreeInternalPage newInternal = (BTreeInternalPage)getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
-			int maxEntry = page.getMaxEntries();
+			// a prefix-compressed page may be full before its slots are
+			int numEntries = page.getNumEntries();
 			int i = 0;
 			Iterator<BTreeEntry> it = page.reverseIterator();
 
-			while (i < maxEntry / 2) {
+			while (i < numEntries / 2) {
 					BTreeEntry e = it.next();
 					page.deleteKeyAndRightChild(e);
 					newInternal.insertEntry(e);
@@ -404,7 +587,7 @@ public class BTreeFile implements DbFile {
 	 * @param parentId - the id of the parent. May be an internal page or the RootPtr page
 	 * @param field - the key of the entry which will be inserted. Needed in case the parent must be split
 	 * to accommodate the new entry
-	 * @return the parent page, guaranteed to have at least one empty slot
+	 * @return the parent page, guaranteed to have room for an entry with key field
 	 * @see #splitInternalPage(TransactionId, HashMap, BTreeInternalPage, Field)
 	 *
 	 * @throws DbException
@@ -437,8 +620,9 @@ public class BTreeFile implements DbFile {
 					Permissions.READ_WRITE);
 		}
 
-		// split the parent if needed
-		if(parent.getNumEmptySlots() == 0) {
+		// split the parent if needed; a prefix-compressed half may still have
+		// no room for a key that shares little of its prefix
+		while(!parent.hasRoomFor(field)) {
 			parent = splitInternalPage(tid, dirtypages, parent, field);
 		}
 
@@ -446,6 +630,33 @@ public class BTreeFile implements DbFile {
 
 	}
 
+	/**
+	 * Split a prefix-compressed internal page whose keys no longer fit on it after
+	 * a key was updated or moved onto it, and then the halves as needed.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the internal page, locked READ_WRITE
+	 * @see BTreeInternalPage#isOverfull()
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void splitIfOverfull(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeInternalPage page)
+			throws DbException, IOException, TransactionAbortedException {
+		if(page.isOverfull()) {
+			// the greatest key picks the right half, unless it is made of duplicates
+			// of the middle key, which compress to nothing
+			BTreeInternalPage right = splitInternalPage(tid, dirtypages, page,
+					page.reverseIterator().next().getKey());
+			splitIfOverfull(tid, dirtypages, page);
+			if(right != page) {
+				splitIfOverfull(tid, dirtypages, right);
+			}
+		}
+	}
+
 	/**
 	 * Helper function to update the parent pointer of a node.
 	 *
@@ -460,12 +671,17 @@ public class BTreeFile implements DbFile {
 	private void updateParentPointer(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, BTreePageId child)
 			throws DbException, IOException, TransactionAbortedException {
 
+		// a child that already points to the parent is only latched
+		boolean held = holdsLock(tid, dirtypages, child);
 		BTreePage p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_ONLY);
 
 		if(!p.getParentId().equals(pid)) {
 			p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_WRITE);
 			p.setParentId(pid);
 		}
+		else if(!held) {
+			unlatch(tid, child);
+		}
 
 	}
 
@@ -543,19 +759,22 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
-		// get a read lock on the root pointer page and use it to locate the root page
+		// make sure the root exists, and point the root pointer to it if it was just created
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean held = holdsLock(tid, dirtypages, rootPtrId);
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
-
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+		if(rootPtr.getRootId() == null) {
+			BTreePageId rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
 			rootPtr.setRootId(rootId);
 		}
+		else if(!held) {
+			unlatch(tid, rootPtrId);
+		}
 
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, t.getField(keyField));
 		if(leafPage.getNumEmptySlots() == 0) {
 			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
 		}
@@ -595,6 +814,8 @@ public class BTreeFile implements DbFile {
 		// the page and siblings
 		if(parentId.pgcateg() != BTreePageId.ROOT_PTR) {
 			parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+			// keys may move left now; see findLeafPageLinked
+			mergeVersion.incrementAndGet();
 			Iterator<BTreeEntry> ite = parent.iterator();
 			while(ite.hasNext()) {
 				BTreeEntry e = ite.next();
@@ -652,6 +873,7 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				stealFromLeafPage(page, leftSibling, parent, leftEntry, false);
+				splitIfOverfull(tid, dirtypages, parent);
 			}
 		}
 		else if(rightSiblingId != null) {
@@ -663,6 +885,7 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				stealFromLeafPage(page, rightSibling, parent, rightEntry, true);
+				splitIfOverfull(tid, dirtypages, parent);
 			}
 		}
 	}
@@ -699,7 +922,8 @@ public class BTreeFile implements DbFile {
 							page.insertTuple(t);
 					}
 
-					entry.setKey(sibling.iterator().next().getField(this.keyField));
+					entry.setKey(separator(page.reverseIterator().next().getField(this.keyField),
+							sibling.iterator().next().getField(this.keyField)));
 			} else {
 					Iterator<Tuple> it = sibling.reverseIterator();
 					for (int i=0; i<givenNum; i++) {
@@ -708,7 +932,8 @@ public class BTreeFile implements DbFile {
 							page.insertTuple(t);
 					}
 
-					entry.setKey(page.iterator().next().getField(this.keyField));
+					entry.setKey(separator(sibling.reverseIterator().next().getField(this.keyField),
+							page.iterator().next().getField(this.keyField)));
 			}
 			parent.updateEntry(entry);
 	}
@@ -740,27 +965,34 @@ public class BTreeFile implements DbFile {
 		if(leftEntry != null) leftSiblingId = leftEntry.getLeftChild();
 		if(rightEntry != null) rightSiblingId = rightEntry.getRightChild();
 
-		int maxEmptySlots = page.getMaxEntries() - page.getMaxEntries()/2; // ceiling
 		if(leftSiblingId != null) {
 			BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(leftSibling.canMergeWith(page, leftEntry.getKey())) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
-			else {
+			// a prefix-compressed page may be below half of its bytes with more
+			// entries than its sibling; then there is nothing to steal
+			else if(leftSibling.getNumEntries() > page.getNumEntries() + 1) {
 				stealFromLeftInternalPage(tid, dirtypages, page, leftSibling, parent, leftEntry);
+				splitIfOverfull(tid, dirtypages, parent);
+				splitIfOverfull(tid, dirtypages, page);
 			}
 		}
 		else if(rightSiblingId != null) {
 			BTreeInternalPage rightSibling = (BTreeInternalPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(rightSibling.canMergeWith(page, rightEntry.getKey())) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
-			else {
+			// a prefix-compressed page may be below half of its bytes with more
+			// entries than its sibling; then there is nothing to steal
+			else if(rightSibling.getNumEntries() > page.getNumEntries() + 1) {
 				stealFromRightInternalPage(tid, dirtypages, page, rightSibling, parent, rightEntry);
+				splitIfOverfull(tid, dirtypages, parent);
+				splitIfOverfull(tid, dirtypages, page);
 			}
 		}
 	}
@@ -975,7 +1207,6 @@ public class BTreeFile implements DbFile {
 		// the parent is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
-		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
 		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged
@@ -985,13 +1216,14 @@ public class BTreeFile implements DbFile {
 				throw new DbException("attempting to delete a non-root node");
 			}
 			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+			mergeVersion.incrementAndGet();
 			leftPage.setParentId(rootPtrId);
 			rootPtr.setRootId(leftPage.getId());
 
 			// release the parent page for reuse
 			setEmptyPage(tid, dirtypages, parent.getId().getPageNumber());
 		}
-		else if(parent.getNumEmptySlots() > maxEmptySlots) {
+		else if(parent.isLessThanHalfFull()) {
 			handleMinOccupancyPage(tid, dirtypages, parent);
 		}
 	}
@@ -1043,13 +1275,10 @@ public class BTreeFile implements DbFile {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				handle.write(emptyRootPtrData, 0);
+				handle.write(emptyLeafData, pageOffset(1));
 			}
 		}
 
@@ -1071,19 +1300,29 @@ public class BTreeFile implements DbFile {
 	 */
 	protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages)
 			throws DbException, IOException, TransactionAbortedException {
-		// get a read lock on the root pointer page and use it to locate the first header page
+		// get a read latch on the root pointer page and use it to locate the first header page
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean held = holdsLock(tid, dirtypages, rootPtrId);
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId headerId = rootPtr.getHeaderId();
+		PageId latched = held ? null : rootPtrId;
 		int emptyPageNo = 0;
 
 		if(headerId != null) {
+			// the full header pages are only latched on the way through the list
+			held = holdsLock(tid, dirtypages, headerId);
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+			unlatch(tid, latched);
+			latched = held ? null : headerId;
 			int headerPageCount = 0;
 			// try to find a header page with an empty slot
 			while(headerPage != null && headerPage.getEmptySlot() == -1) {
 				headerId = headerPage.getNextPageId();
 				if(headerId != null) {
+					held = holdsLock(tid, dirtypages, headerId);
 					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+					unlatch(tid, latched);
+					latched = held ? null : headerId;
 					headerPageCount++;
 				}
 				else {
@@ -1094,22 +1333,21 @@ public class BTreeFile implements DbFile {
 			// if headerPage is not null, it must have an empty slot
 			if(headerPage != null) {
 				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+				latched = null;
 				int emptySlot = headerPage.getEmptySlot();
 				headerPage.markSlotUsed(emptySlot, true);
 				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
 			}
 		}
+		unlatch(tid, latched);
 
 		// at this point if headerId is null, either there are no header pages
 		// or there are no free slots
 		if(headerId == null) {
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				handle.write(emptyData, f.length());
 				emptyPageNo = numPages();
 			}
 		}
@@ -1140,10 +1378,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		handle.write(BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
 
 		// make sure the page is not in the buffer pool	or in the local cache
 		Database.getBufferPool().discardPage(newPageId);
@@ -1291,10 +1526,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
 		it = curp.iterator();
 	}
 
@@ -1376,17 +1608,15 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
+			it = curp.iterator(curp.lowerBound(ipred.getField()));
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+			it = curp.iterator();
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -199,24 +199,69 @@ public class BTreeFileEncoder {
 	public static BTreeFile convert(File inFile, File hFile, File bFile, int npagebytes,
 			int numFields, Type[] typeAr, char fieldSeparator, int keyField) 
 					throws IOException, DbException, TransactionAbortedException {
+		return convert(inFile, hFile, bFile, npagebytes, numFields, typeAr, fieldSeparator,
+				keyField, 1.0, ExternalSort.DEFAULT_WORK_MEM);
+	}
+
+	/** 
+	 * Bulk load a B+ tree file from a text file. The tuples are sorted with an
+	 * external merge sort, so the table may be larger than memory, and the
+	 * sorted tuples are packed into leaf and internal pages bottom-up.
+	 * 
+	 * @param inFile - the file containing the raw data
+	 * @param hFile - the data file for the HeapFile to be used as an intermediate conversion step
+	 * @param bFile - the data file for the BTreeFile
+	 * @param npagebytes - number of bytes per page
+	 * @param numFields - number of fields per tuple
+	 * @param typeAr - array containing the types of the tuples
+	 * @param fieldSeparator - character separating fields in the raw data file
+	 * @param keyField - the field of the tuples the B+ tree will be keyed on
+	 * @param fillFactor - the fraction of the slots of each page to fill, in (0, 1];
+	 *   lower values leave room for inserts without splits
+	 * @param workMem - the bytes of memory the sort may use
+	 * @return the B+ tree file
+	 * @throws IOException
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	public static BTreeFile convert(File inFile, File hFile, File bFile, int npagebytes,
+			int numFields, Type[] typeAr, char fieldSeparator, int keyField,
+			double fillFactor, long workMem)
+					throws IOException, DbException, TransactionAbortedException {
+		if (!(fillFactor > 0 && fillFactor <= 1)) {
+			throw new IllegalArgumentException("fill factor must be in (0, 1]: " + fillFactor);
+		}
 		// convert the inFile to HeapFile first.
-		HeapFileEncoder.convert(inFile, hFile, BufferPool.getPageSize(), numFields);
-		HeapFile heapf = Utility.openHeapFile(numFields, hFile);
+		HeapFileEncoder.convert(inFile, hFile, BufferPool.getPageSize(), numFields, typeAr, fieldSeparator);
+		HeapFile heapf = new HeapFile(hFile, new TupleDesc(Arrays.copyOf(typeAr, numFields)));
+		Database.getCatalog().addTable(heapf, UUID.randomUUID().toString());
 
 		// read all the tuples from the heap file and sort them on the keyField
-		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
-		TransactionId tid = new TransactionId();
-		DbFileIterator it = Database.getCatalog().getDatabaseFile(heapf.getId()).iterator(tid);
-		it.open();
-		while (it.hasNext()) {
-			Tuple tup = it.next();
-			tuples.add(tup);
+		ExternalSort sort = new ExternalSort(heapf.getTupleDesc(), new TupleComparator(keyField), workMem);
+		try {
+			TransactionId tid = new TransactionId();
+			DbFileIterator it = heapf.iterator(tid);
+			it.open();
+			while (it.hasNext()) {
+				sort.add(it.next());
+			}
+			it.close();
+			Database.getBufferPool().transactionComplete(tid);
+			return build(sort.sorted(), bFile, npagebytes, numFields, typeAr, keyField, fillFactor);
+		} finally {
+			sort.close();
 		}
-		it.close();
-		Collections.sort(tuples, new TupleComparator(keyField));
+	}
 
+	/**
+	 * Write sorted tuples to a new B+ tree file, leaves first.
+	 */
+	private static BTreeFile build(Iterator<Tuple> tuples, File bFile, int npagebytes,
+			int numFields, Type[] typeAr, int keyField, double fillFactor)
+					throws IOException, DbException {
 		// add the tuples to B+ tree file
-		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
+		BTreeFile bf = new BTreeFile(bFile, keyField, new TupleDesc(Arrays.copyOf(typeAr, numFields)));
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
 		Type keyType = typeAr[keyField];
 		int tableid = bf.getId();
 
@@ -228,10 +273,12 @@ public class BTreeFileEncoder {
 		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
 		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
-		// pointerbytes: one extra child pointer, parent pointer, child page category
-		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
-		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
+		// for prefix-compressed pages, the number of entries with empty key suffixes
+		int nentries = BTreeInternalPage.getMaxEntries(keyType, npagebytes);
+
+		// only fill part of each page
+		nrecords = Math.max(1, (int) (nrecords * fillFactor));
+		nentries = Math.max(1, (int) (nentries * fillFactor));
 
 		ArrayList<ArrayList<BTreeEntry>> entries = new ArrayList<ArrayList<BTreeEntry>>();
 
@@ -247,7 +294,8 @@ public class BTreeFileEncoder {
 		ArrayList<Tuple> page1 = new ArrayList<Tuple>();
 		ArrayList<Tuple> page2 = new ArrayList<Tuple>();
 		BTreePageId leftSiblingId = null;
-		for(Tuple tup : tuples) {
+		while(tuples.hasNext()) {
+			Tuple tup = tuples.next();
 			if(page1.size() < nrecords) {
 				page1.add(tup);
 			}
@@ -346,12 +394,14 @@ public class BTreeFileEncoder {
 	 */
 	private static void setRightSiblingPtrs(BTreeFile bf, BTreePageId pid, BTreePageId rightSiblingId) 
 			throws IOException, DbException {
-		BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
-		page.setRightSiblingId(rightSiblingId);
-		BTreePageId leftSiblingId = page.getLeftSiblingId();
-		bf.writePage(page);
-		if(leftSiblingId != null) {
-			setRightSiblingPtrs(bf, leftSiblingId, page.getId());
+		// a loop rather than recursion, as there may be millions of leaves
+		while(pid != null) {
+			BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
+			page.setRightSiblingId(rightSiblingId);
+			BTreePageId leftSiblingId = page.getLeftSiblingId();
+			bf.writePage(page);
+			rightSiblingId = pid;
+			pid = leftSiblingId;
 		}
 	}
 
@@ -413,18 +463,24 @@ public class BTreeFileEncoder {
 		for(int i = 0; i < entries.size(); i++) {
 			int childPageCategory = (i == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
 			int size = entries.get(i).size();
-			if(size <= nentries) {
+			int first = entriesPerPage(entries.get(i), 0, nentries, keyType);
+			if(size <= first) {
 				// write out a page of entries
 				byte[] internalPageBytes = convertToInternalPage(entries.get(i), npagebytes, keyType, childPageCategory);
 				BTreePageId internalPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
 				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyField));
 			}
 			else {
-				// split the remaining entries in half
+				// split the remaining entries in half, unless long keys of
+				// prefix-compressed pages do not fit into one of the halves
+				int split = size/2;
+				if(first < split || entriesPerPage(entries.get(i), split + 1, nentries, keyType) < size - split - 1) {
+					split = first;
+				}
 				ArrayList<BTreeEntry> secondToLastPg = new ArrayList<BTreeEntry>();
 				ArrayList<BTreeEntry> lastPg = new ArrayList<BTreeEntry>();
-				secondToLastPg.addAll(entries.get(i).subList(0, size/2));
-				lastPg.addAll(entries.get(i).subList(size/2 + 1, size));
+				secondToLastPg.addAll(entries.get(i).subList(0, split));
+				lastPg.addAll(entries.get(i).subList(split + 1, size));
 
 				// write out the last two pages of entries
 				byte[] secondToLastPageBytes = convertToInternalPage(secondToLastPg, npagebytes, keyType, childPageCategory);
@@ -436,7 +492,7 @@ public class BTreeFileEncoder {
 				bf.writePage(new BTreeInternalPage(lastPid, lastPageBytes, keyField));
 
 				// update the parent by "pushing up" the next key
-				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(i).get(size/2).getKey(), secondToLastPid, lastPid);
+				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(i).get(split).getKey(), secondToLastPid, lastPid);
 				updateEntries(entries, bf, pushUpEntry, i+1, nentries, npagebytes, 
 						keyType, tableid, keyField);
 			}
@@ -471,20 +527,22 @@ public class BTreeFileEncoder {
 		if(size > 0) {
 			BTreeEntry prev = entries.get(level).get(size-1);
 			entries.get(level).set(size-1, new BTreeEntry(prev.getKey(), prev.getLeftChild(), e.getLeftChild()));
-			if(size == nentries * 2 + 1) {
+			// wait until the entries after the first page fill another one
+			int first = entriesPerPage(entries.get(level), 0, nentries, keyType);
+			if(size - first - 1 >= entriesPerPage(entries.get(level), first + 1, nentries, keyType)) {
 				// write out a page of entries
 				ArrayList<BTreeEntry> pageEntries = new ArrayList<BTreeEntry>();
-				pageEntries.addAll(entries.get(level).subList(0, nentries));
+				pageEntries.addAll(entries.get(level).subList(0, first));
 				byte[] internalPageBytes = convertToInternalPage(pageEntries, npagebytes, keyType, childPageCategory);
 				BTreePageId internalPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
 				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyField));
 
 				// update the parent by "pushing up" the next key
-				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(level).get(nentries).getKey(), internalPid, null);
+				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(level).get(first).getKey(), internalPid, null);
 				updateEntries(entries, bf, pushUpEntry, level + 1, nentries, npagebytes, 
 						keyType, tableid, keyField);
 				ArrayList<BTreeEntry> remainingEntries = new ArrayList<BTreeEntry>();
-				remainingEntries.addAll(entries.get(level).subList(nentries+1, size));
+				remainingEntries.addAll(entries.get(level).subList(first+1, size));
 				entries.get(level).clear();
 				entries.get(level).addAll(remainingEntries);
 			}
@@ -492,6 +550,37 @@ public class BTreeFileEncoder {
 		entries.get(level).add(e);
 	}
 
+	/**
+	 * The number of entries from entries[from] on that fill an internal page of
+	 * nentries slots, or more than are left if they do not fill one.
+	 * A prefix-compressed page takes as many entries as fit into the bytes of
+	 * nentries entries with empty key suffixes.
+	 */
+	private static int entriesPerPage(List<BTreeEntry> entries, int from, int nentries, Type keyType) {
+		if(!BTreeInternalPage.isPrefixCompressed(keyType)) {
+			return nentries;
+		}
+		int budget = nentries * BTreeInternalPage.COMPRESSED_ENTRY_SIZE;
+		String first = null;
+		int prefix = 0;
+		int chars = 0;
+		for(int i = from; i < entries.size(); i++) {
+			String key = ((StringField) entries.get(i).getKey()).getValue();
+			if(first == null) {
+				first = key;
+				prefix = key.length();
+			}
+			// the entries are sorted, so the prefix is shared with the first key
+			prefix = Math.min(prefix, BTreeInternalPage.commonPrefix(first, key));
+			chars += key.length();
+			int n = i - from + 1;
+			if(n > nentries || prefix + n * (BTreeInternalPage.COMPRESSED_ENTRY_SIZE - prefix) + chars > budget) {
+				return Math.max(1, n - 1);
+			}
+		}
+		return Math.max(0, entries.size() - from) + 1;
+	}
+
 	/**
 	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage
 	 * 
@@ -624,6 +713,11 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
+		if(BTreeInternalPage.isPrefixCompressed(keyType)) {
+			Collections.sort(entries, new EntryComparator());
+			return BTreeInternalPage.compressedPageData(entries, keyType, childPageCategory, npagebytes);
+		}
+
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
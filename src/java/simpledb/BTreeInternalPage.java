@@ -8,6 +8,11 @@ import simpledb.Predicate.Op;
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Pages of a tree keyed on a string field are prefix-compressed: the prefix
+ * shared by all keys of the page is stored once, and each key only by its
+ * variable-length suffix, found through a 2-byte slot offset. So such a page
+ * is full when its bytes run out rather than its slots.
  *
  * @see BTreeFile
  * @see BufferPool
@@ -21,6 +26,13 @@ public class BTreeInternalPage extends BTreePage {
 
 	private int childCategory; // either leaf or internal
 
+	// per entry of a prefix-compressed page: a child pointer, the offset of
+	// the key suffix and the suffix length, followed by the suffix itself
+	static final int COMPRESSED_ENTRY_SIZE = INDEX_SIZE + 2 + 1;
+
+	// the used slots in ascending order, rebuilt after the header changes
+	private volatile int[] usedSlots = null;
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -36,7 +48,9 @@ public class BTreeInternalPage extends BTreePage {
 			assert(prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
 		}
 
-		if (checkOccupancy && depth > 0) {
+		// prefix-compressed pages may stay below half full when no sibling
+		// of theirs can give or take keys of the right length
+		if (checkOccupancy && depth > 0 && !isPrefixCompressed()) {
 			assert (getNumEntries() >= getMaxEntries() / 2);
 		}
 	}
@@ -57,6 +71,11 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * A prefix-compressed page instead has, after the header, the length and
+	 * bytes of the common key prefix, the child pointers and the slot offsets
+	 * of the used slots, and then one length byte and the suffix bytes for each
+	 * key; its entry size counts a suffix of length 0.
+	 * <p>
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -86,6 +105,15 @@ public class BTreeInternalPage extends BTreePage {
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
 
+		if(isPrefixCompressed()) {
+			keys = new Field[numSlots];
+			children = new int[numSlots];
+			readCompressed(dis, data);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
+
 		keys = new Field[numSlots];
 		try{
 			// allocate and read the keys of this page
@@ -115,15 +143,41 @@ public class BTreeInternalPage extends BTreePage {
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {
-		int keySize = td.getFieldType(keyField).getLen();
+		return getMaxEntries(td.getFieldType(keyField), BufferPool.getPageSize());
+	}
+
+	/**
+	 * The maximum number of entries of a page of pageSize bytes with keys of the given type
+	 */
+	static int getMaxEntries(Type keyType, int pageSize) {
+		int keySize = keyType.getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category,
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
 		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1;
-		int entriesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
+		if(isPrefixCompressed(keyType)) {
+			// as many entries as fit with empty suffixes; plus 1 byte for the prefix length
+			bitsPerEntryIncludingHeader = COMPRESSED_ENTRY_SIZE * 8 + 1;
+			extraBits += 8;
+		}
+		int entriesPerPage = (pageSize*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
 		return entriesPerPage;
 	}
 
+	/**
+	 * Whether pages with keys of the given type are prefix-compressed
+	 */
+	static boolean isPrefixCompressed(Type keyType) {
+		return keyType == Type.STRING_TYPE;
+	}
+
+	/**
+	 * Whether this page is prefix-compressed
+	 */
+	public boolean isPrefixCompressed() {
+		return isPrefixCompressed(td.getFieldType(keyField));
+	}
+
 	/**
 	 * Computes the number of bytes in the header of a B+ internal page with each entry occupying entrySize bytes
 	 * @return the number of bytes in the header
@@ -220,6 +274,24 @@ public class BTreeInternalPage extends BTreePage {
 		return child;
 	}
 
+	/**
+	 * Read the key prefix, the child pointers and the keys of a prefix-compressed
+	 * page, whose header has been read already.
+	 */
+	private void readCompressed(DataInputStream dis, byte[] data) throws IOException {
+		byte[] prefix = new byte[dis.readUnsignedByte()];
+		dis.readFully(prefix);
+		int[] slots = usedSlots();
+		for (int slot : slots)
+			children[slot] = dis.readInt();
+		for (int i=1; i<slots.length; i++) {
+			int offset = dis.readUnsignedShort();
+			byte[] bs = Arrays.copyOf(prefix, prefix.length + (data[offset] & 0xFF));
+			System.arraycopy(data, offset + 1, bs, prefix.length, bs.length - prefix.length);
+			keys[slots[i]] = new StringField(new String(bs), Type.STRING_LEN);
+		}
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -232,6 +304,11 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return A byte array correspond to the bytes of this page.
 	 */
 	public byte[] getPageData() {
+		if(isPrefixCompressed()) {
+			return compressedPageData(parent, childCategory, header, keys, children, usedSlots(),
+					BufferPool.getPageSize());
+		}
+
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -333,6 +410,172 @@ public class BTreeInternalPage extends BTreePage {
 		return baos.toByteArray();
 	}
 
+	/**
+	 * Serialize the used slots of a prefix-compressed page.
+	 * @param slots - the used slots in ascending order, slot 0 first
+	 */
+	private static byte[] compressedPageData(int parent, int childCategory, byte[] header,
+			Field[] keys, int[] children, int[] slots, int pageSize) {
+		String prefix = "";
+		if (slots.length > 1)
+			prefix = keyValue(keys[slots[1]]).substring(0,
+					commonPrefix(keyValue(keys[slots[1]]), keyValue(keys[slots[slots.length - 1]])));
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(pageSize);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(parent);
+			dos.writeByte((byte) childCategory);
+			dos.write(header);
+			dos.writeByte(prefix.length());
+			dos.writeBytes(prefix);
+			for (int slot : slots)
+				dos.writeInt(children[slot]);
+
+			// the suffixes follow the slot offsets, in the same order
+			int offset = dos.size() + 2 * (slots.length - 1);
+			for (int i=1; i<slots.length; i++) {
+				dos.writeShort(offset);
+				offset += 1 + keyValue(keys[slots[i]]).length() - prefix.length();
+			}
+			for (int i=1; i<slots.length; i++) {
+				String suffix = keyValue(keys[slots[i]]).substring(prefix.length());
+				dos.writeByte(suffix.length());
+				dos.writeBytes(suffix);
+			}
+			if (dos.size() > pageSize)
+				throw new IllegalStateException("keys of prefix-compressed page do not fit");
+
+			// padding
+			dos.write(new byte[pageSize - dos.size()]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Serialize entries, sorted by key, as a new prefix-compressed page.
+	 * Used by BTreeFileEncoder.
+	 */
+	static byte[] compressedPageData(List<BTreeEntry> entries, Type keyType,
+			int childCategory, int pageSize) {
+		int n = entries.size();
+		byte[] header = new byte[(getMaxEntries(keyType, pageSize) + 1 + 7) / 8];
+		Field[] keys = new Field[n + 1];
+		int[] children = new int[n + 1];
+		int[] slots = new int[n + 1];
+		children[0] = entries.get(0).getLeftChild().getPageNumber();
+		for (int i=0; i<=n; i++) {
+			slots[i] = i;
+			header[i / 8] |= 1 << (i % 8);
+			if (i > 0) {
+				keys[i] = entries.get(i - 1).getKey();
+				children[i] = entries.get(i - 1).getRightChild().getPageNumber();
+			}
+		}
+		return compressedPageData(0, childCategory, header, keys, children, slots, pageSize);
+	}
+
+	/**
+	 * The length of the longest common prefix of two keys
+	 */
+	static int commonPrefix(String a, String b) {
+		int i = 0;
+		while (i < a.length() && i < b.length() && a.charAt(i) == b.charAt(i))
+			i++;
+		return i;
+	}
+
+	private static String keyValue(Field f) {
+		return ((StringField) f).getValue();
+	}
+
+	/**
+	 * The bytes a prefix-compressed page takes with the given keys
+	 */
+	private int compressedSize(List<Field> keys) {
+		String lo = null;
+		String hi = null;
+		int chars = 0;
+		for (Field f : keys) {
+			String s = keyValue(f);
+			chars += s.length();
+			if (lo == null || s.compareTo(lo) < 0)
+				lo = s;
+			if (hi == null || s.compareTo(hi) > 0)
+				hi = s;
+		}
+		int prefix = (lo == null ? 0 : commonPrefix(lo, hi));
+		return 2 * INDEX_SIZE + 1 + header.length + 1 + prefix +
+				keys.size() * (COMPRESSED_ENTRY_SIZE - prefix) + chars;
+	}
+
+	/**
+	 * The keys of this page in order
+	 */
+	private List<Field> keyList() {
+		int[] slots = usedSlots();
+		List<Field> list = new ArrayList<Field>();
+		for (int i=1; i<slots.length; i++)
+			list.add(keys[slots[i]]);
+		return list;
+	}
+
+	/**
+	 * Whether an entry with the given key can be inserted into this page. For a
+	 * prefix-compressed page this depends on how much of the prefix the key shares.
+	 */
+	public boolean hasRoomFor(Field key) {
+		if (getNumEmptySlots() == 0)
+			return false;
+		if (!isPrefixCompressed())
+			return true;
+		List<Field> list = keyList();
+		list.add(key);
+		return compressedSize(list) <= BufferPool.getPageSize();
+	}
+
+	/**
+	 * Whether the keys of this page no longer fit on it, as after an update to a
+	 * key that shares less of the prefix of a prefix-compressed page. Such a page
+	 * must be split before it is written. Other pages are never overfull.
+	 */
+	public boolean isOverfull() {
+		return isPrefixCompressed() && compressedSize(keyList()) > BufferPool.getPageSize();
+	}
+
+	/**
+	 * Whether this page is below minimum occupancy: less than half of its slots,
+	 * or of its bytes if prefix-compressed, are used. A prefix-compressed page
+	 * of a few long keys also is with less than two entries, so that it is
+	 * refilled before it runs empty.
+	 */
+	public boolean isLessThanHalfFull() {
+		if (!isPrefixCompressed()) {
+			int maxEmptySlots = getMaxEntries() - getMaxEntries()/2; // ceiling
+			return getNumEmptySlots() > maxEmptySlots;
+		}
+		return getNumEntries() < 2 || compressedSize(keyList()) * 2 < BufferPool.getPageSize();
+	}
+
+	/**
+	 * Whether this page and its sibling, which is less than half full, can be merged
+	 * into one page together with the key between them in their parent. A page of
+	 * fixed-size keys can be if it is at minimum occupancy itself.
+	 */
+	public boolean canMergeWith(BTreeInternalPage sibling, Field parentKey) {
+		if (!isPrefixCompressed()) {
+			int maxEmptySlots = getMaxEntries() - getMaxEntries()/2; // ceiling
+			return getNumEmptySlots() >= maxEmptySlots;
+		}
+		List<Field> list = keyList();
+		list.addAll(sibling.keyList());
+		list.add(parentKey);
+		return list.size() <= getMaxEntries() && compressedSize(list) <= BufferPool.getPageSize();
+	}
+
 	/**
 	 * Delete the specified entry (key + 1 child pointer) from the page. The recordId
 	 * is used to find the specified entry, so it must not be null. After deletion, the
@@ -595,12 +838,90 @@ public class BTreeInternalPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeInternalPage.setSlot: setting slot %d to %b", i, value);
+		usedSlots = null;
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * The used slots of this page in ascending order. Slot 0 holds only the
+	 * left-most child, so on a non-empty page entry k of the page is at slot
+	 * usedSlots()[k] and its left child at slot usedSlots()[k-1].
+	 */
+	private int[] usedSlots() {
+		int[] slots = usedSlots;
+		if(slots == null) {
+			int cnt = 0;
+			for(int i=0; i<numSlots; i++)
+				if(isSlotUsed(i))
+					cnt++;
+			slots = new int[cnt];
+			cnt = 0;
+			for(int i=0; i<numSlots; i++)
+				if(isSlotUsed(i))
+					slots[cnt++] = i;
+			usedSlots = slots;
+		}
+		return slots;
+	}
+
+	/**
+	 * Find the child page that may contain the key f, by binary search over the
+	 * keys of this page. This is the left child of the first entry whose key is
+	 * greater than or equal to f, or the right-most child if every key is less
+	 * than f. No entries are allocated.
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the id of the child page, or null if the page is empty
+	 */
+	public BTreePageId findChild(Field f) {
+		int[] slots = usedSlots();
+		if(slots.length == 0) {
+			return null;
+		}
+		return new BTreePageId(pid.getTableId(), children[slots[childIndex(slots, f)]], childCategory);
+	}
+
+	/**
+	 * Find the child page right of the one findChild returns, i.e. the page that
+	 * follows it at its level as long as this page is not changed.
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the id of that child page, or null if findChild returns the right-most
+	 *         child or the page is empty
+	 */
+	public BTreePageId findNextChild(Field f) {
+		int[] slots = usedSlots();
+		if(slots.length == 0) {
+			return null;
+		}
+		int i = childIndex(slots, f) + 1;
+		if(i == slots.length) {
+			return null;
+		}
+		return new BTreePageId(pid.getTableId(), children[slots[i]], childCategory);
+	}
+
+	/**
+	 * @return the index into slots of the entry whose child findChild returns
+	 */
+	private int childIndex(int[] slots, Field f) {
+		// slots[lo..hi] are the entries not yet known to be less than f
+		int lo = 1;
+		int hi = slots.length - 1;
+		if(f == null) {
+			hi = 0;
+		}
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if(compareKeys(keys[slots[mid]], f) < 0)
+				lo = mid + 1;
+			else
+				hi = mid - 1;
+		}
+		return lo - 1;
+	}
+
 	/**
 	 * @return an iterator over all entries on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return entries in empty slots!)
@@ -761,8 +1082,14 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key != null) {
+					// the left child is in the previous used slot, which need
+					// not be the one right before after deletes
+					int left = entry - 1;
+					while(left > 0 && !p.isSlotUsed(left))
+						left--;
+					curEntry = left;
+					BTreePageId childId = p.getChildId(left);
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
@@ -19,6 +19,9 @@ public class BTreeLeafPage extends BTreePage {
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
+	// the used slots in ascending order, rebuilt after the header changes
+	private volatile int[] usedSlots = null;
+
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
@@ -469,12 +472,62 @@ public class BTreeLeafPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeLeafPage.setSlot: setting slot %d to %b", i, value);
+		usedSlots = null;
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * The used slots of this page in ascending order, and so in key order
+	 */
+	private int[] usedSlots() {
+		int[] slots = usedSlots;
+		if(slots == null) {
+			int cnt = 0;
+			for(int i=0; i<numSlots; i++)
+				if(isSlotUsed(i))
+					cnt++;
+			slots = new int[cnt];
+			cnt = 0;
+			for(int i=0; i<numSlots; i++)
+				if(isSlotUsed(i))
+					slots[cnt++] = i;
+			usedSlots = slots;
+		}
+		return slots;
+	}
+
+	/**
+	 * Find the first tuple on this page whose key is greater than or equal to f,
+	 * by binary search over the used slots.
+	 * @param f - the key to search for
+	 * @return the slot of that tuple, or getMaxTuples() if every key on the page
+	 *         is less than f
+	 */
+	public int lowerBound(Field f) {
+		int[] slots = usedSlots();
+		int lo = 0;
+		int hi = slots.length - 1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if(compareKeys(tuples[slots[mid]].getField(keyField), f) < 0)
+				lo = mid + 1;
+			else
+				hi = mid - 1;
+		}
+		return lo < slots.length ? slots[lo] : numSlots;
+	}
+
+	/**
+	 * @return an iterator over the tuples on this page starting at the given slot
+	 * @see #lowerBound
+	 */
+	public Iterator<Tuple> iterator(int fromSlot) {
+		return new BTreeLeafPageIterator(this, fromSlot);
+	}
+
 	/**
 	 * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -529,6 +582,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int curTuple) {
+		this.p = p;
+		this.curTuple = curTuple;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
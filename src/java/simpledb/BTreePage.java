@@ -109,6 +109,26 @@ public abstract class BTreePage implements Page {
 		}
 	}
 
+	/**
+	 * Compare two keys. Integer and string keys are compared directly rather
+	 * than through Field.compare, as this is called for every step of a
+	 * binary search.
+	 * @return a negative number, zero or a positive number as a is less than,
+	 *         equal to or greater than b
+	 */
+	protected static int compareKeys(Field a, Field b) {
+		if(a instanceof IntField && b instanceof IntField) {
+			return Integer.compare(((IntField) a).getValue(), ((IntField) b).getValue());
+		}
+		if(a instanceof StringField && b instanceof StringField) {
+			return ((StringField) a).getValue().compareTo(((StringField) b).getValue());
+		}
+		if(a.compare(Predicate.Op.LESS_THAN, b)) {
+			return -1;
+		}
+		return a.compare(Predicate.Op.EQUALS, b) ? 0 : 1;
+	}
+
 	/**
 	 * Marks this page as dirty/not dirty and record that transaction
 	 * that did the dirtying
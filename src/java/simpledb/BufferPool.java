@@ -3,6 +3,15 @@ package simpledb;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -31,165 +40,184 @@ public class BufferPool {
 
     public LockManager manager;
 
-    /** Page storage */
-    private class PageBuffer {
-        private Page p;
-        private PageBuffer next;
-        private PageBuffer prev;
-        private boolean isSen;
-
-        public PageBuffer(Page p, PageBuffer next, PageBuffer prev, boolean isSen) {
-            this.p = p;
-            this.next = next;
-            this.prev = prev;
-            this.isSen = isSen;
-        }
-
-        public PageBuffer(Page p, PageBuffer next, PageBuffer prev) {
-            this.p = p;
-            this.next = next;
-            this.prev = prev;
-            this.isSen = false;
-        }
-
-        public boolean isSential() {
-            return this.isSen;
-        }
-
-        public PageBuffer(Page p) {
-            this(p, null, null);
-        }
-
-        public PageBuffer(PageBuffer next, PageBuffer prev) {
-            this(null, next, prev);
-        }
-
-        public PageBuffer() {
-            this(null, null, null);
-        }
-
-        public Page getPage() {
-            return this.p;
-        }
-
-        public void setPage(Page p) {
-            this.p = p;
-        }
-
-        public PageBuffer getNext() {
-            return this.next;
-        }
-
-        public void setNext(PageBuffer n) {
-            this.next = n;
+    /**
+     * One stripe of the page table. The map may be read without holding the
+     * partition's monitor (that is the buffer hit path); it is only changed,
+     * and the replacement policy is only told about changes, while holding
+     * it.
+     */
+    private class Partition {
+        final ConcurrentHashMap<PageId, Page> pages;
+        final ReplacementPolicy policy;
+        /** Pages read ahead by prefetchPages that nobody requested yet */
+        final Set<PageId> prefetched;
+
+        Partition(ReplacementPolicy policy) {
+            this.pages = new ConcurrentHashMap<>();
+            this.policy = policy;
+            this.prefetched = ConcurrentHashMap.newKeySet();
         }
 
-        public void setPrev(PageBuffer p) {
-            this.prev = p;
+        /** Clean pages can leave the pool without any I/O */
+        boolean isClean(PageId pid) {
+            Page p = pages.get(pid);
+            return p != null && p.isDirty() == null;
         }
 
-        public PageBuffer getPrev() {
-            return this.prev;
+        boolean isCached(PageId pid) {
+            return pages.containsKey(pid);
         }
     }
 
-    private class BufferChain {
-        private PageBuffer head;
-        private HashMap<PageId, PageBuffer> pageMap;
+    /** Upper bound on the number of partitions the page table is split into */
+    private static final int DEFAULT_PARTITIONS = 16;
 
-        public BufferChain() {
-            head = new PageBuffer(null, null, null, true);
-            head.setNext(head);
-            head.setPrev(head);
-            pageMap = new HashMap<>();
-        }
+    /**
+     * Partitions smaller than this leave the replacement policies too little
+     * history to tell hot pages from cold ones
+     */
+    private static final int MIN_PARTITION_PAGES = 8;
 
-        public void insertFirst(PageBuffer pb) {
-            this.head.getNext().setPrev(pb);
-            pb.setNext(this.head.getNext());
-            pb.setPrev(this.head);
-            this.head.setNext(pb);
+    /** Threads reading pages for prefetchPages */
+    private static final int PREFETCH_THREADS = 2;
 
-            pageMap.put(pb.p.getId(), pb);
-        }
+    /**
+     * The page table is striped into partitions, each one guarded by its
+     * own monitor and keeping its own replacement state, so that buffer hits
+     * on different pages do not serialize on the BufferPool itself.
+     */
+    private final Partition[] partitions;
 
-        public void insertWithoutSetIntoMap(PageBuffer pb) {
-            this.head.getNext().setPrev(pb);
-            pb.setNext(this.head.getNext());
-            pb.setPrev(this.head);
-            this.head.setNext(pb);
-        }
+    /** Frames not holding any page; shared by all partitions */
+    private final AtomicInteger freeFrames;
 
-        public void delete(PageBuffer pb) throws DbException {
-            if (this.head.getPrev() == this.head) {
-                throw new DbException("delete page from empty bufferpool");
-            }
+    /** Partition the next eviction starts looking at */
+    private final AtomicInteger evictHand;
 
-            pb.getPrev().setNext(pb.getNext());
-            pb.getNext().setPrev(pb.getPrev());
+    /**
+     * Transactions that had dirty pages written to disk by evictPage; their
+     * changes have to be undone from the log if they abort
+     */
+    private final Set<TransactionId> stolenFrom;
 
-            pageMap.remove(pb.p.getId());
-        }
+    /**
+     * Whether commit writes the pages of the transaction to disk (FORCE), or
+     * only their log records (NO-FORCE), see setForceOnCommit
+     */
+    private volatile boolean forceOnCommit;
 
-        public PageBuffer find(PageId pid) {
-            PageBuffer pb = pageMap.get(pid);
-            return pb;
-        }
+    /** Transactions whose updates flushPages already logged for commit */
+    private final Set<TransactionId> loggedForCommit;
 
-        public PageBuffer deleteLast() throws DbException {
-            if (this.head.getPrev() == this.head) {
-                throw new DbException("delete page from empty bufferpool");
-            }
+    /** Background writer started by startCleaner, or null */
+    private volatile PageCleaner cleaner;
 
-            PageBuffer tmp = this.head.getPrev();
-            this.head.setPrev(tmp.getPrev());
-            tmp.getPrev().setNext(this.head);
+    /** Pages written by the cleaner and not evicted yet */
+    private final Set<PageId> cleaned;
 
-            pageMap.remove(tmp.p.getId());
-            return tmp;
-        }
+    /** Reads pages ahead of sequential scans, created on first use */
+    private volatile ExecutorService prefetcher;
 
-        public PageBuffer deleteLastWithoutSetOutofMap() throws DbException {
-            if (this.head.getPrev() == this.head) {
-                throw new DbException("delete page from empty bufferpool");
-            }
+    /** Pages a prefetch task is queued for or reading */
+    private final ConcurrentHashMap<PageId, Prefetch> prefetching;
 
-            PageBuffer tmp = this.head.getPrev();
-            this.head.setPrev(tmp.getPrev());
-            tmp.getPrev().setNext(this.head);
+    /** A queued prefetch; whoever starts it first, the task or a getPage
+        that wants the page now, reads the page */
+    private static class Prefetch {
+        final AtomicBoolean started = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(1);
 
-            return tmp;
+        boolean start() {
+            return started.compareAndSet(false, true);
         }
+    }
 
-        public boolean isEmpty() {
-            return this.head.getNext() == this.head;
-        }
+    /**
+     * Changes whenever a page leaves the pool while its image on disk may
+     * change, so a prefetched copy read before that may be stale
+     */
+    private final AtomicLong uncachedWrites;
+
+    /** Off-heap images of clean pages evicted from the pool, or null */
+    private final PageArena arena;
+
+    /** Statistics, see getHits(), getMisses() and getEvictions() */
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder arenaHits;
+    private final LongAdder evictions;
+    private final LongAdder dirtyEvictions;
+    private final LongAdder pagesCleaned;
+    private final LongAdder dirtyEvictionsAvoided;
+    private final LongAdder prefetches;
+    private final LongAdder prefetchHits;
 
-        public ArrayList<Page> getBufferPages() {
-            ArrayList<Page> a = new ArrayList<>();
-            for (PageBuffer it = this.head.getNext(); it != this.head; it = it.getNext()) {
-                a.add(it.getPage());
-            }
-            return a;
-        }
+    /**
+     * Creates a BufferPool that caches up to numPages pages, replacing pages
+     * in LRU order.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     */
+    public BufferPool(int numPages) {
+        this(numPages, LRUPolicy::new);
     }
 
-    private BufferChain buffer, empty;
-
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
      * @param numPages maximum number of pages in this buffer pool.
+     * @param policy creates the replacement policy of each partition, e.g.
+     *   LRUPolicy::new, ClockPolicy::new, ClockProPolicy::new or TwoQPolicy::new
      */
-    public BufferPool(int numPages) {
+    public BufferPool(int numPages, ReplacementPolicy.Factory policy) {
+        this(numPages, policy, 0);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages decoded pages on the
+     * Java heap, backed by an off-heap arena that holds the images of up to
+     * arenaPages more clean pages. A large arena with a small numPages
+     * keeps most of the cached data out of the garbage collector's way.
+     *
+     * @param numPages maximum number of decoded pages in this buffer pool.
+     * @param policy creates the replacement policy of each partition
+     * @param arenaPages number of page images in the arena, 0 for no arena
+     * @see PageArena
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Factory policy, int arenaPages) {
       	BufferPool.numPages = numPages;
-        buffer = new BufferChain();
-        empty = new BufferChain();
-        manager = new LockManager();
-        for (int i=0; i<numPages; i++) {
-            PageBuffer pb = new PageBuffer();
-            empty.insertWithoutSetIntoMap(pb);
+        int n = 1;
+        while (n * 2 <= Math.min(numPages / MIN_PARTITION_PAGES, DEFAULT_PARTITIONS)) {
+            n *= 2;
+        }
+        partitions = new Partition[n];
+        for (int i=0; i<n; i++) {
+            partitions[i] = new Partition(policy.create(Math.max(numPages / n, 1)));
         }
+        freeFrames = new AtomicInteger(numPages);
+        evictHand = new AtomicInteger(0);
+        stolenFrom = ConcurrentHashMap.newKeySet();
+        forceOnCommit = true;
+        loggedForCommit = ConcurrentHashMap.newKeySet();
+        cleaned = ConcurrentHashMap.newKeySet();
+        prefetching = new ConcurrentHashMap<>();
+        uncachedWrites = new AtomicLong();
+        arena = arenaPages > 0 ? new PageArena(arenaPages, getPageSize()) : null;
+        hits = new LongAdder();
+        misses = new LongAdder();
+        arenaHits = new LongAdder();
+        evictions = new LongAdder();
+        dirtyEvictions = new LongAdder();
+        pagesCleaned = new LongAdder();
+        dirtyEvictionsAvoided = new LongAdder();
+        prefetches = new LongAdder();
+        prefetchHits = new LongAdder();
+        manager = new LockManager();
+    }
+
+    /** Maximum number of pages in this buffer pool */
+    public int getNumPages() {
+        return numPages;
     }
 
     public static int getPageSize() {
@@ -231,26 +259,293 @@ public class BufferPool {
         else
             manager.lockWrite(tid, pid);
 
-        synchronized(this) {
-            PageBuffer pb = this.buffer.find(pid);
-            if (pb != null) {
-                buffer.delete(pb);
-                buffer.insertFirst(pb);
-                return pb.getPage();
-            } else {
-                if (empty.isEmpty()) {
-                    evictPage();
+        Partition part = partitionOf(pid);
+        Page cached = part.pages.get(pid);
+        if (cached == null) {
+            Prefetch f = prefetching.get(pid);
+            if (f != null) {
+                if (f.start()) {
+                    // not started yet, read the page here instead
+                    prefetching.remove(pid, f);
+                    f.done.countDown();
+                } else {
+                    // already reading it, do not read it twice
+                    try {
+                        f.done.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    cached = part.pages.get(pid);
+                }
+            }
+        }
+        if (cached != null) {
+            part.policy.access(pid);
+            hits.increment();
+            if (!part.prefetched.isEmpty() && part.prefetched.remove(pid)) {
+                prefetchHits.increment();
+            }
+            return cached;
+        }
+        misses.increment();
+
+        // the disk read happens outside of any partition monitor, so a miss
+        // only holds up the transactions that want this very page
+        Page p = loadPage(pid);
+        if (p == null) {
+            return null;
+        }
+        return cachePage(p, false);
+    }
+
+    /**
+     * Read a page from the arena or from its file.
+     *
+     * @return the page, or null if it does not exist
+     */
+    private Page loadPage(PageId pid) throws DbException {
+        DbFile hf = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        byte[] image = arena != null ? arena.take(pid) : null;
+        if (image != null) {
+            try {
+                Page p = hf.createPage(pid, image);
+                arenaHits.increment();
+                return p;
+            } catch (IOException e) {
+                throw new DbException("corrupt page image in arena: " + e);
+            }
+        }
+        return hf.readPage(pid);
+    }
+
+    /**
+     * Read pages into the pool in the background, e.g. the pages a
+     * sequential scan will ask for next. No locks are taken; the pages are
+     * only cached, and the transaction that wants one still locks it in
+     * getPage. Prefetched pages that were not requested yet are the first
+     * ones evicted, and a prefetch never makes room by writing a dirty page.
+     *
+     * @see ReadAhead
+     */
+    public void prefetchPages(List<PageId> pids) {
+        ExecutorService ex = prefetcher;
+        if (ex == null) {
+            synchronized(prefetching) {
+                if (prefetcher == null) {
+                    ThreadPoolExecutor tpe = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS,
+                            1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+                                Thread t = new Thread(r, "Prefetcher");
+                                t.setDaemon(true);
+                                return t;
+                            });
+                    tpe.allowCoreThreadTimeOut(true);
+                    prefetcher = tpe;
                 }
+                ex = prefetcher;
+            }
+        }
+        for (PageId pid: pids) {
+            Prefetch f = new Prefetch();
+            if (partitionOf(pid).pages.containsKey(pid) || prefetching.putIfAbsent(pid, f) != null) {
+                continue;
+            }
+            ex.execute(() -> {
+                if (!f.start()) {
+                    // getPage read the page itself
+                    return;
+                }
+                try {
+                    prefetch(pid);
+                } finally {
+                    prefetching.remove(pid, f);
+                    f.done.countDown();
+                }
+            });
+        }
+    }
+
+    private void prefetch(PageId pid) {
+        Partition part = partitionOf(pid);
+        if (part.pages.containsKey(pid)) {
+            return;
+        }
+        long writes = uncachedWrites.get();
+        try {
+            Page p = loadPage(pid);
+            if (p == null) {
+                return;
+            }
+            reserveFrame(false);
+            synchronized(part) {
+                if (part.pages.containsKey(pid) || uncachedWrites.get() != writes) {
+                    // cached meanwhile, or the copy may be older than the disk
+                    freeFrames.incrementAndGet();
+                    return;
+                }
+                part.pages.put(pid, p);
+                part.policy.insert(pid);
+                part.prefetched.add(pid);
+            }
+            prefetches.increment();
+        } catch (DbException e) {
+            // every page is dirty, the scan will read the page itself
+        }
+    }
+
+    /** Whether a prefetch of the page is still running */
+    public boolean isPrefetching(PageId pid) {
+        return prefetching.containsKey(pid);
+    }
+
+    /** Whether the page is in the pool, without counting a hit or miss */
+    public boolean isCached(PageId pid) {
+        return partitionOf(pid).pages.containsKey(pid);
+    }
 
-                pb = empty.deleteLastWithoutSetOutofMap();
-                DbFile hf = Database.getCatalog().getDatabaseFile(pid.getTableId());
-                pb.setPage(hf.readPage(pid));
-                buffer.insertFirst(pb);
-                return pb.getPage();
+    private Partition partitionOf(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return partitions[h & (partitions.length - 1)];
+    }
+
+    /**
+     * Put p into its partition, evicting another page if the pool is full.
+     * If the page is already cached the cached copy is kept unless replace
+     * is set.
+     *
+     * @return the page that is cached under p's id afterwards
+     */
+    private Page cachePage(Page p, boolean replace) throws DbException {
+        PageId pid = p.getId();
+        Partition part = partitionOf(pid);
+        synchronized(part) {
+            Page cached = part.pages.get(pid);
+            if (cached != null) {
+                if (replace)
+                    part.pages.put(pid, p);
+                part.policy.access(pid);
+                return replace ? p : cached;
+            }
+        }
+
+        reserveFrame();
+        synchronized(part) {
+            Page cached = part.pages.get(pid);
+            if (cached != null) {
+                // someone else cached it while we were looking for a frame
+                freeFrames.incrementAndGet();
+                if (replace)
+                    part.pages.put(pid, p);
+                part.policy.access(pid);
+                return replace ? p : cached;
+            }
+            part.pages.put(pid, p);
+            part.policy.insert(pid);
+            return p;
+        }
+    }
+
+    /**
+     * Take one frame for a new page, evicting a page if none is free.
+     */
+    private void reserveFrame() throws DbException {
+        reserveFrame(true);
+    }
+
+    /**
+     * @param mayWrite whether a dirty page may be written to make room
+     */
+    private void reserveFrame(boolean mayWrite) throws DbException {
+        while (true) {
+            int free = freeFrames.get();
+            if (free <= 0) {
+                // the evicted page's frame is handed over to us directly
+                evictPage(mayWrite);
+                return;
             }
+            if (freeFrames.compareAndSet(free, free - 1)) {
+                return;
+            }
+        }
+    }
+
+    /** Number of getPage calls that found the page in the pool */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** Number of getPage calls that had to read the page from disk */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** Number of getPage misses that were served from the off-heap arena */
+    public long getArenaHits() {
+        return arenaHits.sum();
+    }
+
+    /** Number of pages evicted to make room for other pages */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /** Number of evictions that had to write a dirty page first */
+    public long getDirtyEvictions() {
+        return dirtyEvictions.sum();
+    }
+
+    /** Number of pages read into the pool by prefetchPages */
+    public long getPrefetches() {
+        return prefetches.sum();
+    }
+
+    /** Number of prefetched pages that were requested before eviction */
+    public long getPrefetchHits() {
+        return prefetchHits.sum();
+    }
+
+    /** Number of dirty pages the page cleaner wrote */
+    public long getPagesCleaned() {
+        return pagesCleaned.sum();
+    }
+
+    /** Number of evicted pages that were clean because the cleaner wrote them */
+    public long getDirtyEvictionsAvoided() {
+        return dirtyEvictionsAvoided.sum();
+    }
+
+    /**
+     * Chooses what commit writes. With FORCE (the default) every page the
+     * transaction dirtied is logged and written to disk before the commit
+     * completes. With NO-FORCE commit only appends the update records and
+     * forces the log; the pages stay dirty in the pool until they are
+     * evicted or a checkpoint flushes them, and LogFile.recover redoes the
+     * committed updates that did not make it to disk before a crash.
+     * Switching to FORCE stops the cleaner, see startCleaner.
+     */
+    public void setForceOnCommit(boolean force) {
+        forceOnCommit = force;
+        if (force) {
+            stopCleaner();
         }
     }
 
+    public boolean getForceOnCommit() {
+        return forceOnCommit;
+    }
+
+    public void resetStatistics() {
+        hits.reset();
+        misses.reset();
+        arenaHits.reset();
+        evictions.reset();
+        dirtyEvictions.reset();
+        pagesCleaned.reset();
+        dirtyEvictionsAvoided.reset();
+        prefetches.reset();
+        prefetchHits.reset();
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -300,14 +595,32 @@ public class BufferPool {
             return ;
         }
         synchronized(tid) {
+            // stolen pages are on disk, so an abort has to restore their
+            // before-images from the log while the locks are still held
+            if (!commit && stolenFrom.contains(tid)) {
+                Database.getLogFile().rollback(tid);
+            }
+
+            // with NO-FORCE the update records are all that has to be on
+            // disk, usually flushPages has logged them already
+            if (commit && !forceOnCommit && !loggedForCommit.remove(tid)) {
+                synchronized(this) {
+                    logPages(tid, pids);
+                }
+                Database.getLogFile().force();
+            }
+
             for (PageId pid: pids) {
-                manager.unlock(tid, pid);
                 if (commit) {
-                    // TODO:
-                    // can we just use buffer.find, and not lock all?
-                    Page p = buffer.find(pid).getPage();
+                    Page p = partitionOf(pid).pages.get(pid);
+                    if (p == null) {
+                        // evicted or discarded already, nothing to flush
+                        continue;
+                    }
 
-                    this.flushPage(pid);
+                    if (forceOnCommit) {
+                        this.flushPage(pid);
+                    }
 
                     // added because lab6
                     // use current page contents as the before-image
@@ -316,10 +629,18 @@ public class BufferPool {
 
                     // After an update is committed, a page's before-image needs to be updated
                 } else {
-                    this.discardPage(pid);
+                    abortPage(tid, pid);
                 }
             }
 
+            // locks are released only once the pages are flushed or
+            // discarded, so no one sees the changes of an aborted tid
+            for (PageId pid: pids) {
+                manager.unlock(tid, pid);
+            }
+
+            stolenFrom.remove(tid);
+            loggedForCommit.remove(tid);
             manager.cleanTransaction(tid);
         }
     }
@@ -335,6 +656,8 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so
      * that future requests see up-to-date pages.
      *
+     * The secondary indexes of the table get an entry for the tuple.
+     *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
      * @param t the tuple to add
@@ -345,24 +668,11 @@ public class BufferPool {
         DbFile hf = Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> ar = hf.insertTuple(tid, t);
         for (Page p: ar) {
-            synchronized(this) {
-                p.markDirty(true, tid);
-                PageBuffer pb = buffer.find(p.getId());
-
-                if (pb != null) {
-                    pb.setPage(p);
-                    buffer.delete(pb);
-                    buffer.insertFirst(pb);
-                } else {
-                    if (empty.isEmpty()) {
-                        evictPage();
-                    }
-
-                    pb = empty.deleteLastWithoutSetOutofMap();
-                    pb.setPage(p);
-                    buffer.insertFirst(pb);
-                }
-            }
+            p.markDirty(true, tid);
+            cachePage(p, true);
+        }
+        for (SecondaryIndex index: Database.getCatalog().getIndexes(tableId)) {
+            index.insertTuple(tid, t);
         }
     }
 
@@ -376,34 +686,55 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so
      * that future requests see up-to-date pages.
      *
+     * The entries of the tuple in the secondary indexes of its table are
+     * removed too.
+     *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
      */
     public  void deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
         // not necessary for lab1
-        DbFile hf = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        int tableId = t.getRecordId().getPageId().getTableId();
+        DbFile hf = Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> ar = hf.deleteTuple(tid, t);
         for (Page p: ar) {
-            synchronized(this) {
-                p.markDirty(true, tid);
-                PageBuffer pb = buffer.find(p.getId());
-
-                if (pb != null) {
-                    pb.setPage(p);
-                    buffer.delete(pb);
-                    buffer.insertFirst(pb);
-                } else {
-                    if (empty.isEmpty()) {
-                        evictPage();
-                    }
+            p.markDirty(true, tid);
+            cachePage(p, true);
+        }
+        for (SecondaryIndex index: Database.getCatalog().getIndexes(tableId)) {
+            index.deleteTuple(tid, t, t.getRecordId());
+        }
+    }
 
-                    pb = empty.deleteLastWithoutSetOutofMap();
-                    pb.setPage(p);
-                    buffer.insertFirst(pb);
-                }
-            }
+    /**
+     * Move a tuple of a HeapFile to the first page numbered first up to but
+     * not including before that has room for it, on behalf of transaction
+     * tid, e.g. to compact the file. The RecordId of t is updated, and the
+     * pages dirtied are marked and cached as for insertTuple. The entries
+     * of the tuple in the secondary indexes of the table follow it.
+     *
+     * @return the number of the page the tuple was moved to, or -1 if none
+     *   of the pages has room
+     * @see HeapFile#moveTuple
+     */
+    public int moveTuple(TransactionId tid, Tuple t, int first, int before)
+        throws DbException, IOException, TransactionAbortedException {
+        RecordId from = t.getRecordId();
+        HeapFile hf = (HeapFile)Database.getCatalog().getDatabaseFile(from.getPageId().getTableId());
+        ArrayList<Page> ar = hf.moveTuple(tid, t, first, before);
+        if (ar == null) {
+            return -1;
         }
+        for (Page p: ar) {
+            p.markDirty(true, tid);
+            cachePage(p, true);
+        }
+        for (SecondaryIndex index: Database.getCatalog().getIndexes(hf.getId())) {
+            index.deleteTuple(tid, t, from);
+            index.insertTuple(tid, t);
+        }
+        return t.getRecordId().getPageId().getPageNumber();
     }
 
     /**
@@ -413,18 +744,9 @@ public class BufferPool {
      */
     public synchronized void flushAllPages() throws IOException {
         // not necessary for lab1
-        ArrayList<Page> a = buffer.getBufferPages();
-        for (Page v: a) {
-            if (v.isDirty() != null) {
-                DbFile h = Database.getCatalog().getDatabaseFile(v.getId().getTableId());
-                TransactionId dirtier = v.isDirty();
-
-                // should also put int in flushAllPages for
-                // the correctness of systest logtest
-                Database.getLogFile().logWrite(dirtier, v.getBeforeImage(), v);
-                Database.getLogFile().force();
-                h.writePage(v);
-                v.markDirty(false, null);
+        for (Partition part: partitions) {
+            for (Page v: part.pages.values()) {
+                writeBack(v);
             }
         }
     }
@@ -437,17 +759,50 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // not necessary for lab1
-        PageBuffer pb = buffer.find(pid);
-        if (pb != null) {
-            try {
-                buffer.delete(pb);
-            } catch(DbException e) {
-                e.printStackTrace();
+        Partition part = partitionOf(pid);
+        synchronized(part) {
+            uncachedWrites.incrementAndGet();
+            if (part.pages.remove(pid) != null) {
+                part.policy.remove(pid);
+                part.prefetched.remove(pid);
+                freeFrames.incrementAndGet();
             }
-            empty.insertWithoutSetIntoMap(pb);
         }
+        cleaned.remove(pid);
+        if (arena != null)
+            arena.remove(pid);
+    }
+
+    /**
+     * Undo the changes aborted transaction tid made to a cached page. Pages
+     * tid only read are left alone: with NO-FORCE they may hold updates of
+     * committed transactions that are not on disk yet. So do the pages tid
+     * changed, whose before-image is the committed state then; with FORCE
+     * the disk has the committed state, and the page is discarded.
+     * Either way the free space map and zone map of a heap page are set from
+     * the before-image again.
+     */
+    private void abortPage(TransactionId tid, PageId pid) throws IOException {
+        Partition part = partitionOf(pid);
+        Page p = part.pages.get(pid);
+        if (p == null || !(tid.equals(p.isDirty()) || manager.holdsWriteLock(tid, pid))) {
+            return;
+        }
+        Page before = p.getBeforeImage();
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (file instanceof HeapFile) {
+            ((HeapFile)file).restored((HeapPage)before);
+        }
+        if (forceOnCommit) {
+            discardPage(pid);
+            return;
+        }
+        TransactionId dirtier = p.isDirty();
+        // the committed updates it may have still have to be written
+        before.markDirty(dirtier != null, dirtier);
+        part.pages.replace(pid, p, before);
     }
 
     /**
@@ -456,59 +811,295 @@ public class BufferPool {
      */
     private synchronized void flushPage(PageId pid) throws IOException {
         // not necessary for lab1
-        PageBuffer pb = buffer.find(pid);
-        if (pb != null) {
-            if (pb.getPage().isDirty() != null) {
-                DbFile h = Database.getCatalog().getDatabaseFile(pid.getTableId());
-
-                // added because of lab6
-                // append an update record to the log, with
-                // a before-image and after-image.
-                Page p = pb.getPage();
-                TransactionId dirtier = p.isDirty();
-
-                Database.getLogFile().logWrite(dirtier, p.getBeforeImage(), p);
+        Page p = partitionOf(pid).pages.get(pid);
+
+        // the log must not be written while holding a partition monitor,
+        // since rollback calls discardPage with the log file locked
+        if (p != null) {
+            writeBack(p);
+        }
+    }
+
+    /**
+     * Write a dirty page to disk. An update of a running transaction is
+     * logged and the log forced first, and the transaction is rolled back
+     * from the log if it aborts; the update of a committed transaction was
+     * logged at commit (NO-FORCE).
+     *
+     * @return the running transaction whose update was written, or null
+     */
+    private TransactionId writeBack(Page p) throws IOException {
+        TransactionId dirtier = p.isDirty();
+        if (dirtier == null) {
+            return null;
+        }
+
+        PageId pid = p.getId();
+        TransactionId running = runningWriter(pid, dirtier, manager.latch(pid));
+        try {
+            // added because of lab6
+            // append an update record to the log, with
+            // a before-image and after-image.
+            if (running != null) {
+                Database.getLogFile().logWrite(running, p.getBeforeImage(), p);
                 Database.getLogFile().force();
+                stolenFrom.add(running);
+            }
 
-                h.writePage(p);
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+            // unless another transaction dirtied it again in the meantime
+            if (dirtier.equals(p.isDirty())) {
                 p.markDirty(false, null);
             }
+        } finally {
+            manager.unlatch(pid);
+        }
+        return running;
+    }
+
+    /**
+     * The running transaction whose changes a write of page pid would put
+     * on disk, or null. That is the holder of the exclusive lock, whoever
+     * dirtied the page last, as it may be changing the page in place before
+     * it marks it dirty; else the dirtier, if it still holds a lock.
+     * Called with the page latched, see LockManager.latch.
+     *
+     * @param writer the holder of the exclusive lock on pid, or null
+     */
+    private TransactionId runningWriter(PageId pid, TransactionId dirtier, TransactionId writer) {
+        if (writer != null) {
+            return writer;
+        }
+        return manager.holdsLock(dirtier, pid) ? dirtier : null;
+    }
+
+    /**
+     * Append update records for the pages tid dirtied, without forcing the
+     * log. The pages stay dirty, their before-images become the committed
+     * state.
+     */
+    private void logPages(TransactionId tid, Set<PageId> pids) throws IOException {
+        for (PageId pid: pids) {
+            Page p = partitionOf(pid).pages.get(pid);
+            if (p != null && tid.equals(p.isDirty())) {
+                Database.getLogFile().logWrite(tid, p.getBeforeImage(), p);
+                p.setBeforeImage();
+            }
         }
     }
 
     /** Write all pages of the specified transaction to disk.
+     * With NO-FORCE only their update records are appended, to be forced
+     * by the commit record that follows.
      */
     public synchronized void flushPages(TransactionId tid) throws IOException {
         // not necessary for lab1|lab2
+        Set<PageId> pids = manager.getTransactionPid(tid);
+        if (pids == null) {
+            return;
+        }
+        if (forceOnCommit) {
+            for (PageId pid: pids) {
+                flushPage(pid);
+            }
+        } else {
+            logPages(tid, pids);
+            loggedForCommit.add(tid);
+        }
     }
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Clean pages are evicted first. If every page is dirty, one is stolen:
+     * its update is logged and forced first (write ahead logging), then it
+     * is written to disk, so that an abort or recovery can undo it.
+     * The frame of the evicted page is not returned to the free count, it
+     * belongs to the caller afterwards.
      */
-    private synchronized void evictPage() throws DbException {
+    private void evictPage(boolean mayWrite) throws DbException {
         // not necessary for lab1
-        int tryTime = numPages;
-        while (tryTime > 0) {
-            tryTime --;
-            PageBuffer pb = buffer.deleteLast();
-
-            if (pb.getPage().isDirty() != null) {
-                // HeapFile h = (HeapFile)Database.getCatalog().getDatabaseFile(pb.getPage().getId().getTableId());
-                // try {
-                //     h.writePage(pb.getPage());
-                // } catch(IOException e) {
-                //     e.printStackTrace();
-                // }
-                // pb.getPage().markDirty(false, null);
-
-                buffer.insertFirst(pb);
+        // partitions are visited round robin starting from a moving hand,
+        // taking the victim of the first partition whose policy finds one
+        int start = evictHand.getAndIncrement();
+
+        // prefetched pages nobody asked for yet go first
+        for (int i=0; i<partitions.length; i++) {
+            final Partition part = partitions[(start + i) & (partitions.length - 1)];
+            if (part.prefetched.isEmpty()) {
                 continue;
             }
-            empty.insertWithoutSetIntoMap(pb);
-            return;
+            Page page = null;
+            synchronized(part) {
+                Iterator<PageId> it = part.prefetched.iterator();
+                while (page == null && it.hasNext()) {
+                    PageId pid = it.next();
+                    it.remove();
+                    if (part.isClean(pid)) {
+                        part.policy.remove(pid);
+                        page = part.pages.remove(pid);
+                    }
+                }
+            }
+            if (page != null) {
+                evicted(page);
+                return;
+            }
+        }
+
+        for (int i=0; i<partitions.length; i++) {
+            final Partition part = partitions[(start + i) & (partitions.length - 1)];
+            Page page = null;
+            synchronized(part) {
+                PageId victim = part.policy.evict(part::isClean);
+                if (victim != null) {
+                    page = part.pages.remove(victim);
+                    part.prefetched.remove(victim);
+                }
+            }
+            if (page != null) {
+                if (cleaned.remove(page.getId())) {
+                    dirtyEvictionsAvoided.increment();
+                }
+                evicted(page);
+                return;
+            }
+        }
+
+        if (!mayWrite) {
+            throw new DbException("BufferPool is full of dirty pages");
+        }
+
+        // rollback holds the BufferPool and the log file when it discards
+        // pages, so the BufferPool monitor is taken before the partition's
+        // to be allowed to write the log while holding the partition
+        synchronized(this) {
+            for (int i=0; i<partitions.length; i++) {
+                final Partition part = partitions[(start + i) & (partitions.length - 1)];
+                synchronized(part) {
+                    PageId victim = part.policy.evict(part::isCached);
+                    if (victim == null) {
+                        continue;
+                    }
+                    uncachedWrites.incrementAndGet();
+                    Page page = part.pages.remove(victim);
+                    dirtyEvictions.increment();
+                    try {
+                        writeBack(page);
+                    } catch (IOException e) {
+                        part.pages.put(victim, page);
+                        part.policy.insert(victim);
+                        throw new DbException("could not write back page " + victim + ": " + e);
+                    }
+                    evicted(page);
+                    return;
+                }
+            }
+        }
+
+        throw new DbException("BufferPool is empty, nothing to evict");
+    }
+
+    /**
+     * Start a background thread that writes dirty pages before evictPage
+     * needs them as victims, see PageCleaner. Replaces a running cleaner.
+     * The cleaner only writes pages of committed transactions, and with
+     * FORCE commit has written those already, so it needs NO-FORCE.
+     *
+     * @param targetCleanPages number of clean pages to keep at the cold end
+     *   of the replacement order
+     * @param maxPagesPerSecond upper bound on the pages the cleaner writes
+     * @throws IllegalStateException if commits FORCE their pages
+     */
+    public void startCleaner(int targetCleanPages, int maxPagesPerSecond) {
+        if (forceOnCommit) {
+            throw new IllegalStateException("the page cleaner needs NO-FORCE, see setForceOnCommit");
+        }
+        stopCleaner();
+        cleaner = new PageCleaner(this, targetCleanPages, maxPagesPerSecond);
+        cleaner.start();
+    }
+
+    public void stopCleaner() {
+        PageCleaner c = cleaner;
+        cleaner = null;
+        if (c != null) {
+            c.shutdown();
+        }
+    }
+
+    /**
+     * Write the dirty pages the replacement policies would evict next, so
+     * that evictPage finds clean victims. Only pages of committed
+     * transactions (see setForceOnCommit) are written, and none that a
+     * running transaction holds the exclusive lock of: it may be changing
+     * the page while it is written.
+     *
+     * @param target number of clean pages wanted at the cold end of the pool
+     * @param max maximum number of pages to write
+     * @return the number of pages written
+     */
+    int cleanColdPages(int target, int max) throws IOException {
+        if (freeFrames.get() >= target) {
+            return 0;
         }
+        int perPartition = (target + partitions.length - 1) / partitions.length;
+        int written = 0;
+        for (Partition part: partitions) {
+            List<PageId> cold;
+            synchronized(part) {
+                cold = part.policy.coldest(perPartition);
+            }
+            for (PageId pid: cold) {
+                if (written >= max) {
+                    return written;
+                }
+                Page p = part.pages.get(pid);
+                if (p == null) {
+                    continue;
+                }
+                synchronized(this) {
+                    TransactionId dirtier = p.isDirty();
+                    if (dirtier == null) {
+                        continue;
+                    }
+                    // latched until written, so no transaction starts
+                    // changing the page meanwhile
+                    TransactionId writer = manager.latch(pid);
+                    try {
+                        if (runningWriter(pid, dirtier, writer) != null) {
+                            continue;
+                        }
+                        writeBack(p);
+                    } finally {
+                        manager.unlatch(pid);
+                    }
+                }
+                cleaned.add(pid);
+                pagesCleaned.increment();
+                written++;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Called by a file that wrote changes of the running transaction tid to
+     * disk itself, e.g. a bulk load, so that an abort rolls them back.
+     */
+    void wroteThrough(TransactionId tid) {
+        stolenFrom.add(tid);
+    }
+
+    /**
+     * Called by the log file once the changes of tid are undone on disk.
+     */
+    void rolledBack(TransactionId tid) {
+        stolenFrom.remove(tid);
+    }
 
-        throw new DbException("No enough place for NO STEAL");
+    private void evicted(Page page) {
+        evictions.increment();
+        if (arena != null)
+            arena.put(page);
     }
 }
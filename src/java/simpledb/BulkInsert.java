@@ -0,0 +1,113 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * Loads the tuples read from the child operator into the HeapFile specified
+ * in the constructor with HeapFile.bulkLoad, which appends fresh pages to
+ * the file instead of inserting tuples one at a time through the
+ * BufferPool. A table with secondary indexes is loaded through the
+ * BufferPool anyway, which maintains the indexes.
+ *
+ * @see HeapFile#bulkLoad
+ */
+public class BulkInsert extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private TransactionId tid;
+    private OpIterator child;
+    private int tableId;
+    private TupleDesc schema;
+    private boolean first;
+
+    /**
+     * Constructor.
+     *
+     * @param t
+     *            The transaction running the load.
+     * @param child
+     *            The child operator from which to read tuples to be loaded.
+     * @param tableId
+     *            The table to load into; it must be a HeapFile.
+     * @throws DbException
+     *             if the table is not a HeapFile or the TupleDesc of child
+     *             differs from it.
+     */
+    public BulkInsert(TransactionId t, OpIterator child, int tableId)
+            throws DbException {
+        if (!(Database.getCatalog().getDatabaseFile(tableId) instanceof HeapFile)) {
+            throw new DbException("bulk load needs a heap file");
+        }
+        if (!child.getTupleDesc().equals(Database.getCatalog().getTupleDesc(tableId))) {
+            throw new DbException("TupleDesc of child differs from table");
+        }
+        this.tid = t;
+        this.child = child;
+        this.tableId = tableId;
+        this.schema = new TupleDesc(new Type[] { Type.INT_TYPE });
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.schema;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        super.open();
+        this.first = true;
+    }
+
+    public void close() {
+        child.close();
+        super.close();
+        this.first = false;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    /**
+     * Loads all tuples read from child. It returns a one field tuple
+     * containing the number of loaded records, or null if called more than
+     * once.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (!this.first) {
+            return null;
+        }
+        this.first = false;
+        HeapFile f = (HeapFile)Database.getCatalog().getDatabaseFile(tableId);
+        int count = 0;
+        try {
+            if (Database.getCatalog().getIndexes(tableId).isEmpty()) {
+                count = f.bulkLoad(tid, child);
+            } else {
+                while (child.hasNext()) {
+                    Database.getBufferPool().insertTuple(tid, tableId, child.next());
+                    count++;
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("bulk load failed: " + e.getMessage());
+        }
+
+        Tuple result = new Tuple(this.schema);
+        result.setField(0, new IntField(count));
+        return result;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        if (children.length < 1) {
+          return ;
+        }
+        this.child = children[0];
+    }
+}
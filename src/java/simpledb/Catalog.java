@@ -3,9 +3,12 @@ package simpledb;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -26,6 +29,7 @@ public class Catalog {
       	DbFile file;
       	String name;
       	String primaryKey;
+      	List<SecondaryIndex> indexes = new CopyOnWriteArrayList<SecondaryIndex>();
 
       	public Table(DbFile f, String n, String pk) {
       	    file = f;
@@ -34,6 +38,12 @@ public class Catalog {
       	}
     }
     Map<Integer, Table> tables = null;
+    /** The file the schema was last loaded from, or null */
+    private volatile File catalogFile;
+
+    private static final java.util.regex.Pattern INDEX_ENTRY = java.util.regex.Pattern.compile(
+            "\\s*index\\s+(\\w+)\\s+on\\s+(\\w+)\\s*\\(\\s*(\\w+)\\s*\\)\\s*",
+            java.util.regex.Pattern.CASE_INSENSITIVE);
 
     public Catalog() {
       	if (tables == null)
@@ -114,6 +124,79 @@ public class Catalog {
         return null;
     }
 
+    /**
+     * Add a secondary index of a table in the catalog. The BTreeFile of the
+     * index is added as a table named after the index, and from then on the
+     * BufferPool maintains the index as tuples of the table change.
+     * @throws NoSuchElementException if the indexed table doesn't exist
+     */
+    public void addIndex(SecondaryIndex index) throws NoSuchElementException {
+        Table t = tables.get(index.getTable().getId());
+        if (t == null)
+            throw new NoSuchElementException("No such element");
+        addTable(index.getFile(), index.getName());
+        t.indexes.add(index);
+    }
+
+    /**
+     * Record a secondary index in the file the schema was loaded from, as a
+     * line index name on table(field), so that loadSchema opens it again.
+     * Does nothing if the schema was not loaded from a file.
+     */
+    public void saveIndex(SecondaryIndex index) throws IOException {
+        File f = catalogFile;
+        if (f == null)
+            return;
+        String table = getTableName(index.getTable().getId());
+        String field = index.getTable().getTupleDesc().getFieldName(index.getKeyField());
+        synchronized(this) {
+            PrintWriter out = new PrintWriter(new FileWriter(f, true));
+            out.println("index " + index.getName() + " on " + table + "(" + field + ")");
+            out.close();
+            if (out.checkError())
+                throw new IOException("could not write " + f);
+        }
+    }
+
+    /**
+     * Remove a secondary index and its BTreeFile from the catalog, e.g.
+     * after building it failed.
+     */
+    public void removeIndex(SecondaryIndex index) {
+        Table t = tables.get(index.getTable().getId());
+        if (t != null)
+            t.indexes.remove(index);
+        tables.remove(index.getFile().getId());
+        try {
+            index.getFile().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the secondary indexes of the specified table, which are none
+     * if the table doesn't exist
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        Table t = tables.get(tableid);
+        if (t == null)
+            return Collections.emptyList();
+        return t.indexes;
+    }
+
+    /**
+     * Returns a secondary index of the specified table on field, or null
+     * if there is none
+     */
+    public SecondaryIndex getIndex(int tableid, int field) {
+        for (SecondaryIndex index : getIndexes(tableid)) {
+            if (index.getKeyField() == field)
+                return index;
+        }
+        return null;
+    }
+
     public Iterator<Integer> tableIdIterator() {
         return tables.keySet().iterator();
     }
@@ -124,8 +207,15 @@ public class Catalog {
       	return null;
     }
 
-    /** Delete all tables from the catalog */
+    /** Delete all tables from the catalog, closing their files */
     public void clear() {
+        for (Table t: tables.values()) {
+            try {
+                t.file.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
       	tables.clear();
     }
 
@@ -140,13 +230,19 @@ public class Catalog {
         	BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
 
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                java.util.regex.Matcher m = INDEX_ENTRY.matcher(line);
+                if (m.matches()) {
+                    loadIndex(baseFolder, m.group(1), m.group(2), m.group(3));
+                    continue;
+                }
+                //assume line is of the format name (field type [pk] [dict], ...) [slotted|columnar]
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
                 String[] els = fields.split(",");
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
+                ArrayList<Boolean> dictionary = new ArrayList<Boolean>();
                 String primaryKey = "";
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
@@ -159,23 +255,45 @@ public class Catalog {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
                     }
-                    if (els2.length == 3) {
-                        if (els2[2].trim().equals("pk"))
+                    dictionary.add(false);
+                    for (int i = 2; i < els2.length; i++) {
+                        if (els2[i].trim().equals("pk"))
                             primaryKey = els2[0].trim();
+                        else if (els2[i].trim().equals("dict") && types.get(types.size() - 1) == Type.STRING_TYPE)
+                            dictionary.set(dictionary.size() - 1, true);
                         else {
-                            System.out.println("Unknown annotation " + els2[2]);
+                            System.out.println("Unknown annotation " + els2[i]);
                             System.exit(0);
                         }
                     }
                 }
+                // an option after the field list chooses the file format
+                String format = line.substring(line.indexOf(")") + 1).trim().toLowerCase();
+                if (!format.isEmpty() && !format.equals("slotted") && !format.equals("columnar")) {
+                    System.out.println("Unknown table option " + format);
+                    System.exit(0);
+                }
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                File dataFile = new File(baseFolder+"/"+name + ".dat");
+                boolean[] dictAr = new boolean[dictionary.size()];
+                for (int i = 0; i < dictAr.length; i++)
+                    dictAr[i] = dictionary.get(i);
+                if (dictionary.contains(true) && !format.equals("columnar")) {
+                    System.out.println("Dictionary encoding needs a columnar table: " + name);
+                    System.exit(0);
+                }
+                DbFile tabHf;
+                if (format.equals("columnar"))
+                    tabHf = new ColumnarFile(dataFile, t, dictAr);
+                else
+                    tabHf = new HeapFile(dataFile, t, format.equals("slotted"));
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
             br.close();
+            this.catalogFile = new File(catalogFile);
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
@@ -184,4 +302,23 @@ public class Catalog {
             System.exit(0);
         }
     }
+
+    /** Open the index name on field of table, stored in name.idx */
+    private void loadIndex(String baseFolder, String name, String table, String field) {
+        DbFile f = null;
+        int keyField = -1;
+        try {
+            f = getDatabaseFile(getTableId(table));
+            keyField = f.getTupleDesc().fieldNameToIndex(field);
+        } catch (NoSuchElementException e) {
+            // reported below
+        }
+        File indexFile = new File(baseFolder + "/" + name + ".idx");
+        if (!(f instanceof HeapFile) || keyField < 0 || !indexFile.exists()) {
+            System.out.println("Invalid index entry : index " + name + " on " + table + "(" + field + ")");
+            System.exit(0);
+        }
+        addIndex(new SecondaryIndex(name, (HeapFile)f, keyField, indexFile));
+        System.out.println("Added index : " + name + " on " + table + "(" + field + ")");
+    }
 }
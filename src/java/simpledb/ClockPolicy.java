@@ -0,0 +1,106 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ClockPolicy approximates LRU with the CLOCK algorithm: frames form a
+ * circle and a hit only sets the reference bit of the frame. On eviction
+ * the hand sweeps the circle, giving every referenced frame a second
+ * chance by clearing its bit, and takes the first unreferenced frame.
+ * <p>
+ * The hit path neither locks nor relinks anything.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private static class Frame {
+        final PageId pid;
+        final int slot;
+        volatile boolean referenced;
+
+        Frame(PageId pid, int slot) {
+            this.pid = pid;
+            this.slot = slot;
+        }
+    }
+
+    /** The circle; a slot is null once its page has left the partition */
+    private final ArrayList<Frame> slots;
+    private final ArrayDeque<Integer> freeSlots;
+    /** Lets access find the frame of a page without touching the circle */
+    private final Map<PageId, Frame> frames;
+    private int hand;
+
+    public ClockPolicy(int capacity) {
+        slots = new ArrayList<>(capacity);
+        freeSlots = new ArrayDeque<>();
+        frames = new ConcurrentHashMap<>();
+        hand = 0;
+    }
+
+    public void insert(PageId pid) {
+        Integer slot = freeSlots.poll();
+        if (slot == null) {
+            slot = slots.size();
+            slots.add(null);
+        }
+        Frame f = new Frame(pid, slot);
+        slots.set(slot, f);
+        frames.put(pid, f);
+    }
+
+    public void access(PageId pid) {
+        Frame f = frames.get(pid);
+        if (f != null) {
+            f.referenced = true;
+        }
+    }
+
+    public void remove(PageId pid) {
+        Frame f = frames.remove(pid);
+        if (f != null) {
+            slots.set(f.slot, null);
+            freeSlots.push(f.slot);
+        }
+    }
+
+    public PageId evict(Evictable evictable) {
+        int n = slots.size();
+        // two rounds: the first one may only clear reference bits
+        for (int i = 0; i < 2 * n; i++) {
+            if (hand >= n) {
+                hand = 0;
+            }
+            int slot = hand++;
+            Frame f = slots.get(slot);
+            if (f == null) {
+                continue;
+            }
+            if (f.referenced) {
+                f.referenced = false;
+                continue;
+            }
+            if (evictable.canEvict(f.pid)) {
+                remove(f.pid);
+                return f.pid;
+            }
+        }
+        return null;
+    }
+
+    public List<PageId> coldest(int n) {
+        List<PageId> cold = new ArrayList<>(n);
+        int size = slots.size();
+        // unreferenced frames ahead of the hand go first, the others only
+        // after the hand cleared their bits
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < size && cold.size() < n; i++) {
+                Frame f = slots.get((hand + i) % size);
+                if (f != null && f.referenced == (round == 1)) {
+                    cold.add(f.pid);
+                }
+            }
+        }
+        return cold;
+    }
+}
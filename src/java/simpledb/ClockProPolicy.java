@@ -0,0 +1,283 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ClockProPolicy implements CLOCK-Pro (Jiang, Chen and Zhang, USENIX 2005).
+ * <p>
+ * Resident pages are either hot or cold. Only cold pages are evicted. A
+ * newly read page starts cold and in its test period; if it is referenced
+ * again before the test period ends it is promoted to hot, and a hot page
+ * that was not referenced since the last pass of the hot hand is demoted to
+ * cold. Cold pages evicted during their test period leave their id behind
+ * as a non-resident entry, so a page that comes back soon after eviction is
+ * admitted as hot right away.
+ * <p>
+ * The share of cold pages adapts: it grows when a non-resident page is
+ * requested again and shrinks when a test period expires unused.
+ * <p>
+ * All pages sit on one circle that is swept by three hands: the cold hand
+ * looks for victims, the hot hand demotes hot pages and the test hand ends
+ * the test periods of non-resident pages. As in ClockPolicy a hit only sets
+ * the reference bit.
+ */
+public class ClockProPolicy implements ReplacementPolicy {
+
+    private static class Node {
+        final PageId pid;
+        Node prev;
+        Node next;
+        volatile boolean referenced;
+        volatile boolean resident;
+        boolean hot;
+        boolean inTest;
+
+        Node(PageId pid) {
+            this.pid = pid;
+        }
+    }
+
+    private final int capacity;
+    /** Target number of resident cold pages */
+    private int coldTarget;
+    private int hotCount;
+    private int coldCount;
+    private int nonResidentCount;
+
+    /** Resident and non-resident pages */
+    private final Map<PageId, Node> nodes;
+    private Node handHot;
+    private Node handCold;
+    private Node handTest;
+
+    public ClockProPolicy(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+        this.coldTarget = Math.max(this.capacity / 2, 1);
+        this.nodes = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Number of resident pages the partition holds. Partitions share the
+     * frames of the pool, so the capacity hint may be exceeded.
+     */
+    private int residentLimit() {
+        return Math.max(capacity, hotCount + coldCount);
+    }
+
+    private int hotLimit() {
+        return Math.max(residentLimit() - coldTarget, 1);
+    }
+
+    public void insert(PageId pid) {
+        Node n = nodes.get(pid);
+        if (n != null && !n.resident) {
+            // re-requested within its test period: the reuse distance is
+            // short enough to make it hot, and cold pages deserve more room
+            coldTarget = Math.max(Math.min(coldTarget + 1, residentLimit() - 1), 1);
+            unlink(n);
+            nonResidentCount--;
+            n.resident = true;
+            n.hot = true;
+            n.inTest = false;
+            n.referenced = false;
+            link(n);
+            hotCount++;
+            while (hotCount > hotLimit() && runHandHot())
+                ;
+            return;
+        }
+
+        n = new Node(pid);
+        n.resident = true;
+        n.inTest = true;
+        link(n);
+        nodes.put(pid, n);
+        coldCount++;
+    }
+
+    public void access(PageId pid) {
+        Node n = nodes.get(pid);
+        if (n != null && n.resident) {
+            n.referenced = true;
+        }
+    }
+
+    public void remove(PageId pid) {
+        Node n = nodes.remove(pid);
+        if (n == null) {
+            return;
+        }
+        unlink(n);
+        if (!n.resident)
+            nonResidentCount--;
+        else if (n.hot)
+            hotCount--;
+        else
+            coldCount--;
+    }
+
+    public PageId evict(Evictable evictable) {
+        int rounds = hotCount + 1;
+        for (int round = 0; round <= rounds; round++) {
+            int len = hotCount + coldCount + nonResidentCount;
+            for (int i = 0; i < 2 * len && coldCount > 0; i++) {
+                Node n = handCold;
+                handCold = n.next;
+                if (!n.resident || n.hot) {
+                    continue;
+                }
+
+                if (n.referenced) {
+                    n.referenced = false;
+                    if (n.inTest) {
+                        n.hot = true;
+                        n.inTest = false;
+                        coldCount--;
+                        hotCount++;
+                        moveToHead(n);
+                        while (hotCount > hotLimit() && runHandHot())
+                            ;
+                    } else {
+                        n.inTest = true;
+                        moveToHead(n);
+                    }
+                    continue;
+                }
+
+                if (!evictable.canEvict(n.pid)) {
+                    continue;
+                }
+
+                coldCount--;
+                if (n.inTest) {
+                    // keep the id around until the test period ends
+                    n.resident = false;
+                    nonResidentCount++;
+                    while (nonResidentCount > residentLimit() && runHandTest())
+                        ;
+                } else {
+                    nodes.remove(n.pid);
+                    unlink(n);
+                }
+                return n.pid;
+            }
+
+            // every cold page is pinned (or there is none): demote a hot one
+            if (!runHandHot()) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    public List<PageId> coldest(int n) {
+        List<PageId> cold = new ArrayList<>(n);
+        Node start = handCold;
+        if (start == null) {
+            return cold;
+        }
+        // the cold hand takes resident cold pages without reference bit
+        Node node = start;
+        do {
+            if (node.resident && !node.hot && !node.referenced) {
+                cold.add(node.pid);
+            }
+            node = node.next;
+        } while (node != start && cold.size() < n);
+        return cold;
+    }
+
+    /**
+     * Sweep the hot hand until one hot page is demoted to cold.
+     * @return false if there is no hot page
+     */
+    private boolean runHandHot() {
+        if (hotCount == 0) {
+            return false;
+        }
+        int len = hotCount + coldCount + nonResidentCount;
+        for (int i = 0; ; i++) {
+            Node n = handHot;
+            handHot = n.next;
+            if (n.hot) {
+                if (n.referenced && i < 2 * len) {
+                    n.referenced = false;
+                } else {
+                    n.hot = false;
+                    n.inTest = false;
+                    hotCount--;
+                    coldCount++;
+                    return true;
+                }
+            } else if (n.inTest) {
+                endTest(n);
+            }
+        }
+    }
+
+    /**
+     * Sweep the test hand until one non-resident page is dropped.
+     * @return false if there is no non-resident page
+     */
+    private boolean runHandTest() {
+        if (nonResidentCount == 0) {
+            return false;
+        }
+        while (true) {
+            Node n = handTest;
+            handTest = n.next;
+            if (!n.hot && n.inTest) {
+                boolean dropped = !n.resident;
+                endTest(n);
+                if (dropped) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private void endTest(Node n) {
+        n.inTest = false;
+        if (!n.resident) {
+            nodes.remove(n.pid);
+            unlink(n);
+            nonResidentCount--;
+            coldTarget = Math.max(coldTarget - 1, 1);
+        }
+    }
+
+    private void moveToHead(Node n) {
+        unlink(n);
+        link(n);
+    }
+
+    /** Put n at the list head, which is right behind the hot hand. */
+    private void link(Node n) {
+        if (handHot == null) {
+            n.next = n;
+            n.prev = n;
+            handHot = handCold = handTest = n;
+            return;
+        }
+        n.next = handHot;
+        n.prev = handHot.prev;
+        handHot.prev.next = n;
+        handHot.prev = n;
+    }
+
+    private void unlink(Node n) {
+        if (n.next == n) {
+            handHot = handCold = handTest = null;
+            return;
+        }
+        if (handHot == n)
+            handHot = n.next;
+        if (handCold == n)
+            handCold = n.next;
+        if (handTest == n)
+            handTest = n.next;
+        n.prev.next = n.next;
+        n.next.prev = n.prev;
+    }
+}
@@ -0,0 +1,400 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * ColumnarFile is an implementation of a DbFile that stores each column of a
+ * table in pages of its own, so that a scan that needs only some of the
+ * columns reads and decodes only their pages.
+ * <p>
+ * The file is a sequence of segments of the same size. A segment holds up
+ * to getRowsPerSegment() rows and consists of
+ * <ul>
+ * <li> a row page, with a bitmap of the rows in use
+ * <li> for each column in turn, a run of column pages holding the values of
+ * that column for all rows of the segment, in row order
+ * </ul>
+ * Column pages keep the range of the values written to them; see
+ * ColumnarPage for the page formats. A tuple is identified by the row page
+ * of its segment and its row number in the segment.
+ * <p>
+ * Inserting a tuple writes the row page and one page per column; deleting
+ * it only clears its bit on the row page.
+ * <p>
+ * String columns can be dictionary encoded: their pages then hold a 4 byte
+ * code per value, and the codes are kept in a StringDictionary stored next
+ * to the file (its name with ".dict" and the column number appended).
+ *
+ * @see ColumnarPage
+ */
+public class ColumnarFile implements DbFile {
+
+    private final File file;
+    private final TupleDesc td;
+    private final FileHandle handle;
+    private final int rowsPerSegment;
+    /** The dictionary of each dictionary encoded column, null for others */
+    private final StringDictionary[] dictionaries;
+    /** Values per page of each column */
+    private final int[] valuesPerPage;
+    /** The first page of each column's run within a segment; the last entry
+        is the number of pages of a segment */
+    private final int[] columnStart;
+
+    public class ColumnarIterator extends AbstractDbFileIterator {
+        final TransactionId tid;
+        final int[] columns;
+        boolean opened;
+        int segment;
+        int row;
+        ColumnarPage rows;
+        /** The page of each requested column that holds the current row */
+        ColumnarPage[] pages;
+
+        public ColumnarIterator(TransactionId tid, int[] columns) {
+            this.tid = tid;
+            this.columns = columns;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            opened = true;
+            segment = 0;
+            rows = null;
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (!opened) {
+                return null;
+            }
+            BufferPool bp = Database.getBufferPool();
+            while (true) {
+                if (rows == null) {
+                    if (segment >= numSegments()) {
+                        return null;
+                    }
+                    prefetch(segment + 1, columns);
+                    rows = (ColumnarPage)bp.getPage(tid, rowPageId(segment), Permissions.READ_ONLY);
+                    if (rows == null) {
+                        return null;
+                    }
+                    row = 0;
+                    pages = new ColumnarPage[columns.length];
+                    if (rows.getNumUsedRows() == 0) {
+                        row = rowsPerSegment;
+                    }
+                }
+                while (row < rowsPerSegment && !rows.isRowUsed(row)) {
+                    row++;
+                }
+                if (row == rowsPerSegment) {
+                    rows = null;
+                    segment++;
+                    continue;
+                }
+
+                Tuple t = new Tuple(td);
+                for (int i = 0; i < columns.length; i++) {
+                    int c = columns[i];
+                    HeapPageId pid = columnPageId(segment, c, row);
+                    if (pages[i] == null || !pages[i].getId().equals(pid)) {
+                        pages[i] = (ColumnarPage)bp.getPage(tid, pid, Permissions.READ_ONLY);
+                    }
+                    try {
+                        t.setField(c, pages[i].getValue(row % valuesPerPage[c]));
+                    } catch (IOException e) {
+                        throw new DbException("could not read the dictionary of column " + c + ": " + e);
+                    }
+                }
+                t.setRecordId(new RecordId(rows.getId(), row));
+                row++;
+                return t;
+            }
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            opened = false;
+            rows = null;
+            pages = null;
+        }
+    }
+
+    /**
+     * Constructs a columnar file backed by the specified file.
+     */
+    public ColumnarFile(File f, TupleDesc td) {
+        this(f, td, new boolean[td.numFields()]);
+    }
+
+    /**
+     * Constructs a columnar file backed by the specified file, whose string
+     * columns c with dictionaryEncoded[c] set store dictionary codes.
+     *
+     * @throws IllegalArgumentException if an encoded column is not a string
+     */
+    public ColumnarFile(File f, TupleDesc td, boolean[] dictionaryEncoded) {
+        this.file = f;
+        this.td = td;
+        this.handle = new FileHandle(f);
+        this.rowsPerSegment = ColumnarPage.valuesPerPage(Type.INT_TYPE.getLen());
+        this.dictionaries = new StringDictionary[td.numFields()];
+        this.valuesPerPage = new int[td.numFields()];
+        this.columnStart = new int[td.numFields() + 1];
+        columnStart[0] = 1;
+        for (int c = 0; c < td.numFields(); c++) {
+            if (dictionaryEncoded[c]) {
+                if (td.getFieldType(c) != Type.STRING_TYPE) {
+                    throw new IllegalArgumentException("column " + c + " is not a string column");
+                }
+                File d = new File(f.getPath() + ".dict" + c);
+                if (f.length() == 0) {
+                    // no page refers to a code yet; the file may be left
+                    // over from an old table with the same name
+                    d.delete();
+                }
+                dictionaries[c] = new StringDictionary(d);
+            }
+            valuesPerPage[c] = ColumnarPage.valuesPerPage(getColumnWidth(c));
+            int pages = (rowsPerSegment + valuesPerPage[c] - 1) / valuesPerPage[c];
+            columnStart[c + 1] = columnStart[c] + pages;
+        }
+    }
+
+    /**
+     * Returns the File backing this ColumnarFile on disk.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public int getId() {
+        return file.getAbsoluteFile().hashCode();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Returns the dictionary of a column, or null if the column is not
+     * dictionary encoded.
+     */
+    public StringDictionary getDictionary(int column) {
+        return dictionaries[column];
+    }
+
+    /** Returns the bytes a value of a column takes on its pages */
+    public int getColumnWidth(int column) {
+        return dictionaries[column] != null ? 4 : td.getFieldType(column).getLen();
+    }
+
+    /** Returns the number of rows a segment holds */
+    public int getRowsPerSegment() {
+        return rowsPerSegment;
+    }
+
+    /** Returns the number of pages of a segment */
+    public int getSegmentPages() {
+        return columnStart[td.numFields()];
+    }
+
+    /**
+     * Returns the number of pages in this file.
+     */
+    public int numPages() {
+        return (int)((file.length() + BufferPool.getPageSize() - 1) / BufferPool.getPageSize());
+    }
+
+    /** Returns the number of segments in this file */
+    public int numSegments() {
+        return (numPages() + getSegmentPages() - 1) / getSegmentPages();
+    }
+
+    /**
+     * Returns the column whose values a page holds, or -1 if the page is
+     * the row page of its segment.
+     */
+    public int columnOf(int pgNo) {
+        int off = pgNo % getSegmentPages();
+        int c = -1;
+        while (c + 1 < td.numFields() && columnStart[c + 1] <= off) {
+            c++;
+        }
+        return c;
+    }
+
+    /** The row page of a segment */
+    public HeapPageId rowPageId(int segment) {
+        return new HeapPageId(getId(), segment * getSegmentPages());
+    }
+
+    /** The page of a column that holds the value of a row of a segment */
+    public HeapPageId columnPageId(int segment, int column, int row) {
+        return new HeapPageId(getId(),
+                segment * getSegmentPages() + columnStart[column] + row / valuesPerPage[column]);
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        if (pid.getTableId() != getId() || pid.getPageNumber() >= numPages())
+            return null;
+        try {
+            byte[] b = new byte[BufferPool.getPageSize()];
+            handle.read(b, (long)pid.getPageNumber() * BufferPool.getPageSize());
+            return createPage(pid, b);
+        } catch (Exception e) {
+            System.out.println("readPage " + e);
+            return null;
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public Page createPage(PageId pid, byte[] data) throws IOException {
+        return new ColumnarPage((HeapPageId)pid, this, data);
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        handle.write(page.getPageData(), (long)page.getId().getPageNumber() * BufferPool.getPageSize());
+    }
+
+    // see DbFile.java for javadocs
+    public void close() throws IOException {
+        handle.close();
+        for (StringDictionary d : dictionaries) {
+            if (d != null) {
+                d.close();
+            }
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!t.getTupleDesc().equals(td)) {
+            throw new DbException("TupleDesc not matches");
+        }
+        // most inserts go to the last segment, so look there first
+        for (int s = numSegments() - 1; s >= 0; s--) {
+            ArrayList<Page> a = insertInto(tid, s, t);
+            if (a != null) {
+                return a;
+            }
+        }
+
+        // a new segment goes to disk empty; its pages are then changed
+        // through the BufferPool like the others
+        int s;
+        synchronized(this) {
+            s = numSegments();
+            int pageSize = BufferPool.getPageSize();
+            handle.write(new byte[getSegmentPages() * pageSize], (long)s * getSegmentPages() * pageSize);
+        }
+        ArrayList<Page> a = insertInto(tid, s, t);
+        if (a == null) {
+            throw new DbException("Internal error");
+        }
+        return a;
+    }
+
+    /**
+     * Insert t into a free row of a segment, or return null if the segment
+     * is full.
+     */
+    private ArrayList<Page> insertInto(TransactionId tid, int segment, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        HeapPageId rowPid = rowPageId(segment);
+        boolean held = bp.holdsLock(tid, rowPid);
+        ColumnarPage rows = (ColumnarPage)bp.getPage(tid, rowPid, Permissions.READ_WRITE);
+        if (rows == null) {
+            throw new DbException("Internal error");
+        }
+        int row = rows.firstFreeRow(rowsPerSegment);
+        if (row < 0) {
+            if (!held) {
+                bp.manager.unlock(tid, rowPid);
+            }
+            return null;
+        }
+
+        ArrayList<Page> a = new ArrayList<>();
+        rows.markRowUsed(row, true);
+        a.add(rows);
+        for (int c = 0; c < td.numFields(); c++) {
+            ColumnarPage p = (ColumnarPage)bp.getPage(tid, columnPageId(segment, c, row), Permissions.READ_WRITE);
+            p.setValue(row % valuesPerPage[c], t.getField(c));
+            a.add(p);
+        }
+        t.setRecordId(new RecordId(rowPid, row));
+        return a;
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != getId()
+                || columnOf(rid.getPageId().getPageNumber()) != -1) {
+            throw new DbException("tuple is not in this file");
+        }
+        int row = rid.getTupleNumber();
+        ColumnarPage rows = (ColumnarPage)Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_WRITE);
+        if (rows == null || row < 0 || row >= rowsPerSegment || !rows.isRowUsed(row)) {
+            throw new DbException("tuple number not matches or not used");
+        }
+        rows.markRowUsed(row, false);
+        ArrayList<Page> a = new ArrayList<>();
+        a.add(rows);
+        return a;
+    }
+
+    /**
+     * Read the pages a scan of the given columns needs from a segment into
+     * the BufferPool in the background, unless they would take up a large
+     * part of it.
+     */
+    private void prefetch(int segment, int[] columns) {
+        BufferPool bp = Database.getBufferPool();
+        if (segment >= numSegments()) {
+            return;
+        }
+        List<PageId> pids = new ArrayList<>();
+        pids.add(rowPageId(segment));
+        for (int c : columns) {
+            for (int pgNo = columnStart[c]; pgNo < columnStart[c + 1]; pgNo++) {
+                pids.add(new HeapPageId(getId(), segment * getSegmentPages() + pgNo));
+            }
+        }
+        if (pids.size() <= bp.getNumPages() / 4) {
+            bp.prefetchPages(pids);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        int[] columns = new int[td.numFields()];
+        for (int c = 0; c < columns.length; c++) {
+            columns[c] = c;
+        }
+        return new ColumnarIterator(tid, columns);
+    }
+
+    /**
+     * Returns an iterator that reads only the given columns. The tuples it
+     * returns have this file's TupleDesc, but only the fields of these
+     * columns are set; the others are null.
+     *
+     * @param columns the indexes of the columns to read
+     */
+    public DbFileIterator iterator(TransactionId tid, int[] columns) {
+        return new ColumnarIterator(tid, columns.clone());
+    }
+}
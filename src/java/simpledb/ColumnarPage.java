@@ -0,0 +1,223 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Each instance of ColumnarPage stores one page of a ColumnarFile. A page is
+ * either the row page of a segment, which records which rows of the segment
+ * are in use, or a column page, which holds the values of one column for a
+ * run of consecutive rows of the segment.
+ * <p>
+ * The format of a row page is an int with the number of rows in use,
+ * followed by a bitmap with one bit per row of the segment.
+ * <p>
+ * The format of a column page is an int with the number of values ever
+ * written to it, the smallest and the largest of those values as ints (for
+ * INT_TYPE columns only; unused for strings), and then the values in fixed
+ * width slots, encoded as in HeapPage. A dictionary encoded string column
+ * stores the 4 byte code of each string instead. The range only grows: it is not
+ * narrowed when a row is deleted, so it always covers the values on the
+ * page.
+ *
+ * @see ColumnarFile
+ */
+public class ColumnarPage implements Page {
+
+    static final int ROW_HEADER = 4;
+    static final int COLUMN_HEADER = 12;
+
+    final HeapPageId pid;
+    /** The column this page holds, or -1 for a row page */
+    final int column;
+    final Type type;
+    /** The bytes a value takes */
+    final int width;
+    /** The dictionary of a dictionary encoded column, or null */
+    final StringDictionary dict;
+    final byte[] data;
+    final ByteBuffer buf;
+    boolean dirty = false;
+    TransactionId dirtyingTid = null;
+
+    /** The image before the first change since setBeforeImage, or null if
+        the page was not changed since */
+    byte[] oldData;
+    final Byte oldDataLock = new Byte((byte)0);
+
+    /**
+     * Create a ColumnarPage from a set of bytes of data read from disk. The
+     * table must be in the catalog, as its ColumnarFile tells which column
+     * the page holds.
+     */
+    public ColumnarPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, (ColumnarFile)Database.getCatalog().getDatabaseFile(id.getTableId()), data);
+    }
+
+    ColumnarPage(HeapPageId id, ColumnarFile f, byte[] data) throws IOException {
+        this.pid = id;
+        this.column = f.columnOf(id.getPageNumber());
+        this.type = column < 0 ? null : f.getTupleDesc().getFieldType(column);
+        this.width = column < 0 ? 0 : f.getColumnWidth(column);
+        this.dict = column < 0 ? null : f.getDictionary(column);
+        if (data.length < BufferPool.getPageSize()) {
+            throw new IOException("short page image: " + data.length + " bytes");
+        }
+        this.data = java.util.Arrays.copyOf(data, BufferPool.getPageSize());
+        this.buf = ByteBuffer.wrap(this.data);
+    }
+
+    private ColumnarPage(ColumnarPage p, byte[] data) {
+        this.pid = p.pid;
+        this.column = p.column;
+        this.type = p.type;
+        this.width = p.width;
+        this.dict = p.dict;
+        this.data = data;
+        this.buf = ByteBuffer.wrap(data);
+    }
+
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /** Returns the column of this page, or -1 for a row page */
+    public int getColumn() {
+        return column;
+    }
+
+    public ColumnarPage getBeforeImage() {
+        synchronized(oldDataLock) {
+            return new ColumnarPage(this, (oldData != null ? oldData : data).clone());
+        }
+    }
+
+    public void setBeforeImage() {
+        synchronized(oldDataLock) {
+            oldData = null;
+        }
+    }
+
+    /** Keep the before-image; called before the image changes in place */
+    private void beforeChange() {
+        synchronized(oldDataLock) {
+            if (oldData == null)
+                oldData = data.clone();
+        }
+    }
+
+    public byte[] getPageData() {
+        return data.clone();
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        this.dirtyingTid = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return dirty ? dirtyingTid : null;
+    }
+
+    // row pages
+
+    /** Returns the number of rows in use in the segment */
+    public int getNumUsedRows() {
+        return buf.getInt(0);
+    }
+
+    /** Returns true if a row of the segment is in use */
+    public boolean isRowUsed(int row) {
+        return (data[ROW_HEADER + row / 8] & (1 << (row % 8))) != 0;
+    }
+
+    /**
+     * Returns the first row that is not in use, or -1 if all of the first
+     * numRows rows are.
+     */
+    public int firstFreeRow(int numRows) {
+        for (int i = 0; i < (numRows + 7) / 8; i++) {
+            int b = data[ROW_HEADER + i] & 0xff;
+            if (b != 0xff) {
+                int row = i * 8 + Integer.numberOfTrailingZeros(~b);
+                return row < numRows ? row : -1;
+            }
+        }
+        return -1;
+    }
+
+    /** Mark a row of the segment used or free */
+    public void markRowUsed(int row, boolean used) {
+        if (isRowUsed(row) == used) {
+            return;
+        }
+        beforeChange();
+        if (used)
+            data[ROW_HEADER + row / 8] |= 1 << (row % 8);
+        else
+            data[ROW_HEADER + row / 8] &= ~(1 << (row % 8));
+        buf.putInt(0, getNumUsedRows() + (used ? 1 : -1));
+    }
+
+    // column pages
+
+    /** Returns the number of values of the given width a column page holds */
+    static int valuesPerPage(int width) {
+        return (BufferPool.getPageSize() - COLUMN_HEADER) / width;
+    }
+
+    /** Returns true if a value was ever written to this column page */
+    public boolean hasRange() {
+        return buf.getInt(0) > 0;
+    }
+
+    /** The smallest value written to this page of an INT_TYPE column */
+    public int getMin() {
+        return buf.getInt(4);
+    }
+
+    /** The largest value written to this page of an INT_TYPE column */
+    public int getMax() {
+        return buf.getInt(8);
+    }
+
+    /** Decode the value in slot i of this column page */
+    public Field getValue(int i) throws IOException {
+        int off = COLUMN_HEADER + i * width;
+        if (dict != null) {
+            return dict.field(buf.getInt(off));
+        } else if (type == Type.INT_TYPE) {
+            return new IntField(buf.getInt(off));
+        }
+        int len = Math.min(Math.max(buf.getInt(off), 0), Type.STRING_LEN);
+        return new StringField(new String(data, off + 4, len), Type.STRING_LEN);
+    }
+
+    /** Encode f into slot i of this column page */
+    public void setValue(int i, Field f) throws IOException {
+        int code = 0;
+        if (dict != null) {
+            // before the page changes, as encode may fail
+            code = dict.encode(((StringField)f).getValue());
+        }
+        beforeChange();
+        int off = COLUMN_HEADER + i * width;
+        int count = buf.getInt(0);
+        if (dict != null) {
+            buf.putInt(off, code);
+        } else if (type == Type.INT_TYPE) {
+            int v = ((IntField)f).getValue();
+            buf.putInt(off, v);
+            buf.putInt(4, count == 0 ? v : Math.min(v, getMin()));
+            buf.putInt(8, count == 0 ? v : Math.max(v, getMax()));
+        } else {
+            String s = ((StringField)f).getValue();
+            int len = Math.min(s.length(), Type.STRING_LEN);
+            buf.putInt(off, len);
+            for (int k = 0; k < len; k++)
+                data[off + 4 + k] = (byte)s.charAt(k);
+            java.util.Arrays.fill(data, off + 4 + len, off + type.getLen(), (byte)0);
+        }
+        buf.putInt(0, Math.max(count + 1, 1));
+    }
+}
@@ -55,11 +55,32 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(new BufferPool(pages));
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * using the specified replacement policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy.Factory policy) {
+        return resetBufferPool(new BufferPool(pages, policy));
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * backed by an off-heap arena of arenaPages pages and return it
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy.Factory policy,
+                                             int arenaPages) {
+        return resetBufferPool(new BufferPool(pages, policy, arenaPages));
+    }
+
+    private static BufferPool resetBufferPool(BufferPool bp) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), bp);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -73,6 +94,16 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /**
+     * Shut the database down: stop the page cleaner, checkpoint the log
+     * (which writes all dirty pages) and close the files of all tables.
+     */
+    public static void shutdown() {
+        getBufferPool().stopCleaner();
+        getLogFile().shutdown();
+        getCatalog().clear();
+    }
+
     // reset the database, used for unit tests only.
     public static void reset() {
         _instance.set(new Database());
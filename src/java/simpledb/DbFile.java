@@ -18,6 +18,17 @@ public interface DbFile {
      */
     public Page readPage(PageId id);
 
+    /**
+     * Build a page of this file from the bytes of its on-disk image, without
+     * going to disk. The BufferPool uses this to rebuild pages it keeps
+     * outside of the Java heap.
+     *
+     * @param id the id of the page
+     * @param data the page image, as returned by {@link Page#getPageData}
+     * @throws IOException if data is not a valid image of the page
+     */
+    public Page createPage(PageId id, byte[] data) throws IOException;
+
     /**
      * Push the specified page to disk.
      *
@@ -27,6 +38,13 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Release the operating system resources held for this file, e.g. its
+     * open file handle. Called when the file leaves the Catalog; a closed
+     * file may still be used, it reopens what it needs.
+     */
+    public void close() throws IOException;
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -0,0 +1,114 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * DelimitedFileScan reads tuples from a text file with one tuple per line,
+ * its fields separated by a delimiter character, as written for
+ * HeapFileEncoder. It is the source of a COPY statement.
+ */
+public class DelimitedFileScan extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private File file;
+    private TupleDesc td;
+    private char delimiter;
+    private transient BufferedReader reader;
+    private int lineNo;
+
+    /**
+     * Constructor.
+     *
+     * @param file
+     *            The text file to read.
+     * @param td
+     *            The type of the tuples on each line.
+     * @param delimiter
+     *            The character between two fields.
+     */
+    public DelimitedFileScan(File file, TupleDesc td, char delimiter) {
+        this.file = file;
+        this.td = td;
+        this.delimiter = delimiter;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        try {
+            reader = new BufferedReader(new FileReader(file), 1 << 16);
+        } catch (FileNotFoundException e) {
+            throw new DbException("cannot read " + file + ": " + e.getMessage());
+        }
+        lineNo = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            reader = null;
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        String line;
+        try {
+            do {
+                line = reader.readLine();
+                lineNo++;
+                if (line == null) {
+                    return null;
+                }
+            } while (line.trim().isEmpty());
+        } catch (IOException e) {
+            throw new DbException("cannot read " + file + ": " + e.getMessage());
+        }
+
+        Tuple t = new Tuple(td);
+        int start = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            int end = line.indexOf(delimiter, start);
+            if (end < 0) {
+                end = line.length();
+            }
+            if (start > line.length()) {
+                throw new DbException(file + ":" + lineNo + ": expected "
+                        + td.numFields() + " fields");
+            }
+            String value = line.substring(start, end);
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                try {
+                    t.setField(i, new IntField(Integer.parseInt(value.trim())));
+                } catch (NumberFormatException e) {
+                    throw new DbException(file + ":" + lineNo + ": not an integer: " + value);
+                }
+            } else {
+                t.setField(i, new StringField(value, Type.STRING_LEN));
+            }
+            start = end + 1;
+        }
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[0];
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+    }
+}
@@ -0,0 +1,63 @@
+package simpledb;
+
+/**
+ * A StringField whose value comes from a StringDictionary. Two fields of
+ * the same dictionary are equal if their codes are, so equality filters,
+ * grouping and hash joins on a dictionary encoded column compare ints
+ * instead of strings. Compared with any other field it behaves like a
+ * plain StringField; its hash code is the one of its string, which the
+ * String caches, so it can be mixed with StringFields in hash tables.
+ *
+ * @see StringDictionary
+ */
+public class DictionaryField extends StringField {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient StringDictionary dict;
+    private final int code;
+
+    DictionaryField(String s, StringDictionary dict, int code) {
+        super(s, Type.STRING_LEN);
+        this.dict = dict;
+        this.code = code;
+    }
+
+    /** The dictionary this field's code belongs to */
+    public StringDictionary getDictionary() {
+        return dict;
+    }
+
+    /** The code of this field, or -1 for a string not in the dictionary */
+    public int getCode() {
+        return code;
+    }
+
+    /** Returns true if the codes of this and f can be compared instead
+        of their strings */
+    private boolean sameCodes(Field f) {
+        if (!(f instanceof DictionaryField)) {
+            return false;
+        }
+        DictionaryField d = (DictionaryField)f;
+        return dict != null && d.dict == dict && (code >= 0 || d.code >= 0);
+    }
+
+    public boolean equals(Object field) {
+        if (sameCodes((Field)field)) {
+            return code == ((DictionaryField)field).code;
+        }
+        return super.equals(field);
+    }
+
+    public boolean compare(Predicate.Op op, Field val) {
+        if (sameCodes(val)) {
+            if (op == Predicate.Op.EQUALS) {
+                return code == ((DictionaryField)val).code;
+            } else if (op == Predicate.Op.NOT_EQUALS) {
+                return code != ((DictionaryField)val).code;
+            }
+        }
+        return super.compare(op, val);
+    }
+}
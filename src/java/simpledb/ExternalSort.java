@@ -0,0 +1,198 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * ExternalSort sorts more tuples than fit in memory. Tuples are collected
+ * in memory until they fill the work memory; then they are sorted and
+ * spilled to a temporary file as a sorted run. The runs are merged k ways
+ * when the sorted tuples are read. If the tuples fit in memory, no run is
+ * written at all.
+ * <p>
+ * The memory a tuple takes is estimated from its TupleDesc, so the work
+ * memory is approximate.
+ */
+public class ExternalSort implements Closeable {
+
+    /** The default work memory, in bytes */
+    public static final long DEFAULT_WORK_MEM = 16L << 20;
+
+    /** The buffer size of a run being written or merged */
+    private static final int RUN_BUFFER = 1 << 16;
+
+    private final TupleDesc td;
+    private final Comparator<Tuple> comparator;
+    private final int maxTuples;
+    private final int fanIn;
+    private ArrayList<Tuple> buffer = new ArrayList<Tuple>();
+    private final ArrayDeque<Run> runs = new ArrayDeque<Run>();
+    private final ArrayList<RunReader> readers = new ArrayList<RunReader>();
+
+    /** A sorted run in a temporary file */
+    private static class Run {
+        final File file;
+        final long count;
+
+        Run(File file, long count) {
+            this.file = file;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Create a sort.
+     *
+     * @param td the TupleDesc of the tuples to sort
+     * @param comparator the order to sort the tuples in
+     * @param workMem the bytes of memory the tuples in memory may take
+     */
+    public ExternalSort(TupleDesc td, Comparator<Tuple> comparator, long workMem) {
+        this.td = td;
+        this.comparator = comparator;
+        // the fields plus the Tuple, its array and the Field objects
+        long tupleBytes = td.getSize() + 32 + 24 * td.numFields();
+        this.maxTuples = (int)Math.max(1, Math.min(Integer.MAX_VALUE - 8, workMem / tupleBytes));
+        this.fanIn = (int)Math.max(2, workMem / RUN_BUFFER);
+    }
+
+    /** Add a tuple to sort */
+    public void add(Tuple t) throws IOException {
+        buffer.add(t);
+        if (buffer.size() >= maxTuples) {
+            Collections.sort(buffer, comparator);
+            runs.add(spill(buffer.iterator(), buffer.size()));
+            buffer = new ArrayList<Tuple>();
+        }
+    }
+
+    /** The number of runs spilled to disk so far */
+    public int numRuns() {
+        return runs.size();
+    }
+
+    private Run spill(Iterator<Tuple> it, long count) throws IOException {
+        File f = File.createTempFile("sortrun", ".dat");
+        f.deleteOnExit();
+        DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(f), RUN_BUFFER));
+        try {
+            for (long i = 0; i < count; i++) {
+                Tuple t = it.next();
+                for (int j = 0; j < td.numFields(); j++) {
+                    t.getField(j).serialize(dos);
+                }
+            }
+        } finally {
+            dos.close();
+        }
+        return new Run(f, count);
+    }
+
+    /**
+     * Returns the added tuples in sorted order. Once the tuples are spilled,
+     * runs are merged fanIn at a time until the rest can be merged in one
+     * pass. The iterator throws a RuntimeException if a run cannot be read.
+     */
+    public Iterator<Tuple> sorted() throws IOException {
+        Collections.sort(buffer, comparator);
+        if (runs.isEmpty()) {
+            return buffer.iterator();
+        }
+        if (!buffer.isEmpty()) {
+            runs.add(spill(buffer.iterator(), buffer.size()));
+        }
+        buffer = new ArrayList<Tuple>();
+        while (runs.size() > fanIn) {
+            ArrayList<Run> group = new ArrayList<Run>();
+            long count = 0;
+            for (int i = 0; i < fanIn; i++) {
+                Run r = runs.remove();
+                group.add(r);
+                count += r.count;
+            }
+            runs.add(spill(merge(group), count));
+            for (Run r : group) {
+                r.file.delete();
+            }
+        }
+        return merge(new ArrayList<Run>(runs));
+    }
+
+    private Iterator<Tuple> merge(List<Run> toMerge) throws IOException {
+        final PriorityQueue<RunReader> heap = new PriorityQueue<RunReader>(toMerge.size(),
+                (a, b) -> comparator.compare(a.head, b.head));
+        for (Run r : toMerge) {
+            RunReader reader = new RunReader(r);
+            readers.add(reader);
+            if (reader.advance()) {
+                heap.add(reader);
+            }
+        }
+        return new Iterator<Tuple>() {
+            public boolean hasNext() {
+                return !heap.isEmpty();
+            }
+
+            public Tuple next() {
+                if (heap.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                RunReader reader = heap.remove();
+                Tuple t = reader.head;
+                try {
+                    if (reader.advance()) {
+                        heap.add(reader);
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return t;
+            }
+        };
+    }
+
+    /** Reads the tuples of a run one at a time */
+    private class RunReader {
+        private final DataInputStream dis;
+        private long remaining;
+        Tuple head;
+
+        RunReader(Run r) throws IOException {
+            this.dis = new DataInputStream(new BufferedInputStream(new FileInputStream(r.file), RUN_BUFFER));
+            this.remaining = r.count;
+        }
+
+        /** Read the next tuple into head; returns false at the end of the run */
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                head = null;
+                dis.close();
+                return false;
+            }
+            remaining--;
+            head = new Tuple(td);
+            try {
+                for (int j = 0; j < td.numFields(); j++) {
+                    head.setField(j, td.getFieldType(j).parse(dis));
+                }
+            } catch (java.text.ParseException e) {
+                throw new IOException(e);
+            }
+            return true;
+        }
+    }
+
+    /** Delete the runs */
+    public void close() throws IOException {
+        for (RunReader r : readers) {
+            r.dis.close();
+        }
+        readers.clear();
+        for (Run r : runs) {
+            r.file.delete();
+        }
+        runs.clear();
+        buffer = new ArrayList<Tuple>();
+    }
+}
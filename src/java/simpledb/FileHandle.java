@@ -0,0 +1,164 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * FileHandle keeps one FileChannel open for the lifetime of a DbFile, so
+ * that page reads and writes do not open and close the file every time.
+ * All I/O is positional, which lets any number of threads read and write
+ * pages through the same channel at once.
+ * <p>
+ * The channel is opened on first use and reopened if it was closed, e.g.
+ * by {@link #close} or because a thread was interrupted during I/O, so a
+ * closed handle can still be used.
+ * <p>
+ * Reads may also be served from a read-only memory mapping of the file,
+ * see {@link #slice}. Writes always go through the channel; they share
+ * the operating system's page cache with the mapping, so the mapping sees
+ * them.
+ *
+ * @Threadsafe
+ */
+public class FileHandle {
+    /** Largest prefix of the file that can be mapped in one buffer */
+    private static final long MAX_MAP = Integer.MAX_VALUE;
+
+    private final File file;
+    private volatile FileChannel channel;
+    /** Mapping of the file as large as it was when last mapped, or null */
+    private volatile MappedByteBuffer map;
+
+    public FileHandle(File file) {
+        this.file = file;
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel c = channel;
+        if (c != null && c.isOpen()) {
+            return c;
+        }
+        synchronized(this) {
+            if (channel == null || !channel.isOpen()) {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                                           StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * Read from the file at the given position until buf is full or the end
+     * of the file is reached.
+     *
+     * @return the number of bytes read
+     */
+    public int read(byte[] buf, long position) throws IOException {
+        ByteBuffer dst = ByteBuffer.wrap(buf);
+        for (int attempt = 0; ; attempt++) {
+            try {
+                FileChannel c = channel();
+                while (dst.hasRemaining()) {
+                    if (c.read(dst, position + dst.position()) < 0) {
+                        break;
+                    }
+                }
+                return dst.position();
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // another thread closed the channel, open it again
+                if (attempt > 0)
+                    throw e;
+            }
+        }
+    }
+
+    /**
+     * Write all of data to the file at the given position.
+     */
+    public void write(byte[] data, long position) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(data);
+        for (int attempt = 0; ; attempt++) {
+            try {
+                FileChannel c = channel();
+                while (src.hasRemaining()) {
+                    c.write(src, position + src.position());
+                }
+                return;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                if (attempt > 0)
+                    throw e;
+            }
+        }
+    }
+
+    /** Force everything written so far to the disk. */
+    public void force() throws IOException {
+        channel().force(false);
+    }
+
+    /**
+     * Cut the file off after size bytes. The mapping is dropped, so views
+     * of the removed bytes must not be used any more.
+     */
+    public synchronized void truncate(long size) throws IOException {
+        map = null;
+        channel().truncate(size);
+    }
+
+    /**
+     * A read-only view of len bytes of the file at the given position,
+     * backed by a memory mapping of the file, so no bytes are copied. The
+     * file is mapped again when it has grown past the current mapping.
+     *
+     * @return the view, or null if the bytes are not all in the file or
+     *   lie beyond the part of the file that can be mapped
+     */
+    public ByteBuffer slice(long position, int len) throws IOException {
+        long end = position + len;
+        if (end > MAX_MAP) {
+            return null;
+        }
+        MappedByteBuffer m = map;
+        if (m == null || end > m.capacity()) {
+            m = remap(end);
+            if (m == null) {
+                return null;
+            }
+        }
+        ByteBuffer b = m.duplicate();
+        b.limit((int)end);
+        b.position((int)position);
+        return b.slice();
+    }
+
+    private synchronized MappedByteBuffer remap(long end) throws IOException {
+        if (map != null && end <= map.capacity()) {
+            return map;
+        }
+        FileChannel c = channel();
+        long size = Math.min(c.size(), MAX_MAP);
+        if (end > size) {
+            return null;
+        }
+        map = c.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        return map;
+    }
+
+    /** Close the channel; it is opened again on the next read or write. */
+    public synchronized void close() throws IOException {
+        map = null;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * FreeSpaceMap remembers how many free tuple slots each page of a HeapFile
+ * has, so that an insert can go straight to a page with room instead of
+ * reading every page from the start of the file.
+ * <p>
+ * The map keeps one byte per page, the number of free slots capped at 255,
+ * in a side file next to the heap file (its name with ".fsm" appended),
+ * after the stamp of the heap file (see HeapFile#stamp). The byte of a page
+ * is written whenever the page itself is written, so the side file
+ * describes the pages on disk; other changes, e.g. of pages the side file
+ * did not cover when it was opened, are stored when the map is closed. A
+ * side file whose stamp does not match the heap file covers no pages.
+ * <p>
+ * The map is only a hint: a page may have more or less room than
+ * recorded, e.g. after an abort or a crash, and insertTuple checks the page
+ * and corrects the entry. Pages that the side file does not cover yet
+ * count as having room.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+    /** Entry of a page whose free space is not known */
+    private static final int UNKNOWN = 255;
+    /** The size of the stamp in front of the entries */
+    private static final int STAMP_BYTES = 16;
+
+    private final File heapFile;
+    private final File sideFile;
+    private final FileHandle handle;
+    private byte[] free;
+    private int numPages;
+    /** The number of pages the side file covered when it was opened */
+    private final int storedPages;
+    /** Whether entries changed since the side file was last written */
+    private boolean changed;
+
+    /**
+     * Open the free space map of a heap file.
+     *
+     * @param heapFile the file the map describes
+     * @param numPages the number of pages of the heap file
+     */
+    public FreeSpaceMap(File heapFile, int numPages) throws IOException {
+        File f = new File(heapFile.getPath() + ".fsm");
+        if (numPages == 0) {
+            // a new heap file; a side file left over from an old file with
+            // the same name would be wrong
+            f.delete();
+        }
+        this.heapFile = heapFile;
+        this.sideFile = f;
+        this.handle = new FileHandle(f);
+        this.free = new byte[Math.max(numPages, 16)];
+        java.util.Arrays.fill(free, (byte)UNKNOWN);
+        this.numPages = numPages;
+        int n = 0;
+        if (f.exists()) {
+            byte[] stamp = new byte[STAMP_BYTES];
+            if (handle.read(stamp, 0) == STAMP_BYTES
+                    && java.util.Arrays.equals(stamp, HeapFile.stamp(heapFile))) {
+                byte[] stored = new byte[numPages];
+                n = handle.read(stored, STAMP_BYTES);
+                System.arraycopy(stored, 0, free, 0, n);
+            } else {
+                handle.truncate(0);
+                changed = true;
+            }
+        }
+        this.storedPages = n;
+    }
+
+    /**
+     * The number of pages the side file covered when the map was opened;
+     * the entries of the pages after them are not known.
+     */
+    public int storedPages() {
+        return storedPages;
+    }
+
+    /** Free slots recorded for a page, at most 255 */
+    public synchronized int getFree(int pageNo) {
+        return pageNo < numPages ? free[pageNo] & 0xff : 0;
+    }
+
+    /**
+     * Record the free slots of a page in memory, e.g. after a tuple was
+     * inserted into or deleted from the cached page.
+     */
+    public synchronized void update(int pageNo, int freeSlots) {
+        if (pageNo >= free.length) {
+            free = java.util.Arrays.copyOf(free, Math.max(free.length * 2, pageNo + 1));
+            java.util.Arrays.fill(free, numPages, free.length, (byte)UNKNOWN);
+        }
+        numPages = Math.max(numPages, pageNo + 1);
+        byte b = (byte)Math.min(freeSlots, 255);
+        changed |= free[pageNo] != b;
+        free[pageNo] = b;
+    }
+
+    /**
+     * Record the free slots of a page that is written to disk, and store
+     * the entry in the side file.
+     */
+    public void written(int pageNo, int freeSlots) throws IOException {
+        update(pageNo, freeSlots);
+        handle.write(new byte[] { (byte)Math.min(freeSlots, 255) }, STAMP_BYTES + (long)pageNo);
+    }
+
+    /**
+     * Find a page that may have a free slot.
+     *
+     * @param start the page to start looking at; the search wraps around
+     * @return the page number, or -1 if every page is full
+     */
+    public synchronized int findPage(int start) {
+        if (numPages == 0) {
+            return -1;
+        }
+        start = Math.floorMod(start, numPages);
+        for (int i = 0; i < numPages; i++) {
+            int pageNo = (start + i) % numPages;
+            if (free[pageNo] != 0) {
+                return pageNo;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Forget the pages from pageNo on, after the heap file was truncated
+     * to pageNo pages.
+     */
+    public void truncate(int pageNo) throws IOException {
+        synchronized(this) {
+            if (pageNo < numPages) {
+                java.util.Arrays.fill(free, pageNo, numPages, (byte)UNKNOWN);
+                numPages = pageNo;
+            }
+        }
+        handle.truncate(STAMP_BYTES + (long)pageNo);
+    }
+
+    /**
+     * Find a page that may have a free slot among the pages first up to
+     * but not including end, without wrapping around.
+     *
+     * @return the page number, or -1 if all of them are full
+     */
+    public synchronized int findPage(int first, int end) {
+        for (int pageNo = Math.max(first, 0); pageNo < Math.min(end, numPages); pageNo++) {
+            if (free[pageNo] != 0) {
+                return pageNo;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Store the whole map in the side file, stamped with the heap file as
+     * it is now, and close it. Called once the heap file was closed.
+     */
+    public void close() throws IOException {
+        synchronized(this) {
+            if (changed) {
+                handle.write(java.util.Arrays.copyOf(free, numPages), STAMP_BYTES);
+                changed = false;
+            }
+        }
+        if (sideFile.exists()) {
+            handle.write(HeapFile.stamp(heapFile), 0);
+        }
+        handle.close();
+    }
+}
@@ -15,32 +15,59 @@ import java.util.*;
  */
 public class HeapFile implements DbFile {
 
+    /** Pages a bulk load appends with one write */
+    static final int BULK_PAGES = 256;
+
     private File file;
     private TupleDesc schema;
+    private final boolean slotted;
+    private final FileHandle handle;
+    private volatile boolean memoryMapped;
+    private FreeSpaceMap freeSpace;
+    private ZoneMap zoneMap;
 
     public class HeapIterator extends AbstractDbFileIterator {
         int pid;
         TransactionId tid;
         LinkedList<Tuple> tuples;
+        ReadAhead readAhead;
+        /** Pages that cannot hold a tuple satisfying all of these are
+            skipped */
+        final List<Predicate> predicates;
 
         public HeapIterator(TransactionId t_id) {
+            this(t_id, Collections.<Predicate>emptyList());
+        }
+
+        public HeapIterator(TransactionId t_id, List<Predicate> predicates) {
       			tuples = null;
       			tid = t_id;
+      			this.predicates = predicates;
         }
 
         public void open()
             throws DbException, TransactionAbortedException {
             tuples = new LinkedList<>();
             pid = 0;
-            HeapPage p = (HeapPage)Database.getBufferPool().getPage(tid, new HeapPageId(getId(), pid), Permissions.READ_ONLY);
-            if (p == null) {
-                return;
+            readAhead = new ReadAhead(getId());
+        }
+
+        /** Returns false if the zone map rules out page pgNo */
+        private boolean mayMatch(int pgNo) throws DbException {
+            if (predicates.isEmpty()) {
+                return true;
             }
-            Iterator<Tuple> it = p.iterator();
-            while (it.hasNext()) {
-                tuples.add(it.next());
+            try {
+                ZoneMap zm = zoneMap();
+                for (Predicate p : predicates) {
+                    if (!zm.mayMatch(pgNo, p)) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                throw new DbException("could not open zone map: " + e);
             }
-            pid++;
         }
 
         @Override
@@ -51,9 +78,13 @@ public class HeapFile implements DbFile {
                 return null;
             }
             while (tuples.size() == 0) {
-                if (pid >= numPages()) {
+                int len = numPages();
+                if (pid >= len) {
                     return null;
+                } else if (!mayMatch(pid)) {
+                    pid++;
                 } else {
+                    readAhead.access(pid, len);
                     HeapPage p = (HeapPage)Database.getBufferPool().getPage(tid, new HeapPageId(getId(), pid), Permissions.READ_ONLY);
                     if (p == null) {
                         return null;
@@ -78,6 +109,7 @@ public class HeapFile implements DbFile {
         public void close() {
             super.close();
             tuples = null;
+            readAhead = null;
             pid = 0;
         }
     }
@@ -90,8 +122,28 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, whose pages are
+     * SlottedHeapPages if slotted is true and HeapPages otherwise.
+     *
+     * @see SlottedHeapPage
+     */
+    public HeapFile(File f, TupleDesc td, boolean slotted) {
         this.file = f;
         this.schema = td;
+        this.slotted = slotted;
+        this.handle = new FileHandle(f);
+    }
+
+    /**
+     * Returns true if this file stores variable-length records on
+     * SlottedHeapPages instead of fixed-width slots.
+     */
+    public boolean isSlotted() {
+        return slotted;
     }
 
     /**
@@ -103,6 +155,19 @@ public class HeapFile implements DbFile {
         return file;
     }
 
+    /**
+     * Choose whether readPage builds pages straight from a memory mapping
+     * of the file instead of reading them with a system call. Meant for
+     * read-mostly tables, whose pages the operating system caches anyway.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -131,30 +196,132 @@ public class HeapFile implements DbFile {
       	    return null;
 
       	int pgNo = pid.getPageNumber();
-      	int offset = pgNo * BufferPool.getPageSize();
+      	long offset = (long)pgNo * BufferPool.getPageSize();
       	try {
-      	    RandomAccessFile raf = new RandomAccessFile(file, "r");
-      	    byte[] b = new byte[BufferPool.getPageSize()];
-      	    int readCnt = BufferPool.getPageSize();
-      	    raf.seek(offset);
-      	    raf.read(b, 0, readCnt);
-            raf.close();
-      	    return new HeapPage((HeapPageId)pid, b);
+      	    HeapPage p = null;
+      	    if (memoryMapped) {
+      	        java.nio.ByteBuffer image = handle.slice(offset, BufferPool.getPageSize());
+      	        if (image != null)
+      	            p = slotted ? new SlottedHeapPage((HeapPageId)pid, image)
+      	                        : new HeapPage((HeapPageId)pid, image);
+      	    }
+      	    if (p == null) {
+      	        byte[] b = new byte[BufferPool.getPageSize()];
+      	        handle.read(b, offset);
+      	        p = (HeapPage)createPage(pid, b);
+      	    }
+      	    return p;
       	} catch(Exception e) {
       	    System.out.println("readPage "+e);
       	    return null;
       	}
     }
 
+    // see DbFile.java for javadocs
+    public Page createPage(PageId pid, byte[] data) throws IOException {
+        return slotted ? new SlottedHeapPage((HeapPageId)pid, data)
+                       : new HeapPage((HeapPageId)pid, data);
+    }
+
+    /**
+     * An empty page of this file's format.
+     */
+    public HeapPage emptyPage(HeapPageId pid) throws IOException {
+        return (HeapPage)createPage(pid, HeapPage.createEmptyPageData());
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // not necessary for lab1
         int pageNo = page.getId().getPageNumber();
-        int offset = pageNo * BufferPool.getPageSize();
-        RandomAccessFile raf = new RandomAccessFile(file, "rw");
-        raf.seek(offset);
-        raf.write(page.getPageData());
-        raf.close();
+        long offset = (long)pageNo * BufferPool.getPageSize();
+        zoneMap().writing(pageNo, (HeapPage)page);
+        handle.write(page.getPageData(), offset);
+        freeSpace().written(pageNo, ((HeapPage)page).getNumEmptySlots());
+    }
+
+    /**
+     * Set the free space and zone map entries of a page from its image
+     * after an abort threw away the changes made to it in memory.
+     */
+    public void restored(HeapPage page) throws IOException {
+        int pageNo = page.getId().getPageNumber();
+        freeSpace().update(pageNo, page.getNumEmptySlots());
+        zoneMap().update(pageNo, page);
+    }
+
+    // see DbFile.java for javadocs
+    public void close() throws IOException {
+        handle.close();
+        synchronized(this) {
+            if (freeSpace != null) {
+                freeSpace.close();
+            }
+            if (zoneMap != null) {
+                zoneMap.close();
+            }
+        }
+    }
+
+    /**
+     * The free space map of this file, opened on first use. The pages its
+     * side file does not cover, e.g. all pages of a file written by
+     * HeapFileEncoder, are read from disk once then.
+     */
+    public synchronized FreeSpaceMap freeSpace() throws IOException {
+        if (freeSpace == null) {
+            FreeSpaceMap fsm = new FreeSpaceMap(file, numPages());
+            for (int i = fsm.storedPages(); i < numPages(); i++) {
+                fsm.update(i, readFromDisk(i).getNumEmptySlots());
+            }
+            freeSpace = fsm;
+        }
+        return freeSpace;
+    }
+
+    /**
+     * The zone map of this file, opened on first use. The pages whose
+     * ranges its side file does not hold are read from disk once then.
+     */
+    public synchronized ZoneMap zoneMap() throws IOException {
+        if (zoneMap == null) {
+            ZoneMap zm = new ZoneMap(file, schema, numPages());
+            for (int i = 0; i < numPages(); i++) {
+                if (!zm.isKnown(i)) {
+                    zm.update(i, readFromDisk(i));
+                }
+            }
+            zoneMap = zm;
+        }
+        return zoneMap;
+    }
+
+    /**
+     * The stamp the side files of heap file f store in front of their
+     * entries: the length and modification time of f when they were last
+     * closed. A side file with another stamp was left by an older file at
+     * the same path, or by a run that did not close it after f changed,
+     * and is not used.
+     */
+    static byte[] stamp(File f) {
+        return java.nio.ByteBuffer.allocate(16).putLong(f.length()).putLong(f.lastModified()).array();
+    }
+
+    /**
+     * Delete the side files of heap file f, e.g. before f is written anew.
+     */
+    static void deleteSideFiles(File f) {
+        new File(f.getPath() + ".fsm").delete();
+        new File(f.getPath() + ".zm").delete();
+    }
+
+    /** Read a page from disk, bypassing the BufferPool */
+    private HeapPage readFromDisk(int pgNo) throws IOException {
+        HeapPage p = (HeapPage)readPage(new HeapPageId(getId(), pgNo));
+        if (p == null) {
+            throw new IOException("cannot read page " + pgNo + " of " + file);
+        }
+        return p;
     }
 
     /**
@@ -169,28 +336,59 @@ public class HeapFile implements DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // not necessary for lab1
-        int len = numPages();
+        BufferPool bp = Database.getBufferPool();
+        FreeSpaceMap fsm = freeSpace();
+        ZoneMap zm = zoneMap();
+        // every thread starts looking at a different page, so concurrent
+        // inserters do not all queue for the lock of the same page
+        int start = (int)((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 33);
         int i;
-        for (i=0; i<len; i++) {
-            HeapPage p = (HeapPage)Database.getBufferPool().getPage(tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);
+        while ((i = fsm.findPage(start)) >= 0) {
+            HeapPageId pid = new HeapPageId(getId(), i);
+            boolean held = bp.holdsLock(tid, pid);
+            HeapPage p = (HeapPage)bp.getPage(tid, pid, Permissions.READ_WRITE);
             if (p == null) {
-                throw new DbException("Internal error");
+                if (i < numPages()) {
+                    throw new DbException("Internal error");
+                }
+                // the file was truncated while we waited for the lock
+                if (!held) {
+                    bp.manager.unlock(tid, pid);
+                }
+                start = 0;
+                continue;
             }
 
-            if (p.getNumEmptySlots() > 0) {
+            if (p.hasRoomFor(t)) {
                 p.insertTuple(t);
+                fsm.update(i, p.getNumEmptySlots());
+                zm.widen(i, t);
 
                 ArrayList<Page> a = new ArrayList<>();
                 a.add(p);
                 return a;
             }
-            Database.getBufferPool().manager.unlock(tid, new HeapPageId(getId(), i));
+            fsm.update(i, p.getNumEmptySlots());
+            if (!held) {
+                bp.manager.unlock(tid, pid);
+            }
+            start = i + 1;
         }
 
-        HeapPage p = new HeapPage(new HeapPageId(getId(), i), HeapPage.createEmptyPageData());
+        // the new page goes through the BufferPool like the others, so the
+        // transaction holds its lock and the update is logged
+        HeapPageId pid;
+        synchronized(this) {
+            pid = new HeapPageId(getId(), numPages());
+            // a page of this number may have been truncated away before
+            bp.discardPage(pid);
+            this.writePage(emptyPage(pid));
+        }
+        HeapPage p = (HeapPage)bp.getPage(tid, pid, Permissions.READ_WRITE);
         ArrayList<Page> a = new ArrayList<>();
-        this.writePage(p);
         p.insertTuple(t);
+        fsm.update(pid.getPageNumber(), p.getNumEmptySlots());
+        zm.widen(pid.getPageNumber(), t);
         a.add(p);
         return a;
     }
@@ -203,14 +401,208 @@ public class HeapFile implements DbFile {
         if (p == null)
           return null;
         p.deleteTuple(t);
+        try {
+            freeSpace().update(p.getId().getPageNumber(), p.getNumEmptySlots());
+        } catch (IOException e) {
+            throw new DbException("could not open free space map: " + e);
+        }
         ArrayList<Page> a = new ArrayList<>();
         a.add(p);
         return a;
     }
 
+    /**
+     * Move tuple t from its page to the first page numbered first up to but
+     * not including before that has room for it, on behalf of transaction
+     * tid, which write-locks both pages. The RecordId of t is updated.
+     *
+     * @return the pages dirtied, or null if none of the pages has room
+     * @see HeapFileCompactor
+     */
+    public ArrayList<Page> moveTuple(TransactionId tid, Tuple t, int first, int before)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        FreeSpaceMap fsm = freeSpace();
+        HeapPage from = (HeapPage)bp.getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
+        int i = first;
+        while ((i = fsm.findPage(i, before)) >= 0) {
+            HeapPageId pid = new HeapPageId(getId(), i);
+            boolean held = bp.holdsLock(tid, pid);
+            HeapPage p = (HeapPage)bp.getPage(tid, pid, Permissions.READ_WRITE);
+            if (p != null && p.hasRoomFor(t)) {
+                from.deleteTuple(t);
+                fsm.update(from.getId().getPageNumber(), from.getNumEmptySlots());
+                p.insertTuple(t);
+                fsm.update(i, p.getNumEmptySlots());
+                zoneMap().widen(i, t);
+
+                ArrayList<Page> a = new ArrayList<>();
+                a.add(from);
+                a.add(p);
+                return a;
+            }
+            if (p != null) {
+                fsm.update(i, p.getNumEmptySlots());
+            }
+            if (!held) {
+                bp.manager.unlock(tid, pid);
+            }
+            i++;
+        }
+        return null;
+    }
+
+    /**
+     * Remove the empty pages at the end of this file, e.g. after their
+     * tuples were moved to earlier pages. Transaction tid write-locks the
+     * pages first, so no one else is using them; the caller completes tid
+     * afterwards to release the locks. The pages are dropped from the
+     * BufferPool, the free space map and the zone map.
+     * <p>
+     * Pages are not logged when they are removed, so a recovery that redoes
+     * updates of removed pages writes them again, as empty pages.
+     *
+     * @return the number of pages removed
+     */
+    public int truncate(TransactionId tid)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        int n = numPages();
+        int keep = n;
+        while (keep > 0) {
+            HeapPage p = (HeapPage)bp.getPage(tid, new HeapPageId(getId(), keep - 1),
+                                               Permissions.READ_WRITE);
+            if (p != null && p.iterator().hasNext()) {
+                break;
+            }
+            keep--;
+        }
+        if (keep == n) {
+            return 0;
+        }
+        synchronized(this) {
+            if (numPages() != n) {
+                // pages were appended after the empty ones
+                return 0;
+            }
+            for (int i = keep; i < n; i++) {
+                bp.discardPage(new HeapPageId(getId(), i));
+            }
+            handle.truncate((long)keep * BufferPool.getPageSize());
+            freeSpace().truncate(keep);
+            zoneMap().truncate(keep);
+        }
+        return n - keep;
+    }
+
+    /**
+     * Append the tuples read from it to the end of this file on behalf of
+     * transaction tid. Unlike insertTuple this bypasses the BufferPool:
+     * tuples are packed into fresh pages, which are appended BULK_PAGES at a
+     * time with one sequential write. Instead of an update record per page
+     * the log gets one ALLOCATION record per write, and the file is forced
+     * before returning, so the pages are durable before tid commits. An
+     * abort empties the pages again.
+     * <p>
+     * The transaction holds write locks on the new pages until it completes.
+     *
+     * @return the number of tuples loaded
+     * @see LogFile#logAllocation
+     */
+    public int bulkLoad(TransactionId tid, OpIterator it)
+            throws DbException, IOException, TransactionAbortedException {
+        HeapPage[] batch = new HeapPage[BULK_PAGES];
+        int n = 0;
+        int count = 0;
+        // the pages get their numbers when they are appended; tuple record
+        // ids are not kept
+        HeapPageId unplaced = new HeapPageId(getId(), 0);
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (n == 0 || !batch[n - 1].hasRoomFor(t)) {
+                if (n == BULK_PAGES) {
+                    appendPages(tid, batch, n);
+                    n = 0;
+                }
+                batch[n++] = emptyPage(unplaced);
+            }
+            batch[n - 1].insertTuple(t);
+            count++;
+        }
+        if (n > 0) {
+            appendPages(tid, batch, n);
+            handle.force();
+        }
+        return count;
+    }
+
+    private void appendPages(TransactionId tid, HeapPage[] pages, int n)
+            throws IOException, TransactionAbortedException {
+        int pageSize = BufferPool.getPageSize();
+        byte[] data = new byte[n * pageSize];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(pages[i].getPageData(), 0, data, i * pageSize, pageSize);
+        }
+        BufferPool bp = Database.getBufferPool();
+        FreeSpaceMap fsm = freeSpace();
+        int first;
+        synchronized(this) {
+            // reserve the pages: the file grows by n empty pages, which no
+            // inserter picks as the free space map says they are full
+            first = numPages();
+            for (int i = 0; i < n; i++) {
+                fsm.update(first + i, 0);
+            }
+            handle.write(new byte[1], (long)(first + n) * pageSize - 1);
+        }
+        // not under the monitor: the holder of a lock may be waiting for it
+        for (int i = 0; i < n; i++) {
+            bp.manager.lockWrite(tid, new HeapPageId(getId(), first + i));
+        }
+        // write ahead: the record is forced before the pages are written
+        Database.getLogFile().logAllocation(tid, getId(), first, n);
+        bp.wroteThrough(tid);
+        ZoneMap zm = zoneMap();
+        for (int i = 0; i < n; i++) {
+            zm.writing(first + i, pages[i]);
+        }
+        handle.write(data, (long)first * pageSize);
+        for (int i = 0; i < n; i++) {
+            // a scan may have cached the page while it was empty
+            bp.discardPage(new HeapPageId(getId(), first + i));
+            fsm.update(first + i, pages[i].getNumEmptySlots());
+        }
+    }
+
+    /**
+     * Overwrite numPages pages starting at firstPage with empty pages and
+     * force them to disk. Used to undo a bulk load.
+     */
+    public void clearPages(int firstPage, int numPages) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        handle.write(new byte[numPages * pageSize], (long)firstPage * pageSize);
+        handle.force();
+        FreeSpaceMap fsm = freeSpace();
+        int empty = emptyPage(new HeapPageId(getId(), firstPage)).getNumEmptySlots();
+        for (int i = 0; i < numPages; i++) {
+            fsm.update(firstPage + i, empty);
+        }
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         return new HeapIterator(tid);
     }
 
+    /**
+     * Returns an iterator that skips the pages whose zone map ranges rule
+     * out one of the given predicates. The tuples of the pages it reads are
+     * all returned, so the caller still has to filter them.
+     *
+     * @see ZoneMap
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> predicates) {
+        return new HeapIterator(tid, new ArrayList<>(predicates));
+    }
+
 }
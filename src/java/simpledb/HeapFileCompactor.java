@@ -0,0 +1,124 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * HeapFileCompactor gives the pages emptied by deletes back to the file
+ * system. It moves the tuples of the last page of a HeapFile into free
+ * slots of earlier pages, then truncates the emptied page off the file,
+ * and repeats.
+ * <p>
+ * Each page is emptied by a transaction of its own, which write-locks only
+ * the last page and the pages it moves tuples to, besides the index pages
+ * it updates, and commits before the next page is started; so compaction
+ * can run alongside other transactions. A move that deadlocks with another
+ * transaction is retried a few times. Moved tuples get new RecordIds, which
+ * the BufferPool records in the secondary indexes of the table.
+ *
+ * @see HeapFile#moveTuple
+ * @see HeapFile#truncate
+ */
+public class HeapFileCompactor {
+
+    /** Times a page is tried again after its transaction was aborted */
+    private static final int RETRIES = 3;
+
+    private final HeapFile hf;
+    /** The pages before this one had no room when last looked at */
+    private int firstFree;
+
+    /**
+     * Create a compactor for a HeapFile in the catalog.
+     */
+    public HeapFileCompactor(HeapFile hf) {
+        this.hf = hf;
+    }
+
+    /**
+     * Compact the file as far as it goes.
+     *
+     * @return the number of pages reclaimed
+     */
+    public int compact() throws DbException, IOException {
+        return compact(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Compact the file until maxPages pages are reclaimed, or until the
+     * tuples of the last page no longer fit into the earlier pages.
+     *
+     * @return the number of pages reclaimed
+     */
+    public int compact(int maxPages) throws DbException, IOException {
+        int reclaimed = 0;
+        int failures = 0;
+        while (reclaimed < maxPages && failures <= RETRIES) {
+            int last = hf.numPages() - 1;
+            if (last < 0) {
+                break;
+            }
+            Transaction t = new Transaction();
+            t.start();
+            int removed = 0;
+            try {
+                if (!emptyPage(t.getId(), last)) {
+                    t.abort();
+                    break;
+                }
+                t.commit();
+
+                // a transaction of its own, as the pages must stay locked
+                // until they are gone
+                t = new Transaction();
+                t.start();
+                removed = hf.truncate(t.getId());
+                t.commit();
+            } catch (TransactionAbortedException e) {
+                // the pages it filled have room again
+                t.abort();
+                firstFree = 0;
+                failures++;
+                continue;
+            } catch (DbException | IOException e) {
+                t.abort();
+                throw e;
+            }
+            if (removed == 0) {
+                // someone inserted into the page again
+                failures++;
+            }
+            reclaimed += removed;
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Move all tuples of page pageNo to earlier pages.
+     *
+     * @return false if they do not all fit
+     */
+    private boolean emptyPage(TransactionId tid, int pageNo)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        HeapPage p = (HeapPage)bp.getPage(tid, new HeapPageId(hf.getId(), pageNo),
+                                           Permissions.READ_WRITE);
+        if (p == null) {
+            // truncated by someone else
+            return true;
+        }
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        Iterator<Tuple> it = p.iterator();
+        while (it.hasNext()) {
+            tuples.add(it.next());
+        }
+        for (Tuple t : tuples) {
+            int to = bp.moveTuple(tid, t, firstFree, pageNo);
+            if (to < 0) {
+                return false;
+            }
+            firstFree = to;
+        }
+        return true;
+    }
+}
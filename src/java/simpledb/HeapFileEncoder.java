@@ -1,7 +1,13 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.*;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -13,6 +19,11 @@ import java.util.ArrayList;
 
 public class HeapFileEncoder {
 
+  /** The bytes of input parsed by one task */
+  static final int CHUNK_BYTES = 1 << 20;
+  /** The bytes of pages written to the output file at once */
+  static final int WRITE_BYTES = 1 << 20;
+
   /** Convert the specified tuple list (with only integer fields) into a binary
    * page file. <br>
    *
@@ -66,14 +77,26 @@ public class HeapFileEncoder {
       convert(inFile,outFile,npagebytes,numFields,typeAr,',');
   }
 
+  public static void convert(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator)
+      throws IOException {
+      convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator,
+              Runtime.getRuntime().availableProcessors());
+  }
+
    /** Convert the specified input text file into a binary
     * page file. <br>
-    * Assume format of the input file is (note that only integer fields are
-    * supported):<br>
-    * int,...,int\n<br>
-    * int,...,int\n<br>
+    * Assume format of the input file is:<br>
+    * field,...,field\n<br>
+    * field,...,field\n<br>
     * ...<br>
-    * where each row represents a tuple.<br>
+    * where each row represents a tuple. Blank lines are skipped.<br>
+    * <p>
+    * The input is read in chunks of whole lines, which are parsed into
+    * records on <tt>threads</tt> worker threads. The records are packed
+    * into pages in input order and written in large sequential writes. At
+    * most two chunks per thread are in memory at a time, so huge files are
+    * converted in bounded memory.
     * <p>
     * The format of the output file will be as specified in HeapPage and
     * HeapFile.
@@ -84,11 +107,15 @@ public class HeapFileEncoder {
     * @param outFile The output file to write data to
     * @param npagebytes The number of bytes per page in the output file
     * @param numFields the number of fields in each input line/output tuple
+    * @param typeAr the types of the fields
+    * @param fieldSeparator the character between two fields of a line
+    * @param threads the number of threads parsing the input
+    * @return the number of tuples written
     * @throws IOException if the input/output file can't be opened or a
     *   malformed input line is encountered
     */
-  public static void convert(File inFile, File outFile, int npagebytes,
-                 int numFields, Type[] typeAr, char fieldSeparator)
+  public static long convert(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator, int threads)
       throws IOException {
 
       int nrecbytes = 0;
@@ -96,130 +123,250 @@ public class HeapFileEncoder {
           nrecbytes += typeAr[i].getLen();
       }
       int nrecords = (npagebytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
-      
-    //  per record, we need one bit; there are nrecords per page, so we need
-    // nrecords bits, i.e., ((nrecords/32)+1) integers.
-    int nheaderbytes = (nrecords / 8);
-    if (nheaderbytes * 8 < nrecords)
-        nheaderbytes++;  //ceiling
-    int nheaderbits = nheaderbytes * 8;
-
-    BufferedReader br = new BufferedReader(new FileReader(inFile));
-    FileOutputStream os = new FileOutputStream(outFile);
-
-    // our numbers probably won't be much larger than 1024 digits
-    char buf[] = new char[1024];
-
-    int curpos = 0;
-    int recordcount = 0;
-    int npages = 0;
-    int fieldNo = 0;
-
-    ByteArrayOutputStream headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-    DataOutputStream headerStream = new DataOutputStream(headerBAOS);
-    ByteArrayOutputStream pageBAOS = new ByteArrayOutputStream(npagebytes);
-    DataOutputStream pageStream = new DataOutputStream(pageBAOS);
-
-    boolean done = false;
-    boolean first = true;
-    while (!done) {
-        int c = br.read();
-        
-        // Ignore Windows/Notepad special line endings
-        if (c == '\r')
-            continue;
-
-        if (c == '\n') {
-            if (first)
-                continue;
-            recordcount++;
-            first = true;
-        } else
-            first = false;
-        if (c == fieldSeparator || c == '\n' || c == '\r') {
-            String s = new String(buf, 0, curpos);
-            if (typeAr[fieldNo] == Type.INT_TYPE) {
-                try {
-                    pageStream.writeInt(Integer.parseInt(s.trim()));
-                } catch (NumberFormatException e) {
-                    System.out.println ("BAD LINE : " + s);
-                }
-            }
-            else   if (typeAr[fieldNo] == Type.STRING_TYPE) {
-                s = s.trim();
-                int overflow = Type.STRING_LEN - s.length();
-                if (overflow < 0) {
-                    String news = s.substring(0,Type.STRING_LEN);
-                    s  = news;
-                }
-                pageStream.writeInt(s.length());
-                pageStream.writeBytes(s);
-                while (overflow-- > 0)
-                    pageStream.write((byte)0);
-            }
-            curpos = 0;
-            if (c == '\n')
-                fieldNo = 0;
-            else
-                fieldNo++;
-            
-        } else if (c == -1) {
-            done = true;
-        } else {
-            buf[curpos++] = (char)c;
-            continue;
-        }
-        
-        // if we wrote a full page of records, or if we're done altogether,
-        // write out the header of the page.
-        //
-        // in the header, write a 1 for bits that correspond to records we've
-        // written and 0 for empty slots.
-        //
-        // when we're done, also flush the page to disk, but only if it has
-        // records on it.  however, if this file is empty, do flush an empty
-        // page to disk.
-        if (recordcount >= nrecords
-            || done && recordcount > 0
-            || done && npages == 0) {
-            int i = 0;
-            byte headerbyte = 0;
-            
-            for (i=0; i<nheaderbits; i++) {
-                if (i < recordcount)
-                    headerbyte |= (1 << (i % 8));
-                
-                if (((i+1) % 8) == 0) {
-                    headerStream.writeByte(headerbyte);
-                    headerbyte = 0;
-                }
-            }
-            
-            if (i % 8 > 0)
-                headerStream.writeByte(headerbyte);
-            
-            // pad the rest of the page with zeroes
-            
-            for (i=0; i<(npagebytes - (recordcount * nrecbytes + nheaderbytes)); i++)
-                pageStream.writeByte(0);
-            
-            // write header and body to file
-            headerStream.flush();
-            headerBAOS.writeTo(os);
-            pageStream.flush();
-            pageBAOS.writeTo(os);
-            
-            // reset header and body for next page
-            headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-            headerStream = new DataOutputStream(headerBAOS);
-            pageBAOS = new ByteArrayOutputStream(npagebytes);
-            pageStream = new DataOutputStream(pageBAOS);
-            
-            recordcount = 0;
-            npages++;
-        }
-    }
-    br.close();
-    os.close();
+      final Type[] types = Arrays.copyOf(typeAr, numFields);
+      final int recbytes = nrecbytes;
+
+      ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+              Thread t = new Thread(r, "HeapFileEncoder");
+              t.setDaemon(true);
+              return t;
+          });
+      ArrayDeque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+      // the free space and zone maps of an old file at this path would be wrong
+      HeapFile.deleteSideFiles(outFile);
+      try (FileChannel in = FileChannel.open(inFile.toPath(), StandardOpenOption.READ);
+           FileChannel out = FileChannel.open(outFile.toPath(), StandardOpenOption.WRITE,
+                   StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+          PageWriter writer = new PageWriter(out, npagebytes, nrecords, nrecbytes);
+          byte[] carry = new byte[0];
+          long offset = 0;
+          boolean eof = false;
+          while (!eof) {
+              // fill a chunk after the partial line left from the last one
+              byte[] buf = Arrays.copyOf(carry, Math.max(CHUNK_BYTES, carry.length * 2));
+              int len = carry.length;
+              int end = -1;
+              while (end < 0 && !eof) {
+                  if (len == buf.length) {
+                      // a line longer than a chunk
+                      buf = Arrays.copyOf(buf, buf.length * 2);
+                  }
+                  int n = in.read(ByteBuffer.wrap(buf, len, buf.length - len));
+                  if (n < 0) {
+                      eof = true;
+                      end = len;
+                  } else {
+                      for (int i = len + n - 1; i >= len; i--) {
+                          if (buf[i] == '\n') {
+                              end = i + 1;
+                              break;
+                          }
+                      }
+                      len += n;
+                  }
+              }
+              carry = Arrays.copyOfRange(buf, end, len);
+
+              if (pending.size() >= 2 * threads) {
+                  writer.add(next(pending));
+              }
+              final byte[] chunk = buf;
+              final int chunkEnd = end;
+              final long chunkOffset = offset;
+              pending.add(workers.submit(() -> encode(chunk, chunkEnd, chunkOffset,
+                      types, recbytes, (byte)fieldSeparator, inFile)));
+              offset += end;
+          }
+          while (!pending.isEmpty()) {
+              writer.add(next(pending));
+          }
+          writer.finish();
+          return writer.tuples;
+      } finally {
+          workers.shutdownNow();
+      }
+  }
+
+  /** Wait for the oldest chunk being encoded */
+  private static Chunk next(ArrayDeque<Future<Chunk>> pending) throws IOException {
+      try {
+          return pending.remove().get();
+      } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+      } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException)
+              throw (IOException)e.getCause();
+          throw new RuntimeException(e.getCause());
+      }
+  }
+
+  /** The records of the lines of a chunk, one after the other */
+  private static class Chunk {
+      byte[] records;
+      int count;
+  }
+
+  /**
+   * Parse the lines in buf[0..len) into records.
+   *
+   * @param offset the position of buf in the input file, for errors
+   */
+  private static Chunk encode(byte[] buf, int len, long offset, Type[] typeAr,
+                              int nrecbytes, byte fieldSeparator, File inFile)
+      throws IOException {
+      Chunk c = new Chunk();
+      c.records = new byte[Math.max(nrecbytes, len / 4 / nrecbytes * nrecbytes)];
+      int pos = 0;
+      while (pos < len) {
+          int eol = pos;
+          while (eol < len && buf[eol] != '\n')
+              eol++;
+          int lineStart = pos;
+          int start = pos;
+          pos = eol + 1;
+          if (isBlank(buf, start, eol))
+              continue;
+
+          if ((c.count + 1) * nrecbytes > c.records.length)
+              c.records = Arrays.copyOf(c.records, c.records.length * 2);
+          int out = c.count * nrecbytes;
+          for (int f = 0; f < typeAr.length; f++) {
+              int end = start;
+              while (end < eol && buf[end] != fieldSeparator)
+                  end++;
+              if (start > eol || f == typeAr.length - 1 && end < eol)
+                  throw new IOException(inFile + ": line at byte " + (offset + lineStart)
+                          + " does not have " + typeAr.length + " fields");
+              // trim the field
+              int s = start, e = end;
+              while (s < e && (buf[s] & 0xff) <= ' ')
+                  s++;
+              while (e > s && (buf[e - 1] & 0xff) <= ' ')
+                  e--;
+              if (typeAr[f] == Type.INT_TYPE) {
+                  putInt(c.records, out, parseInt(buf, s, e));
+              } else if (typeAr[f] == Type.STRING_TYPE) {
+                  int n = Math.min(e - s, Type.STRING_LEN);
+                  putInt(c.records, out, n);
+                  // the rest of the string is already zero
+                  System.arraycopy(buf, s, c.records, out + 4, n);
+              }
+              out += typeAr[f].getLen();
+              start = end + 1;
+          }
+          c.count++;
+      }
+      return c;
+  }
+
+  private static boolean isBlank(byte[] buf, int start, int end) {
+      for (int i = start; i < end; i++) {
+          if ((buf[i] & 0xff) > ' ')
+              return false;
+      }
+      return true;
+  }
+
+  private static int parseInt(byte[] buf, int start, int end) {
+      int i = start;
+      boolean negative = i < end && buf[i] == '-';
+      if (negative || i < end && buf[i] == '+')
+          i++;
+      long v = 0;
+      boolean ok = i < end && end - i <= 10;
+      for (; ok && i < end; i++) {
+          int d = buf[i] - '0';
+          ok = d >= 0 && d <= 9;
+          v = v * 10 + d;
+      }
+      if (negative)
+          v = -v;
+      if (!ok || v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) {
+          System.out.println ("BAD LINE : " + new String(buf, start, end - start));
+          return 0;
+      }
+      return (int)v;
+  }
+
+  private static void putInt(byte[] b, int off, int v) {
+      b[off] = (byte)(v >>> 24);
+      b[off + 1] = (byte)(v >>> 16);
+      b[off + 2] = (byte)(v >>> 8);
+      b[off + 3] = (byte)v;
+  }
+
+  /**
+   * Packs records into pages and writes them to a channel, many pages at a
+   * time.
+   */
+  private static class PageWriter {
+      private final FileChannel out;
+      private final int npagebytes;
+      private final int nrecords;
+      private final int nrecbytes;
+      private final int nheaderbytes;
+      private final ByteBuffer buffer;
+      private final byte[] page;
+      private int recordcount;
+      private long npages;
+      long tuples;
+
+      PageWriter(FileChannel out, int npagebytes, int nrecords, int nrecbytes) {
+          this.out = out;
+          this.npagebytes = npagebytes;
+          this.nrecords = nrecords;
+          this.nrecbytes = nrecbytes;
+          //  per record, we need one bit; there are nrecords per page, so we need
+          // nrecords bits, rounded up to whole bytes.
+          this.nheaderbytes = (nrecords + 7) / 8;
+          this.buffer = ByteBuffer.allocateDirect(Math.max(1, WRITE_BYTES / npagebytes) * npagebytes);
+          this.page = new byte[npagebytes];
+      }
+
+      void add(Chunk c) throws IOException {
+          int done = 0;
+          while (done < c.count) {
+              int n = Math.min(c.count - done, nrecords - recordcount);
+              System.arraycopy(c.records, done * nrecbytes, page,
+                               nheaderbytes + recordcount * nrecbytes, n * nrecbytes);
+              recordcount += n;
+              done += n;
+              if (recordcount == nrecords)
+                  writePage();
+          }
+          tuples += c.count;
+      }
+
+      /**
+       * Write the last page if it has records on it, or an empty page if the
+       * file is empty, and flush the buffered pages.
+       */
+      void finish() throws IOException {
+          if (recordcount > 0 || npages == 0)
+              writePage();
+          flush();
+      }
+
+      private void writePage() throws IOException {
+          // in the header, write a 1 for bits that correspond to records we've
+          // written and 0 for empty slots.
+          for (int i = 0; i < recordcount; i++)
+              page[i / 8] |= (byte)(1 << (i % 8));
+          // the page was cleared after the last write, so the rest of it is
+          // already padded with zeroes
+          if (buffer.remaining() < npagebytes)
+              flush();
+          buffer.put(page);
+          Arrays.fill(page, 0, nheaderbytes + recordcount * nrecbytes, (byte)0);
+          recordcount = 0;
+          npages++;
+      }
+
+      private void flush() throws IOException {
+          buffer.flip();
+          while (buffer.hasRemaining())
+              out.write(buffer);
+          buffer.clear();
+      }
   }
 }
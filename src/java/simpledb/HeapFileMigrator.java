@@ -0,0 +1,64 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * HeapFileMigrator copies a table into a HeapFile of another page format,
+ * e.g. from the fixed-width slots of HeapPage to the variable-length records
+ * of SlottedHeapPage. The copy is a bulk load, so it writes the new file
+ * sequentially and logs only its page allocations.
+ * <p>
+ * The new file is a separate file; to switch a table over, replace its
+ * .dat file with the new one and mark it slotted in the catalog file.
+ *
+ * @see HeapFile#bulkLoad
+ * @see Catalog#loadSchema
+ */
+public class HeapFileMigrator {
+
+    /**
+     * Copy all tuples of from into to, in one transaction. Both files must
+     * be in the catalog and have the same TupleDesc.
+     *
+     * @return the number of tuples copied
+     */
+    public static int migrate(HeapFile from, HeapFile to)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!from.getTupleDesc().equals(to.getTupleDesc())) {
+            throw new DbException("the tables have different TupleDescs");
+        }
+        Transaction t = new Transaction();
+        t.start();
+        boolean done = false;
+        try {
+            SeqScan scan = new SeqScan(t.getId(), from.getId(), "");
+            scan.open();
+            int count = to.bulkLoad(t.getId(), scan);
+            scan.close();
+            t.commit();
+            done = true;
+            return count;
+        } finally {
+            if (!done) {
+                t.abort();
+            }
+        }
+    }
+
+    /**
+     * Copy the table stored in file in, with fixed-width slots, into a new
+     * file out with variable-length records.
+     *
+     * @return the number of tuples copied
+     */
+    public static int toSlotted(File in, File out, TupleDesc td)
+            throws DbException, IOException, TransactionAbortedException {
+        new FileOutputStream(out).close();
+        HeapFile.deleteSideFiles(out);
+        HeapFile from = new HeapFile(in, td);
+        HeapFile to = new HeapFile(out, td, true);
+        Database.getCatalog().addTable(from);
+        Database.getCatalog().addTable(to);
+        return migrate(from, to);
+    }
+}
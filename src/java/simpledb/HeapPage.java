@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
@@ -15,15 +16,24 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
+    /**
+     * The image of the page, the only copy of its tuples: they are decoded
+     * when read and encoded into their slot when inserted. A page read from
+     * a mapped file reads the mapping in place through buf, with data null,
+     * until it is first changed.
+     */
+    byte[] data;
+    ByteBuffer buf;
+    final int headerSize;
     boolean dirty = false;
     TransactionId dirtyingTid = null;
     final int numSlots;
 
 
+    /** The image before the first change since setBeforeImage, or null if
+        the page was not changed since */
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    final Byte oldDataLock=new Byte((byte)0);
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -37,32 +47,49 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The page keeps a copy of data and decodes nothing up front.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+        this.data = image();
+        this.buf = ByteBuffer.wrap(this.data);
+    }
+
+    /**
+     * Create a HeapPage from a buffer holding its image, e.g. a slice of a
+     * memory mapped file. The page reads the buffer in place and copies it
+     * only when it is first changed, so the buffer must not change while
+     * the page is cached.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        this.headerSize = getHeaderSize();
+        int len = BufferPool.getPageSize();
+        if (data.remaining() < len) {
+            throw new IOException("short page image: " + data.remaining() + " bytes");
         }
-        dis.close();
+        ByteBuffer image = data.slice();
+        image.limit(len);
+        this.buf = image.asReadOnlyBuffer();
+    }
 
-        setBeforeImage();
+    /**
+     * For subclasses with another page format, which keep the tuples
+     * themselves and override the methods that use the image.
+     */
+    protected HeapPage(HeapPageId id) {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = 0;
+        this.headerSize = 0;
+        this.data = null;
+        this.buf = null;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -88,9 +115,9 @@ public class HeapPage implements Page {
             byte[] oldDataRef = null;
             synchronized(oldDataLock)
             {
-                oldDataRef = oldData;
+                oldDataRef = oldData != null ? oldData : data;
             }
-            return new HeapPage(pid,oldDataRef);
+            return new HeapPage(pid, oldDataRef != null ? oldDataRef : image());
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -99,13 +126,40 @@ public class HeapPage implements Page {
         return null;
     }
 
+    /**
+     * Make the current contents the before-image. The image is copied only
+     * when the page is changed next.
+     */
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-            oldData = getPageData().clone();
+            oldData = null;
         }
     }
 
+    /**
+     * Keep the before-image, and take the image out of the mapped file if
+     * it is still there; called before the image changes in place
+     */
+    private void beforeChange() {
+        synchronized(oldDataLock)
+        {
+            if (data == null) {
+                data = image();
+                buf = ByteBuffer.wrap(data);
+            }
+            if (oldData == null)
+                oldData = data.clone();
+        }
+    }
+
+    /** A copy of the current image */
+    private byte[] image() {
+        byte[] b = new byte[BufferPool.getPageSize()];
+        buf.duplicate().get(b);
+        return b;
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -114,37 +168,51 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Decode the tuple in a used slot.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+    private Tuple readTuple(int slotId) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slotId));
+        int off = headerSize + slotId * td.getSize();
+        for (int j=0; j<td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            if (type == Type.INT_TYPE) {
+                t.setField(j, new IntField(buf.getInt(off)));
+            } else {
+                // as Type.STRING_TYPE.parse reads it
+                int len = Math.min(Math.max(buf.getInt(off), 0), Type.STRING_LEN);
+                byte[] s = new byte[len];
+                ByteBuffer in = buf.duplicate();
+                in.position(off + 4);
+                in.get(s);
+                t.setField(j, new StringField(new String(s), Type.STRING_LEN));
             }
-            return null;
+            off += type.getLen();
         }
+        return t;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+    /**
+     * Encode t into a slot.
+     */
+    private void writeTuple(int slotId, Tuple t) {
+        int off = headerSize + slotId * td.getSize();
+        for (int j=0; j<td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            Field f = t.getField(j);
+            if (type == Type.INT_TYPE) {
+                buf.putInt(off, ((IntField)f).getValue());
+            } else {
+                // as StringField.serialize writes it
+                String s = ((StringField)f).getValue();
+                int len = Math.min(s.length(), Type.STRING_LEN);
+                buf.putInt(off, len);
+                for (int k=0; k<len; k++)
+                    data[off + 4 + k] = (byte)s.charAt(k);
+                Arrays.fill(data, off + 4 + len, off + type.getLen(), (byte)0);
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+            off += type.getLen();
         }
-
-        return t;
     }
 
     /**
@@ -159,64 +227,10 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+        synchronized(oldDataLock)
+        {
+            return data != null ? data.clone() : image();
         }
-
-        return baos.toByteArray();
     }
 
     /**
@@ -250,7 +264,11 @@ public class HeapPage implements Page {
             throw new DbException("tuple number not matches or not used");
         }
 
-        markSlotUsed(t.getRecordId().getTupleNumber(), false);
+        int i = t.getRecordId().getTupleNumber();
+        beforeChange();
+        markSlotUsed(i, false);
+        // empty slots are zero on disk
+        Arrays.fill(data, headerSize + i * td.getSize(), headerSize + (i + 1) * td.getSize(), (byte)0);
     }
 
     /**
@@ -268,12 +286,13 @@ public class HeapPage implements Page {
             throw new DbException("TupleDesc not matches");
         }
 
-        for (int i=0; i<getNumTuples(); i++) {
+        for (int i=0; i<numSlots; i++) {
             if (isSlotUsed(i)) {
                 continue;
             }
+            beforeChange();
+            writeTuple(i, t);
             markSlotUsed(i, true);
-            tuples[i] = t;
             t.setRecordId(new RecordId(this.pid, i));
             break;
         }
@@ -307,14 +326,46 @@ public class HeapPage implements Page {
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
-      	// TODO:
-      	//      better approach
-      	int sum = 0;
-      	for (int i=0; i<getNumTuples(); i++) {
-          if (!isSlotUsed(i))
-            sum++;
+        int used = 0;
+        for (int i=0; i<headerSize; i++)
+            used += Integer.bitCount(buf.get(i) & 0xff);
+        return numSlots - used;
+    }
+
+    /**
+     * Returns true if t can be added to this page.
+     */
+    public boolean hasRoomFor(Tuple t) {
+        return getNumEmptySlots() > 0;
+    }
+
+    /**
+     * Widen min[i]..max[i] to cover int field fields[i] of every tuple on
+     * this page.
+     */
+    void intRanges(int[] fields, int[] min, int[] max) {
+        int[] offsets = new int[fields.length];
+        for (int i=0; i<fields.length; i++) {
+            for (int j=0; j<fields[i]; j++)
+                offsets[i] += td.getFieldType(j).getLen();
         }
-        return sum;
+        for (int slot = nextUsed(0); slot < numSlots; slot = nextUsed(slot + 1)) {
+            int off = headerSize + slot * td.getSize();
+            for (int i=0; i<fields.length; i++) {
+                int v = buf.getInt(off + offsets[i]);
+                min[i] = Math.min(min[i], v);
+                max[i] = Math.max(max[i], v);
+            }
+        }
+    }
+
+    /**
+     * @return the tuple in slot i, or null if the slot is empty
+     */
+    public Tuple getTuple(int i) {
+        if (i < 0 || i >= numSlots || !isSlotUsed(i))
+            return null;
+        return readTuple(i);
     }
 
     /**
@@ -324,7 +375,7 @@ public class HeapPage implements Page {
       	int nslot = i / 8;
       	int noffset = i % 8;
 
-        return (header[nslot] & (1 << noffset))!=0;
+        return (buf.get(nslot) & (1 << noffset))!=0;
     }
 
     /**
@@ -336,9 +387,9 @@ public class HeapPage implements Page {
         int noffset = i % 8;
 
         if (value)
-          header[nslot] |= 1 << noffset;
+          data[nslot] |= 1 << noffset;
         else
-          header[nslot] &= ~(1 << noffset);
+          data[nslot] &= ~(1 << noffset);
     }
 
     /**
@@ -346,14 +397,27 @@ public class HeapPage implements Page {
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
-      	ArrayList<Tuple> tps = new ArrayList<>();
-      	for (int i=0; i<numSlots; i++) {
-      	    int n = i / 8; // num
-      	    int m = i % 8; // offset
-      	    if ((header[n] & (1<<m)) != 0) {
-      		      tps.add(tuples[i]);
-      	    }
-      	}
-        return tps.iterator();
+        // tuples are decoded as the iterator gets to them
+        return new Iterator<Tuple>() {
+            int next = nextUsed(0);
+
+            public boolean hasNext() {
+                return next < numSlots;
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = readTuple(next);
+                next = nextUsed(next + 1);
+                return t;
+            }
+        };
+    }
+
+    private int nextUsed(int i) {
+        while (i < numSlots && !isSlotUsed(i))
+            i++;
+        return i;
     }
 }
@@ -0,0 +1,56 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LRUPolicy evicts the least recently used page. This is the default
+ * policy of the BufferPool.
+ * <p>
+ * Every hit relinks the page in the recency order, so access has to take
+ * the monitor of this policy.
+ */
+public class LRUPolicy implements ReplacementPolicy {
+
+    /** Pages in recency order, least recently used first */
+    private final LinkedHashMap<PageId, Boolean> order;
+
+    public LRUPolicy(int capacity) {
+        order = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public synchronized void insert(PageId pid) {
+        order.put(pid, Boolean.TRUE);
+    }
+
+    public synchronized void access(PageId pid) {
+        // get() relinks the entry in an access ordered map
+        order.get(pid);
+    }
+
+    public synchronized void remove(PageId pid) {
+        order.remove(pid);
+    }
+
+    public synchronized PageId evict(Evictable evictable) {
+        Iterator<PageId> it = order.keySet().iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.canEvict(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public synchronized List<PageId> coldest(int n) {
+        List<PageId> cold = new ArrayList<>(n);
+        for (PageId pid : order.keySet()) {
+            if (cold.size() >= n) {
+                break;
+            }
+            cold.add(pid);
+        }
+        return cold;
+    }
+}
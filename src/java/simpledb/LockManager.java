@@ -31,18 +31,14 @@ public class LockManager {
     public LockManager() {
         transMap = new ConcurrentHashMap<>();
         pageMap = new ConcurrentHashMap<>();
-        deadList = new HashSet<>();
+        deadList = ConcurrentHashMap.newKeySet();
     }
 
     // TODO
     //   can we do this better??
     //   is there some nice notify way to kill the pid?
     private boolean checkForDeath(TransactionId tid) {
-        if (this.deadList.contains(tid)) {
-            this.deadList.remove(tid);
-            return true;
-        }
-        return false;
+        return this.deadList.remove(tid);
     }
 
     private void setDeath(TransactionId tid) {
@@ -63,18 +59,13 @@ public class LockManager {
         // because the same tid will not happnen the same time
         // TODO:
         //    CAN WE DO BETTER?
-        RWLock l;
-        synchronized(this) {
-            l = pageMap.get(pid);
-            if (l == null) {
-                l = new RWLock(pid);
-                pageMap.put(pid, l);
-            }
-            if (checkForDeath(tid)) {
-                if (((ReentrantLock)(l.lock)).isLocked())
-                    l.lock.unlock();
-                throw new TransactionAbortedException();
-            }
+        // pageMap and deadList are concurrent, so the common path does not
+        // need to serialize on the lock manager
+        RWLock l = pageMap.computeIfAbsent(pid, p -> new RWLock(p));
+        if (checkForDeath(tid)) {
+            if (((ReentrantLock)(l.lock)).isLocked())
+                l.lock.unlock();
+            throw new TransactionAbortedException();
         }
 
 
@@ -141,16 +132,9 @@ public class LockManager {
 
     public void lockWrite (TransactionId tid, PageId pid)
           throws TransactionAbortedException {
-        RWLock l;
-        synchronized(this) {
-            l = pageMap.get(pid);
-            if (l == null) {
-                l = new RWLock(pid);
-                pageMap.put(pid, l);
-            }
-            if (checkForDeath(tid)) {
-                throw new TransactionAbortedException();
-            }
+        RWLock l = pageMap.computeIfAbsent(pid, p -> new RWLock(p));
+        if (checkForDeath(tid)) {
+            throw new TransactionAbortedException();
         }
 
         l.lock.lock();
@@ -245,17 +229,9 @@ public class LockManager {
 
 
     public void unlock(TransactionId tid, PageId pid) {
-        RWLock l;
-        synchronized(this) {
-            l = pageMap.get(pid);
-            if (l == null) {
-                l = new RWLock(pid);
-                pageMap.put(pid, l);
-            }
-            if (checkForDeath(tid)) {
-                this.deadList.remove(tid);
-            }
-        }
+        // a wounded tid stays marked until it completes, also when it
+        // releases single pages before that
+        RWLock l = pageMap.computeIfAbsent(pid, p -> new RWLock(p));
 
         try {
             l.lock.lock();
@@ -290,23 +266,60 @@ public class LockManager {
                 l.lock.unlock();
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            // a failed unlock must not leave the page's latch held
+            if (((ReentrantLock)(l.lock)).isHeldByCurrentThread())
+                l.lock.unlock();
         }
     }
 
 
     public boolean holdsLock(TransactionId tid, PageId pid) {
         synchronized(this) {
+            // no put here, it could replace a lock just taken through
+            // computeIfAbsent
             RWLock l = pageMap.get(pid);
             if (l == null) {
-                l = new RWLock(pid);
-                pageMap.put(pid, l);
                 return false;
             }
             return transMap.get(tid) != null && transMap.get(tid).contains(l.pid) != false;
         }
     }
 
+    /** Whether tid holds the exclusive lock on pid */
+    public boolean holdsWriteLock(TransactionId tid, PageId pid) {
+        synchronized(this) {
+            RWLock l = pageMap.get(pid);
+            return l != null && l.isWriteLocked && holdsLock(tid, pid);
+        }
+    }
+
+    /**
+     * Keep locks on pid from being taken or released until unlatch(pid), so
+     * the page can be written without anyone starting to change it.
+     *
+     * @return the transaction that holds the exclusive lock on pid, or null
+     */
+    public TransactionId latch(PageId pid) {
+        RWLock l = pageMap.computeIfAbsent(pid, p -> new RWLock(p));
+        l.lock.lock();
+        if (!l.isWriteLocked) {
+            return null;
+        }
+        for (Map.Entry<TransactionId, Set<PageId>> e: transMap.entrySet()) {
+            if (e.getValue().contains(pid)) {
+                return e.getKey();
+            }
+        }
+        return null;
+    }
+
+    public void unlatch(PageId pid) {
+        pageMap.get(pid).lock.unlock();
+    }
+
     public void cleanTransaction(TransactionId tid) {
         this.transMap.remove(tid);
+        checkForDeath(tid);
     }
 }
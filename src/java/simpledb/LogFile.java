@@ -51,8 +51,8 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, REDOONLY and ALLOCATION
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -67,6 +67,11 @@ of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
 for each active transaction.
 
+<li> ALLOCATION records describe pages appended to a HeapFile by a bulk
+load, which writes the pages to disk itself instead of logging them.  They
+consist of an integer table id, the integer number of the first page, and
+the integer count of pages.  Undoing the record empties those pages.
+
 </ul>
 
 */
@@ -83,6 +88,7 @@ public class LogFile {
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
     static final int REDOONLY_RECORD = 6;
+    static final int ALLOCATION_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
@@ -219,6 +225,50 @@ public class LogFile {
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
+    /** Write an ALLOCATION record for pages a bulk load appends to a
+        HeapFile, and force the log to disk, so that the record is
+        durable before the pages are written.
+
+        @param tid The transaction appending the pages
+        @param tableId The table the pages belong to
+        @param firstPage The number of the first appended page
+        @param numPages The number of appended pages
+
+        @see simpledb.HeapFile#bulkLoad
+    */
+    public synchronized void logAllocation(TransactionId tid, int tableId,
+                                           int firstPage, int numPages)
+        throws IOException {
+        preAppend();
+        raf.writeInt(ALLOCATION_RECORD);
+        raf.writeLong(tid.getId());
+        raf.writeInt(tableId);
+        raf.writeInt(firstPage);
+        raf.writeInt(numPages);
+        raf.writeLong(currentOffset);
+        currentOffset = raf.getFilePointer();
+        force();
+    }
+
+    /** Undo an ALLOCATION record whose type and tid were read: empty its
+        pages on disk.
+        @return the emptied pages
+    */
+    private List<PageId> undoAllocation() throws IOException {
+        int tableId = raf.readInt();
+        int firstPage = raf.readInt();
+        int numPages = raf.readInt();
+        HeapFile f = (HeapFile)Database.getCatalog().getDatabaseFile(tableId);
+        f.clearPages(firstPage, numPages);
+        List<PageId> pids = new ArrayList<PageId>();
+        for (int i = 0; i < numPages; i++) {
+            HeapPageId pid = new HeapPageId(tableId, firstPage + i);
+            Database.getBufferPool().discardPage(pid);
+            pids.add(pid);
+        }
+        return pids;
+    }
+
     void writePageData(RandomAccessFile raf, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
@@ -266,7 +316,8 @@ public class LogFile {
             }
             pid = (PageId)idConsts[0].newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+            // the constructor that builds a page from its image
+            Constructor<?> pageConst = pageClass.getDeclaredConstructor(idClass, byte[].class);
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
@@ -276,7 +327,7 @@ public class LogFile {
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
@@ -291,6 +342,9 @@ public class LogFile {
         } catch (InvocationTargetException e) {
             e.printStackTrace();
             throw new IOException();
+        } catch (NoSuchMethodException e) {
+            e.printStackTrace();
+            throw new IOException();
         }
         return newPage;
 
@@ -434,6 +488,11 @@ public class LogFile {
                 case BEGIN_RECORD:
                     tidToFirstLogRecord.put(record_tid,newStart);
                     break;
+                case ALLOCATION_RECORD:
+                    for (int i = 0; i < 3; i++) {
+                        logNew.writeInt(raf.readInt());
+                    }
+                    break;
                 }
 
                 //all xactions finish with a pointer
@@ -476,10 +535,30 @@ public class LogFile {
                 // CLR is also recommanded
 
                 Long record = tidToFirstLogRecord.get(tid.getId());
+                if (record == null) {
+                    // no BEGIN record, e.g. a transaction that only ran
+                    // through the BufferPool; look at the whole log
+                    record = (long)LONG_SIZE;
+                }
+
+                // a page stolen by the BufferPool and read back may be
+                // logged again with the stolen image as before-image, so
+                // only the first before-image of each page is restored
+                HashSet<PageId> undone = new HashSet<>();
+                // pages emptied by undoing a bulk load, which recovery does
+                // not redo
+                HashSet<PageId> cleared = new HashSet<>();
                 while (record < raf.length()) {
                     raf.seek(record);
                     int recordType = raf.readInt();
                     Long recordTid = raf.readLong();
+                    if (recordType == ALLOCATION_RECORD && recordTid == tid.getId()) {
+                        List<PageId> pids = undoAllocation();
+                        undone.addAll(pids);
+                        cleared.addAll(pids);
+                        record = raf.getFilePointer() + LONG_SIZE;
+                        continue;
+                    }
                     if (recordType != UPDATE_RECORD || recordTid != tid.getId()) {
                         long off = 0;
                         switch (recordType) {
@@ -487,6 +566,9 @@ public class LogFile {
                                 readPageData(raf);
                                 readPageData(raf);
                                 break;
+                            case ALLOCATION_RECORD:
+                                off += 3 * INT_SIZE;
+                                break;
                             case CHECKPOINT_RECORD:
                                 int numXactions = raf.readInt();
                                 off += numXactions * 2 * LONG_SIZE;
@@ -507,11 +589,20 @@ public class LogFile {
                         continue;
                     }
                     Page beforeImage = readPageData(raf);
-                    Database.getCatalog().getDatabaseFile(beforeImage.getId().getTableId()).writePage(beforeImage);
-                    Database.getBufferPool().discardPage(beforeImage.getId());
                     readPageData(raf);
                     raf.readLong();
                     record = raf.getFilePointer();
+                    if (!undone.add(beforeImage.getId())) {
+                        if (!cleared.remove(beforeImage.getId())) {
+                            continue;
+                        }
+                        // recovery redoes this update, so log the emptied
+                        // page after it
+                        HeapFile f = (HeapFile)Database.getCatalog().getDatabaseFile(beforeImage.getId().getTableId());
+                        beforeImage = f.emptyPage((HeapPageId)beforeImage.getId());
+                    }
+                    Database.getCatalog().getDatabaseFile(beforeImage.getId().getTableId()).writePage(beforeImage);
+                    Database.getBufferPool().discardPage(beforeImage.getId());
                     raf.seek(currentOffset);
                     preAppend();
                     raf.writeInt(REDOONLY_RECORD);
@@ -522,6 +613,7 @@ public class LogFile {
                     currentOffset = raf.getFilePointer();
                 }
                 raf.seek(this.currentOffset);
+                Database.getBufferPool().rolledBack(tid);
             }
         }
     }
@@ -602,6 +694,10 @@ public class LogFile {
                     Page after = readPageData(raf);
                     Database.getCatalog().getDatabaseFile(after.getId().getTableId()).writePage(after);
                     break;
+                  case ALLOCATION_RECORD:
+                    // the pages were forced before the commit record
+                    raf.skipBytes(3 * INT_SIZE);
+                    break;
                   default:
                     throw new RuntimeException("Erro page type");
                   }
@@ -620,13 +716,24 @@ public class LogFile {
                 UndoStartPoint = (long)LONG_SIZE;
               }
               record = UndoStartPoint;
+              // only the first before-image of each page is restored, see
+              // rollback
+              HashSet<PageId> undone = new HashSet<>();
               while (record < raf.length()) {
                   raf.seek(record);
                   int recordType = raf.readInt();
                   Long recordTid = raf.readLong();
+                  if (recordType == ALLOCATION_RECORD && ATT.containsKey(recordTid)) {
+                      undone.addAll(undoAllocation());
+                      record = raf.getFilePointer() + LONG_SIZE;
+                      continue;
+                  }
                   if (recordType != UPDATE_RECORD) {
                       long off = 0;
                       switch (recordType) {
+                      case ALLOCATION_RECORD:
+                        off = 3 * INT_SIZE;
+                        break;
                       case CHECKPOINT_RECORD:
                         int numXactions = raf.readInt();
                         off = LONG_SIZE * numXactions * 2;
@@ -653,9 +760,12 @@ public class LogFile {
                     continue;
                   }
                   Page beforeImage = readPageData(raf);
-                  Database.getCatalog().getDatabaseFile(beforeImage.getId().getTableId()).writePage(beforeImage);
                   readPageData(raf);
                   record = raf.getFilePointer() + LONG_SIZE;
+                  if (!undone.add(beforeImage.getId())) {
+                    continue;
+                  }
+                  Database.getCatalog().getDatabaseFile(beforeImage.getId().getTableId()).writePage(beforeImage);
 
 
                   raf.seek(currentOffset);
@@ -710,6 +820,12 @@ public class LogFile {
           case ABORT_RECORD:
             System.out.printf("%d ABORT\n", recordTid);
             break;
+          case ALLOCATION_RECORD:
+            int tableId = raf.readInt();
+            int firstPage = raf.readInt();
+            System.out.printf("%d ALLOCATION TABLE %d PAGES %d-%d\n", recordTid,
+                              tableId, firstPage, firstPage + raf.readInt() - 1);
+            break;
           default:
             throw new RuntimeException("Erro page type");
           }
@@ -6,6 +6,7 @@ import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
+import java.util.TreeSet;
 
 /**
  * LogicalPlan represents a logical query plan that has been through
@@ -271,6 +272,72 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** The fields of the table scanned as alias that the query refers to,
+     *   so that a columnar table can read only those.
+     *  @return the indexes of the fields in td, or null if the query needs
+     *   all of them
+     */
+    private int[] referencedFields(String alias, TupleDesc td) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (LogicalSelectListNode si : selectList)
+            names.add(si.fname);
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.tableAlias + "." + lf.fieldPureName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.t1Alias + "." + lj.f1PureName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                names.add(lj.t2Alias + "." + lj.f2PureName);
+        }
+        if (hasAgg) {
+            names.add(aggField);
+            if (groupByField != null)
+                names.add(groupByField);
+        }
+        if (hasOrderBy)
+            names.add(oByField);
+
+        TreeSet<Integer> fields = new TreeSet<Integer>();
+        for (String name : names) {
+            String[] parts = name.split("[.]");
+            if (parts.length != 2)
+                return null;
+            if (parts[1].equals("*") && (parts[0].equals("null") || parts[0].equals(alias)))
+                return null;
+            if (!parts[0].equals(alias))
+                continue;
+            try {
+                fields.add(td.fieldNameToIndex(parts[1]));
+            } catch (NoSuchElementException e) {
+                return null;
+            }
+        }
+        int[] columns = new int[fields.size()];
+        int i = 0;
+        for (int f : fields)
+            columns[i++] = f;
+        return columns;
+    }
+
+    /** The constant of a filter on a string field. For a dictionary encoded
+     *   column this is the field of the constant's code, so that the filter
+     *   compares codes instead of strings.
+     */
+    private Field dictionaryConstant(LogicalFilterNode lf) throws ParsingException {
+        DbFile file = Database.getCatalog().getDatabaseFile(getTableId(lf.tableAlias));
+        if (file instanceof ColumnarFile) {
+            StringDictionary dict = ((ColumnarFile)file).getDictionary(
+                    file.getTupleDesc().fieldNameToIndex(lf.fieldPureName));
+            if (dict != null) {
+                try {
+                    return dict.field(lf.c);
+                } catch (java.io.IOException e) {
+                    throw new ParsingException("could not read the dictionary of " + lf.fieldQuantifiedName);
+                }
+            }
+        }
+        return new StringField(lf.c, Type.STRING_LEN);
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -299,6 +366,11 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table " + table.t);
             }
 
+            int[] columns = referencedFields(table.alias, Database.getCatalog().getTupleDesc(table.t));
+            if (columns != null) {
+                ss.setColumns(columns);
+            }
+
             subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
@@ -326,7 +398,7 @@ public class LogicalPlan {
             if (ftyp == Type.INT_TYPE)
                 f = new IntField(new Integer(lf.c).intValue());
             else
-                f = new StringField(lf.c, Type.STRING_LEN);
+                f = dictionaryConstant(lf);
 
             Predicate p = null;
             try {
@@ -334,6 +406,12 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
+            // the scan can skip pages that no tuple passing p is on
+            OpIterator scan = subplan;
+            while (scan instanceof Filter)
+                scan = ((Filter)scan).getChildren()[0];
+            if (scan instanceof SeqScan)
+                ((SeqScan)scan).addPredicate(p);
             subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
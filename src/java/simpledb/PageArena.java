@@ -0,0 +1,119 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * PageArena keeps the images of clean pages in a fixed amount of direct
+ * memory, outside of the Java heap, so the garbage collector never has to
+ * look at them.
+ * <p>
+ * The BufferPool uses an arena as a second tier behind its frames of
+ * decoded pages: a clean page that is evicted from the pool is copied into
+ * the arena, and a page missing from the pool is rebuilt from the arena
+ * (see {@link DbFile#createPage}) before going to disk. A page is never in
+ * both tiers at the same time, so the arena never holds a stale image of a
+ * page that was modified in the pool.
+ * <p>
+ * When the arena is full, the least recently stored image is dropped.
+ *
+ * @Threadsafe
+ */
+public class PageArena {
+    /** Largest direct buffer allocated in one piece */
+    private static final int SEGMENT_BYTES = 1 << 30;
+
+    private final ByteBuffer[] segments;
+    private final int frameSize;
+    private final int framesPerSegment;
+    /** Length of the image stored in each frame */
+    private final int[] lengths;
+    private final ArrayDeque<Integer> freeFrames;
+    /** Stored page ids and their frames, oldest first */
+    private final LinkedHashMap<PageId, Integer> frameOf;
+
+    /**
+     * Allocates the arena.
+     *
+     * @param numFrames number of page images the arena can hold
+     * @param frameSize size of the largest page image, in bytes
+     */
+    public PageArena(int numFrames, int frameSize) {
+        this.frameSize = frameSize;
+        this.framesPerSegment = Math.max(SEGMENT_BYTES / frameSize, 1);
+        int numSegments = (numFrames + framesPerSegment - 1) / framesPerSegment;
+        this.segments = new ByteBuffer[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            int frames = Math.min(framesPerSegment, numFrames - i * framesPerSegment);
+            segments[i] = ByteBuffer.allocateDirect(frames * frameSize);
+        }
+        this.lengths = new int[numFrames];
+        this.freeFrames = new ArrayDeque<>(numFrames);
+        for (int i = 0; i < numFrames; i++) {
+            freeFrames.add(i);
+        }
+        this.frameOf = new LinkedHashMap<>();
+    }
+
+    public int getNumFrames() {
+        return lengths.length;
+    }
+
+    /**
+     * Copy the image of a clean page into the arena, dropping the oldest
+     * image if there is no free frame.
+     */
+    public synchronized void put(Page p) {
+        byte[] data = p.getPageData();
+        if (data.length > frameSize || lengths.length == 0) {
+            return;
+        }
+
+        Integer frame = frameOf.remove(p.getId());
+        if (frame == null) {
+            frame = freeFrames.poll();
+        }
+        if (frame == null) {
+            Iterator<Map.Entry<PageId, Integer>> it = frameOf.entrySet().iterator();
+            frame = it.next().getValue();
+            it.remove();
+        }
+
+        frame(frame).put(data);
+        lengths[frame] = data.length;
+        frameOf.put(p.getId(), frame);
+    }
+
+    /**
+     * Remove the image of a page from the arena and return it.
+     *
+     * @return a copy of the page image, or null if the page is not stored
+     */
+    public synchronized byte[] take(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame == null) {
+            return null;
+        }
+        byte[] data = new byte[lengths[frame]];
+        frame(frame).get(data);
+        freeFrames.push(frame);
+        return data;
+    }
+
+    /**
+     * Forget the image of a page, e.g. because the page was changed on disk.
+     */
+    public synchronized void remove(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame != null) {
+            freeFrames.push(frame);
+        }
+    }
+
+    /** A buffer positioned at the start of the frame */
+    private ByteBuffer frame(int frame) {
+        ByteBuffer b = segments[frame / framesPerSegment].duplicate();
+        b.position((frame % framesPerSegment) * frameSize);
+        return b;
+    }
+}
@@ -0,0 +1,70 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * PageCleaner is the background writer of a BufferPool. Every few
+ * milliseconds it looks at the pages at the cold end of the replacement
+ * order of each partition and writes the dirty ones, so that a query that
+ * needs a free frame finds a clean victim instead of writing a page itself.
+ * <p>
+ * The cleaner writes at most maxPagesPerSecond pages, and only while the
+ * pool has fewer than targetCleanPages free frames. It stops on its own
+ * once its BufferPool is no longer the pool of the Database.
+ * <p>
+ * Only pages of committed transactions are written, so the cleaner is of
+ * use with NO-FORCE commits only; BufferPool does not start it otherwise.
+ *
+ * @see BufferPool#startCleaner
+ */
+public class PageCleaner extends Thread {
+    /** Milliseconds between two rounds of the cleaner */
+    private static final long INTERVAL = 20;
+
+    private final BufferPool pool;
+    private final int targetCleanPages;
+    private final int maxPagesPerSecond;
+    private volatile boolean running;
+
+    public PageCleaner(BufferPool pool, int targetCleanPages, int maxPagesPerSecond) {
+        super("PageCleaner");
+        this.pool = pool;
+        this.targetCleanPages = targetCleanPages;
+        this.maxPagesPerSecond = maxPagesPerSecond;
+        this.running = true;
+        setDaemon(true);
+    }
+
+    public void run() {
+        // pages the cleaner may still write, refilled every round
+        double allowance = 0;
+        while (running && Database.getBufferPool() == pool) {
+            try {
+                Thread.sleep(INTERVAL);
+            } catch (InterruptedException e) {
+                break;
+            }
+            allowance = Math.min(allowance + maxPagesPerSecond * INTERVAL / 1000.0,
+                                 Math.max(maxPagesPerSecond, 1));
+            if (allowance < 1) {
+                continue;
+            }
+            try {
+                allowance -= pool.cleanColdPages(targetCleanPages, (int)allowance);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Stop the cleaner and wait for its current round to end. */
+    public void shutdown() {
+        // not interrupted, it may be in the middle of writing a page
+        running = false;
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
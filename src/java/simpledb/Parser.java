@@ -395,6 +395,171 @@ public class Parser {
         return insertQ;
     }
 
+    private static final java.util.regex.Pattern COPY_STATEMENT = java.util.regex.Pattern.compile(
+            "\\s*copy\\s+(\\w+)\\s+from\\s+'([^']*)'(?:\\s+delimiter\\s+'(.)')?\\s*;?\\s*",
+            java.util.regex.Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Handle COPY table FROM 'file' [DELIMITER 'c'], which bulk loads a text
+     * file with one tuple per line (fields separated by ',' by default) into
+     * a table. Zql does not know the statement, so it is parsed here.
+     */
+    public Query handleCopyStatement(String s, TransactionId tId)
+            throws DbException, simpledb.ParsingException {
+        java.util.regex.Matcher m = COPY_STATEMENT.matcher(s);
+        if (!m.matches()) {
+            throw new simpledb.ParsingException(
+                    "Expected COPY table FROM 'file' [DELIMITER 'c']");
+        }
+        int tableId;
+        try {
+            tableId = Database.getCatalog().getTableId(m.group(1));
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table : "
+                    + m.group(1));
+        }
+        char delimiter = m.group(3) == null ? ',' : m.group(3).charAt(0);
+        OpIterator source = new DelimitedFileScan(new File(m.group(2)),
+                Database.getCatalog().getTupleDesc(tableId), delimiter);
+        Query copyQ = new Query(tId);
+        copyQ.setPhysicalPlan(new BulkInsert(tId, source, tableId));
+        return copyQ;
+    }
+
+    private static final java.util.regex.Pattern VACUUM_STATEMENT = java.util.regex.Pattern.compile(
+            "\\s*vacuum\\s+(\\w+)\\s*;?\\s*", java.util.regex.Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Handle VACUUM table, which compacts a heap file after deletes and
+     * prints the number of pages reclaimed. The compaction runs its own
+     * transactions, so it cannot be part of a user transaction.
+     */
+    public void handleVacuumStatement(String s)
+            throws DbException, IOException, simpledb.ParsingException {
+        java.util.regex.Matcher m = VACUUM_STATEMENT.matcher(s);
+        if (!m.matches()) {
+            throw new simpledb.ParsingException("Expected VACUUM table");
+        }
+        if (inUserTrans) {
+            throw new simpledb.ParsingException("VACUUM cannot run inside a transaction");
+        }
+        DbFile f;
+        try {
+            f = Database.getCatalog().getDatabaseFile(
+                    Database.getCatalog().getTableId(m.group(1)));
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table : " + m.group(1));
+        }
+        if (!(f instanceof HeapFile)) {
+            throw new simpledb.ParsingException("Only heap files can be vacuumed");
+        }
+        HeapFile hf = (HeapFile) f;
+        int reclaimed = new HeapFileCompactor(hf).compact();
+        System.out.println("Reclaimed " + reclaimed + " pages of " + m.group(1)
+                + ", " + hf.numPages() + " pages left.");
+    }
+
+    private static final java.util.regex.Pattern CREATE_INDEX_STATEMENT = java.util.regex.Pattern.compile(
+            "\\s*create\\s+index\\s+(\\w+)\\s+on\\s+(\\w+)\\s*\\(\\s*(\\w+)\\s*\\)\\s*;?\\s*",
+            java.util.regex.Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Handle CREATE INDEX name ON table (field), which builds a secondary
+     * index on a field of a heap file in the file name.idx next to the
+     * table's, and adds it to the catalog and to the catalog file. The index
+     * is built by a transaction of its own, so it cannot be part of a user
+     * transaction.
+     */
+    public void handleCreateIndexStatement(String s)
+            throws DbException, IOException, TransactionAbortedException,
+            simpledb.ParsingException {
+        java.util.regex.Matcher m = CREATE_INDEX_STATEMENT.matcher(s);
+        if (!m.matches()) {
+            throw new simpledb.ParsingException(
+                    "Expected CREATE INDEX name ON table (field)");
+        }
+        if (inUserTrans) {
+            throw new simpledb.ParsingException("CREATE INDEX cannot run inside a transaction");
+        }
+        String name = m.group(1);
+        boolean exists = true;
+        try {
+            Database.getCatalog().getTableId(name);
+        } catch (NoSuchElementException e) {
+            exists = false;
+        }
+        if (exists) {
+            throw new simpledb.ParsingException("Table " + name + " already exists");
+        }
+        DbFile f;
+        try {
+            f = Database.getCatalog().getDatabaseFile(
+                    Database.getCatalog().getTableId(m.group(2)));
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table : " + m.group(2));
+        }
+        if (!(f instanceof HeapFile)) {
+            throw new simpledb.ParsingException("Only heap files can be indexed");
+        }
+        HeapFile hf = (HeapFile) f;
+        int field;
+        try {
+            field = hf.getTupleDesc().fieldNameToIndex(m.group(3));
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown field : " + m.group(3));
+        }
+
+        File indexFile = new File(hf.getFile().getAbsoluteFile().getParentFile(), name + ".idx");
+        // never overwrite the entries of another index
+        if (!indexFile.createNewFile()) {
+            throw new simpledb.ParsingException("Index file " + indexFile + " already exists");
+        }
+        SecondaryIndex index = new SecondaryIndex(name, hf, field, indexFile);
+        Database.getCatalog().addIndex(index);
+        Transaction t = new Transaction();
+        t.start();
+        boolean done = false;
+        try {
+            index.build(t.getId());
+            t.commit();
+            Database.getCatalog().saveIndex(index);
+            done = true;
+        } finally {
+            if (!done) {
+                t.abort();
+                Database.getCatalog().removeIndex(index);
+                indexFile.delete();
+            }
+        }
+        System.out.println("Created index " + name + " on " + m.group(2) + "."
+                + m.group(3) + ".");
+    }
+
+    /** The most a statement is read ahead to see whether Zql knows it */
+    private static final int PEEK_LIMIT = 1 << 16;
+
+    /**
+     * If the next statement is a COPY, VACUUM or CREATE INDEX statement,
+     * which Zql does not know, read and return all of it; otherwise leave in
+     * where it was, for Zql to read, and return null. in must support mark.
+     */
+    private String readCustomStatement(InputStream in) throws IOException {
+        in.mark(PEEK_LIMIT);
+        ByteArrayOutputStream stmt = new ByteArrayOutputStream();
+        int c;
+        while (stmt.size() < PEEK_LIMIT && (c = in.read()) >= 0 && c != ';') {
+            stmt.write(c);
+        }
+        String s = stmt.toString("UTF-8");
+        if (stmt.size() < PEEK_LIMIT && (COPY_STATEMENT.matcher(s).matches()
+                || VACUUM_STATEMENT.matcher(s).matches()
+                || CREATE_INDEX_STATEMENT.matcher(s).matches())) {
+            return s;
+        }
+        in.reset();
+        return null;
+    }
+
     public Query handleDeleteStatement(ZDelete s, TransactionId tid)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
@@ -502,10 +667,31 @@ public class Parser {
         }
     }
 
+    /**
+     * Run the next statement of is. The statement is read ahead with mark
+     * and reset, so a stream that does not support mark is buffered here,
+     * and what the buffer read ahead of the statement is lost to the caller;
+     * to run several statements from one stream, pass it buffered.
+     */
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
+            if (!is.markSupported()) {
+                is = new BufferedInputStream(is);
+            }
+            String copy = readCustomStatement(is);
+            if (copy != null && VACUUM_STATEMENT.matcher(copy).matches()) {
+                handleVacuumStatement(copy);
+                return;
+            }
+            if (copy != null && CREATE_INDEX_STATEMENT.matcher(copy).matches()) {
+                handleCreateIndexStatement(copy);
+                return;
+            }
+            ZStatement s = null;
+            if (copy == null) {
+                ZqlParser p = new ZqlParser(is);
+                s = p.readStatement();
+            }
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -518,7 +704,9 @@ public class Parser {
                             + curtrans.getId().getId());
                 }
                 try {
-                    if (s instanceof ZInsert)
+                    if (copy != null)
+                        query = handleCopyStatement(copy, curtrans.getId());
+                    else if (s instanceof ZInsert)
                         query = handleInsertStatement((ZInsert) s,
                                 curtrans.getId());
                     else if (s instanceof ZDelete)
@@ -531,7 +719,7 @@ public class Parser {
                         System.out
                                 .println("Can't parse "
                                         + s
-                                        + "\n -- parser only handles SQL transactions, insert, delete, and select statements");
+                                        + "\n -- parser only handles SQL transactions, insert, delete, select, copy, vacuum and create index statements");
                     }
 
                     if (query != null)
@@ -582,7 +770,8 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "copy", "vacuum",
+            "create index" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -600,6 +789,7 @@ public class Parser {
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
+        Database.shutdown();
         System.out.println("Bye");
     }
 
@@ -643,7 +833,8 @@ public class Parser {
                 }
 
                 long startTime = System.currentTimeMillis();
-                processNextStatement(new FileInputStream(new File(queryFile)));
+                processNextStatement(new BufferedInputStream(
+                        new FileInputStream(new File(queryFile))));
                 long time = System.currentTimeMillis() - startTime;
                 System.out.printf("----------------\n%.2f seconds\n\n",
                         ((double) time / 1000.0));
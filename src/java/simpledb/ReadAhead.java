@@ -0,0 +1,82 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ReadAhead watches the pages one scan reads from a file. Once the scan
+ * has read a few consecutive pages it asks the BufferPool to prefetch the
+ * next pages, so that the disk reads overlap with the processing of the
+ * pages before them.
+ * <p>
+ * The number of pages read ahead adapts to how fast the scan consumes
+ * them: it doubles whenever the scan asks for a page whose prefetch has
+ * not finished yet, and halves when a prefetched page was evicted before
+ * the scan got to it.
+ */
+public class ReadAhead {
+    /** Consecutive pages read before the scan counts as sequential */
+    private static final int SEQUENTIAL_RUN = 2;
+    private static final int MIN_WINDOW = 2;
+
+    private final int tableId;
+    private final int maxWindow;
+    private int window;
+    private int last;
+    private int run;
+    /** Highest page number prefetched so far */
+    private int prefetchedUpTo;
+
+    public ReadAhead(int tableId) {
+        this.tableId = tableId;
+        this.maxWindow = Math.max(Database.getBufferPool().getNumPages() / 4, MIN_WINDOW);
+        this.window = MIN_WINDOW;
+        this.last = -1;
+        this.run = 0;
+        this.prefetchedUpTo = -1;
+    }
+
+    /**
+     * Called before the scan reads page pgNo.
+     *
+     * @param numPages the number of pages in the file
+     */
+    public void access(int pgNo, int numPages) {
+        if (pgNo != last + 1) {
+            run = 0;
+            window = MIN_WINDOW;
+            prefetchedUpTo = pgNo;
+        }
+        last = pgNo;
+        if (++run < SEQUENTIAL_RUN) {
+            return;
+        }
+
+        BufferPool bp = Database.getBufferPool();
+        if (pgNo <= prefetchedUpTo) {
+            HeapPageId pid = new HeapPageId(tableId, pgNo);
+            if (bp.isPrefetching(pid)) {
+                // the scan is waiting for the disk, read further ahead
+                window = Math.min(window * 2, maxWindow);
+            } else if (!bp.isCached(pid)) {
+                // read ahead too far, the page did not stay in the pool
+                window = Math.max(window / 2, MIN_WINDOW);
+            }
+        }
+
+        int end = Math.min(pgNo + window, numPages - 1);
+        if (end <= prefetchedUpTo) {
+            return;
+        }
+        List<PageId> pids = new ArrayList<>();
+        for (int i = Math.max(prefetchedUpTo, pgNo) + 1; i <= end; i++) {
+            pids.add(new HeapPageId(tableId, i));
+        }
+        prefetchedUpTo = end;
+        bp.prefetchPages(pids);
+    }
+
+    /** The number of pages currently read ahead */
+    public int getWindow() {
+        return window;
+    }
+}
@@ -0,0 +1,68 @@
+package simpledb;
+
+import java.util.List;
+
+/**
+ * ReplacementPolicy decides which page of a BufferPool partition is evicted
+ * when the pool runs out of frames. Each partition of the BufferPool owns
+ * its own instance, created through a {@link Factory} given to the
+ * BufferPool constructor.
+ * <p>
+ * insert, remove, evict and coldest are always called while the partition
+ * is locked.
+ * access is called on the buffer hit path without any lock held, so it must
+ * be safe to run concurrently with itself and with the other methods, and
+ * must ignore page ids the policy does not know (again).
+ *
+ * @see BufferPool#BufferPool(int, ReplacementPolicy.Factory)
+ */
+public interface ReplacementPolicy {
+
+    /** Creates the policy instance of one BufferPool partition. */
+    public interface Factory {
+        /**
+         * @param capacity the number of frames the partition is expected to
+         *   hold; partitions share the frames of the pool, so this is only a
+         *   hint.
+         */
+        public ReplacementPolicy create(int capacity);
+    }
+
+    /** Tells evict whether a page may be chosen as victim. */
+    public interface Evictable {
+        public boolean canEvict(PageId pid);
+    }
+
+    /**
+     * A page was read into the partition.
+     */
+    public void insert(PageId pid);
+
+    /**
+     * A page that is cached in the partition was requested again.
+     */
+    public void access(PageId pid);
+
+    /**
+     * A page left the partition without being chosen by evict, e.g. because
+     * it was discarded.
+     */
+    public void remove(PageId pid);
+
+    /**
+     * Choose a victim among the cached pages and forget about it.
+     *
+     * @param evictable pages for which this returns false must not be chosen
+     * @return the id of the victim, or null if no page can be evicted
+     */
+    public PageId evict(Evictable evictable);
+
+    /**
+     * The pages evict would choose first, in that order, without changing
+     * any state of the policy. Used by the page cleaner to write dirty pages
+     * before they are needed as victims.
+     *
+     * @param n the maximum number of pages to return
+     */
+    public List<PageId> coldest(int n);
+}
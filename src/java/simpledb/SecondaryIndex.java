@@ -0,0 +1,169 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * A SecondaryIndex maps the values of one field of a HeapFile to the
+ * RecordIds of the tuples that have them. Its entries are the tuples
+ * (key, page number, tuple number) of a BTreeFile keyed on their first
+ * field, so a lookup reads a few pages of the tree and then only the heap
+ * pages with matching tuples instead of scanning the whole table.
+ * <p>
+ * Once the index is registered with {@link Catalog#addIndex}, the
+ * BufferPool keeps its entries up to date as tuples of the table are
+ * inserted, deleted and moved, in the transaction that changes the table.
+ *
+ * @see BufferPool#insertTuple
+ * @see BufferPool#deleteTuple
+ * @see BufferPool#moveTuple
+ */
+public class SecondaryIndex {
+
+    private final String name;
+    private final HeapFile table;
+    private final int keyField;
+    private final BTreeFile tree;
+
+    /**
+     * Open the index stored in file f on field keyField of table.
+     *
+     * @param name the name of the index, under which its BTreeFile is
+     *   registered in the catalog
+     * @param table the indexed table
+     * @param keyField the index of the indexed field in the table's TupleDesc
+     * @param f the file that stores the entries of the index
+     */
+    public SecondaryIndex(String name, HeapFile table, int keyField, File f) {
+        this.name = name;
+        this.table = table;
+        this.keyField = keyField;
+        TupleDesc td = table.getTupleDesc();
+        this.tree = new BTreeFile(f, 0, new TupleDesc(
+                new Type[] { td.getFieldType(keyField), Type.INT_TYPE, Type.INT_TYPE },
+                new String[] { td.getFieldName(keyField), "page", "tuple" }));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** @return the indexed table */
+    public HeapFile getTable() {
+        return table;
+    }
+
+    /** @return the index of the indexed field in the table's TupleDesc */
+    public int getKeyField() {
+        return keyField;
+    }
+
+    /** @return the BTreeFile that stores the entries of this index */
+    public BTreeFile getFile() {
+        return tree;
+    }
+
+    /** The entry of tuple t of the table, stored with RecordId rid */
+    private Tuple entry(Tuple t, RecordId rid) {
+        Tuple e = new Tuple(tree.getTupleDesc());
+        e.setField(0, t.getField(keyField));
+        e.setField(1, new IntField(rid.getPageId().getPageNumber()));
+        e.setField(2, new IntField(rid.getTupleNumber()));
+        return e;
+    }
+
+    /**
+     * Add the entry of tuple t, which was just inserted into the table, on
+     * behalf of transaction tid.
+     */
+    public void insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Database.getBufferPool().insertTuple(tid, tree.getId(), entry(t, t.getRecordId()));
+    }
+
+    /**
+     * Remove the entry of tuple t, which was stored with RecordId rid, on
+     * behalf of transaction tid.
+     *
+     * @throws DbException if the index has no such entry
+     */
+    public void deleteTuple(TransactionId tid, Tuple t, RecordId rid)
+            throws DbException, IOException, TransactionAbortedException {
+        Tuple wanted = entry(t, rid);
+        DbFileIterator it = tree.indexIterator(tid,
+                new IndexPredicate(Predicate.Op.EQUALS, wanted.getField(0)));
+        it.open();
+        Tuple found = null;
+        while (found == null && it.hasNext()) {
+            Tuple e = it.next();
+            if (e.getField(1).equals(wanted.getField(1)) && e.getField(2).equals(wanted.getField(2)))
+                found = e;
+        }
+        it.close();
+        if (found == null) {
+            throw new DbException("no entry for tuple " + rid.getTupleNumber() + " of page "
+                    + rid.getPageId().getPageNumber() + " in index " + name);
+        }
+        Database.getBufferPool().deleteTuple(tid, found);
+    }
+
+    /**
+     * Add the entries of all tuples of the table, on behalf of transaction
+     * tid. The table should not be changed by other transactions meanwhile.
+     */
+    public void build(TransactionId tid)
+            throws DbException, IOException, TransactionAbortedException {
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            insertTuple(tid, it.next());
+        }
+        it.close();
+    }
+
+    /**
+     * Returns an iterator over the tuples of the table whose indexed field
+     * satisfies ipred, in the order of that field. It locks the tree pages
+     * it reads and the heap pages of the tuples it returns.
+     */
+    public DbFileIterator iterator(TransactionId tid, IndexPredicate ipred) {
+        return new IndexedHeapIterator(tid, ipred);
+    }
+
+    private class IndexedHeapIterator extends AbstractDbFileIterator {
+        private final TransactionId tid;
+        private final DbFileIterator entries;
+
+        IndexedHeapIterator(TransactionId tid, IndexPredicate ipred) {
+            this.tid = tid;
+            this.entries = tree.indexIterator(tid, ipred);
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            entries.open();
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (!entries.hasNext())
+                return null;
+            Tuple e = entries.next();
+            HeapPageId pid = new HeapPageId(table.getId(), ((IntField) e.getField(1)).getValue());
+            HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            Tuple t = p == null ? null : p.getTuple(((IntField) e.getField(2)).getValue());
+            if (t == null) {
+                throw new DbException("index " + name + " points to an empty slot of page "
+                        + pid.getPageNumber());
+            }
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            entries.close();
+        }
+    }
+}
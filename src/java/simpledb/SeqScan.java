@@ -14,7 +14,9 @@ public class SeqScan implements OpIterator {
     TransactionId transId;
     int tableId;
     String tableAlias;
-    HeapFile.HeapIterator heapFileIterator = null; 
+    DbFileIterator fileIterator = null;
+    /** Predicates the plan filters the scanned tuples with */
+    ArrayList<Predicate> predicates = new ArrayList<>();
     
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -36,8 +38,7 @@ public class SeqScan implements OpIterator {
         this.transId = tid;
         this.tableId = tableid;
         this.tableAlias = tableAlias;
-        HeapFile heapFile = (HeapFile)Database.getCatalog().getDatabaseFile(this.tableId);
-        heapFileIterator = (HeapFile.HeapIterator)heapFile.iterator(this.transId);
+        fileIterator = Database.getCatalog().getDatabaseFile(this.tableId).iterator(this.transId);
     }
 
     /**
@@ -71,16 +72,57 @@ public class SeqScan implements OpIterator {
     public void reset(int tableid, String tableAlias) {
         this.tableId = tableid;
         this.tableAlias = tableAlias;
-        HeapFile heapFile = (HeapFile)Database.getCatalog().getDatabaseFile(this.tableId);
-        heapFileIterator = (HeapFile.HeapIterator)heapFile.iterator(this.transId);
+        this.predicates.clear();
+        fileIterator = Database.getCatalog().getDatabaseFile(this.tableId).iterator(this.transId);
     }
 
     public SeqScan(TransactionId tid, int tableId) {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
+    /**
+     * Tell the scan which fields of the table the plan above it uses, by
+     * their index in the table's TupleDesc. A columnar table then reads
+     * only these columns, and the other fields of the tuples it returns are
+     * null; other tables return whole tuples anyway. Call before open.
+     *
+     * @see ColumnarFile#iterator(TransactionId, int[])
+     */
+    public void setColumns(int[] columns) {
+        DbFile f = Database.getCatalog().getDatabaseFile(this.tableId);
+        if (f instanceof ColumnarFile) {
+            fileIterator = ((ColumnarFile)f).iterator(this.transId, columns);
+        }
+    }
+
+    /**
+     * Tell the scan about a predicate that a Filter above it applies to
+     * the tuples, so that a HeapFile can skip the pages its zone map rules
+     * out, or look up the tuples equal to a constant in a secondary index
+     * on the field. The field of p is an index into the table's TupleDesc.
+     * Tuples that do not satisfy p may still be returned. Call before open.
+     *
+     * @see HeapFile#iterator(TransactionId, List)
+     * @see SecondaryIndex#iterator
+     */
+    public void addPredicate(Predicate p) {
+        DbFile f = Database.getCatalog().getDatabaseFile(this.tableId);
+        if (f instanceof HeapFile) {
+            predicates.add(p);
+            fileIterator = ((HeapFile)f).iterator(this.transId, predicates);
+            for (Predicate q : predicates) {
+                SecondaryIndex index = Database.getCatalog().getIndex(this.tableId, q.getField());
+                if (index != null && q.getOp() == Predicate.Op.EQUALS) {
+                    fileIterator = index.iterator(this.transId,
+                            new IndexPredicate(q.getOp(), q.getOperand()));
+                    break;
+                }
+            }
+        }
+    }
+
     public void open() throws DbException, TransactionAbortedException {
-        heapFileIterator.open();
+        fileIterator.open();
     }
 
     /**
@@ -115,16 +157,16 @@ public class SeqScan implements OpIterator {
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
-        return heapFileIterator.hasNext();
+        return fileIterator.hasNext();
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        return heapFileIterator.next();
+        return fileIterator.next();
     }
 
     public void close() {
-        heapFileIterator.close();
+        fileIterator.close();
     }
 
     public void rewind() throws DbException, NoSuchElementException,
@@ -43,12 +43,46 @@ public class SimpleDb {
                     fieldSeparator=args[4].charAt(0);
             }
 
-            HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
-                        BufferPool.getPageSize(),numOfAttributes,ts,fieldSeparator);
+            long start = System.nanoTime();
+            long rows = HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
+                        BufferPool.getPageSize(),numOfAttributes,ts,fieldSeparator,
+                        Runtime.getRuntime().availableProcessors());
+            double secs = Math.max(System.nanoTime() - start, 1) / 1e9;
+            System.out.printf("Converted %d rows to %s in %.1f s (%.0f rows/s)%n",
+                              rows, targetDatFile, secs, rows / secs);
 
         } catch (IOException e) {
                 throw new RuntimeException(e);
         }
+        } else if (args[0].equals("migrate")) {
+            // copy a table into a new file with variable-length records
+            if (args.length < 4 || args.length > 5) {
+                System.err.println("Usage: migrate in.dat out.dat numColumns [types]");
+                return;
+            }
+            int numOfAttributes = Integer.parseInt(args[3]);
+            Type[] ts = new Type[numOfAttributes];
+            for (int i = 0; i < numOfAttributes; i++)
+                ts[i] = Type.INT_TYPE;
+            if (args.length == 5) {
+                String[] typeStringAr = args[4].split(",");
+                if (typeStringAr.length != numOfAttributes) {
+                    System.err.println("The number of types does not agree with the number of columns");
+                    return;
+                }
+                for (int i = 0; i < numOfAttributes; i++) {
+                    if (typeStringAr[i].toLowerCase().equals("string"))
+                        ts[i] = Type.STRING_TYPE;
+                    else if (!typeStringAr[i].toLowerCase().equals("int")) {
+                        System.err.println("Unknown type " + typeStringAr[i]);
+                        return;
+                    }
+                }
+            }
+            int count = HeapFileMigrator.toSlotted(new File(args[1]), new File(args[2]),
+                                                   new TupleDesc(ts));
+            Database.shutdown();
+            System.out.println("Copied " + count + " tuples to " + args[2]);
         } else if (args[0].equals("print")) {
             File tableFile = new File(args[1]);
             int columns = Integer.parseInt(args[2]);
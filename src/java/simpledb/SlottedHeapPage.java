@@ -0,0 +1,283 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * SlottedHeapPage is a HeapPage that stores variable-length records, for
+ * HeapFiles whose catalog entry asks for the slotted format. A string field
+ * takes its length plus two bytes instead of STRING_LEN + 4 bytes, so a
+ * table of short strings fits many more tuples on a page.
+ * <p>
+ * The format of a page is
+ * <ul>
+ * <li> a short with the number of slots in the slot directory, and a short
+ * with the offset of the first record byte (0 for an empty page)
+ * <li> the slot directory: a short offset and a short length per slot; an
+ * offset of 0 marks an empty slot
+ * <li> free space
+ * <li> the records, packed at the end of the page
+ * </ul>
+ * A record is its fields one after another: an int field as 4 bytes, a
+ * string field as a short byte count followed by the bytes. Shorts are read
+ * unsigned, so pages can be up to 64KB. A page of zeroes is an empty page,
+ * as for HeapPage.
+ * <p>
+ * Tuple number i of a page is the record in slot i. The records are packed
+ * again whenever the page is written, so deleting a tuple frees its space
+ * right away; its slot is reused by the next insert.
+ *
+ * @see HeapFile#isSlotted
+ */
+public class SlottedHeapPage extends HeapPage {
+
+    static final int HEADER_SIZE = 4;
+    static final int SLOT_SIZE = 4;
+
+    /** The tuple in each slot, null for an empty slot. They never leave the
+        page: callers get copies, as HeapPage decodes a new tuple each time */
+    private final ArrayList<Tuple> slots;
+    /** Bytes taken by the records */
+    private int recordBytes;
+
+    /**
+     * Create a SlottedHeapPage from a set of bytes of data read from disk.
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a SlottedHeapPage straight from a buffer holding its image,
+     * e.g. a slice of a memory mapped file.
+     */
+    public SlottedHeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        super(id);
+        int numSlots = data.getShort(0) & 0xffff;
+        slots = new ArrayList<>(numSlots);
+        try {
+            for (int i = 0; i < numSlots; i++) {
+                int entry = HEADER_SIZE + i * SLOT_SIZE;
+                int offset = data.getShort(entry) & 0xffff;
+                int length = data.getShort(entry + 2) & 0xffff;
+                if (offset == 0) {
+                    slots.add(null);
+                    continue;
+                }
+                ByteBuffer record = data.duplicate();
+                record.position(offset);
+                record.limit(offset + length);
+                Tuple t = readRecord(record);
+                t.setRecordId(new RecordId(pid, i));
+                slots.add(t);
+                recordBytes += length;
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("corrupt slotted page " + id.getPageNumber() + ": " + e);
+        }
+    }
+
+    private Tuple readRecord(ByteBuffer record) {
+        Tuple t = new Tuple(td);
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE) {
+                t.setField(j, new IntField(record.getInt()));
+            } else {
+                byte[] bs = new byte[record.getShort() & 0xffff];
+                record.get(bs);
+                t.setField(j, new StringField(new String(bs), Type.STRING_LEN));
+            }
+        }
+        return t;
+    }
+
+    /** The bytes of a string field in a record, after its length */
+    private static byte[] stringBytes(Field f) {
+        byte[] bs = ((StringField)f).getValue().getBytes();
+        return bs.length > Type.STRING_LEN ? Arrays.copyOf(bs, Type.STRING_LEN) : bs;
+    }
+
+    /** The number of bytes the record of t takes */
+    private int recordSize(Tuple t) {
+        int size = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE) {
+                size += 4;
+            } else {
+                size += 2 + stringBytes(t.getField(j)).length;
+            }
+        }
+        return size;
+    }
+
+    /** The number of bytes the largest possible record takes */
+    private int maxRecordSize() {
+        int size = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            size += td.getFieldType(j) == Type.INT_TYPE ? 4 : 2 + Type.STRING_LEN;
+        }
+        return size;
+    }
+
+    /** The number of slots the directory has once empty slots at its end
+        are dropped */
+    private int usedSlots() {
+        int n = slots.size();
+        while (n > 0 && slots.get(n - 1) == null) {
+            n--;
+        }
+        return n;
+    }
+
+    private int freeBytes() {
+        return BufferPool.getPageSize() - HEADER_SIZE - usedSlots() * SLOT_SIZE - recordBytes;
+    }
+
+    public SlottedHeapPage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized(oldDataLock) {
+                oldDataRef = oldData != null ? oldData : getPageData();
+            }
+            return new SlottedHeapPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized(oldDataLock) {
+            oldData = null;
+        }
+    }
+
+    /** Keep the before-image; called before the page changes */
+    private void beforeChange() {
+        synchronized(oldDataLock) {
+            if (oldData == null)
+                oldData = getPageData();
+        }
+    }
+
+    public byte[] getPageData() {
+        int pageSize = BufferPool.getPageSize();
+        ByteBuffer data = ByteBuffer.allocate(pageSize);
+        int numSlots = usedSlots();
+        int end = pageSize;
+        data.putShort(0, (short)numSlots);
+        for (int i = 0; i < numSlots; i++) {
+            Tuple t = slots.get(i);
+            if (t == null) {
+                continue;
+            }
+            int length = recordSize(t);
+            end -= length;
+            data.position(end);
+            for (int j = 0; j < td.numFields(); j++) {
+                Field f = t.getField(j);
+                if (td.getFieldType(j) == Type.INT_TYPE) {
+                    data.putInt(((IntField)f).getValue());
+                } else {
+                    byte[] bs = stringBytes(f);
+                    data.putShort((short)bs.length);
+                    data.put(bs);
+                }
+            }
+            int entry = HEADER_SIZE + i * SLOT_SIZE;
+            data.putShort(entry, (short)end);
+            data.putShort(entry + 2, (short)length);
+        }
+        data.putShort(2, (short)(numSlots == 0 ? 0 : end));
+        return data.array();
+    }
+
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !rid.getPageId().equals(this.pid)) {
+            throw new DbException("pageId not matches");
+        }
+        int i = rid.getTupleNumber();
+        if (i < 0 || i >= slots.size() || slots.get(i) == null) {
+            throw new DbException("tuple number not matches or not used");
+        }
+        beforeChange();
+        recordBytes -= recordSize(slots.get(i));
+        slots.set(i, null);
+    }
+
+    public void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(this.td)) {
+            throw new DbException("TupleDesc not matches");
+        } else if (!hasRoomFor(t)) {
+            throw new DbException("No room for the tuple");
+        }
+        beforeChange();
+        int i = slots.indexOf(null);
+        if (i < 0) {
+            i = slots.size();
+            slots.add(null);
+        }
+        slots.set(i, copy(t, i));
+        recordBytes += recordSize(t);
+        t.setRecordId(new RecordId(this.pid, i));
+    }
+
+    /** A copy of t as the tuple in slot i */
+    private Tuple copy(Tuple t, int i) {
+        Tuple c = new Tuple(td);
+        for (int j = 0; j < td.numFields(); j++) {
+            c.setField(j, t.getField(j));
+        }
+        c.setRecordId(new RecordId(pid, i));
+        return c;
+    }
+
+    public boolean hasRoomFor(Tuple t) {
+        int i = slots.indexOf(null);
+        int newSlot = i >= 0 && i < usedSlots() ? 0 : SLOT_SIZE;
+        return recordSize(t) + newSlot <= freeBytes();
+    }
+
+    /**
+     * Returns the number of tuples that surely still fit on this page, that
+     * is the number of records of the largest possible size.
+     */
+    public int getNumEmptySlots() {
+        return Math.max(freeBytes(), 0) / (maxRecordSize() + SLOT_SIZE);
+    }
+
+    public boolean isSlotUsed(int i) {
+        return i >= 0 && i < slots.size() && slots.get(i) != null;
+    }
+
+    public Tuple getTuple(int i) {
+        return isSlotUsed(i) ? copy(slots.get(i), i) : null;
+    }
+
+    void intRanges(int[] fields, int[] min, int[] max) {
+        for (Tuple t : slots) {
+            if (t == null) {
+                continue;
+            }
+            for (int i = 0; i < fields.length; i++) {
+                int v = ((IntField)t.getField(fields[i])).getValue();
+                min[i] = Math.min(min[i], v);
+                max[i] = Math.max(max[i], v);
+            }
+        }
+    }
+
+    public Iterator<Tuple> iterator() {
+        ArrayList<Tuple> tps = new ArrayList<>();
+        for (int i = 0; i < slots.size(); i++) {
+            if (slots.get(i) != null) {
+                tps.add(copy(slots.get(i), i));
+            }
+        }
+        return tps.iterator();
+    }
+}
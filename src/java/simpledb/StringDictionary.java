@@ -0,0 +1,131 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * StringDictionary maps the distinct values of a string column to integer
+ * codes, so that pages can store a 4 byte code instead of a STRING_LEN
+ * string, and equality tests on the column can compare codes.
+ * <p>
+ * Codes are handed out in order, starting at 0, and never change. The
+ * code table is stored in its own file as a list of entries, an int length
+ * followed by the bytes of the string, in code order. New entries are
+ * appended and forced to disk before their code is returned, so a page
+ * that holds a code is never on disk before the code's entry. Entries
+ * added by a transaction that aborts stay in the table.
+ *
+ * @see DictionaryField
+ * @see ColumnarFile
+ * @Threadsafe
+ */
+public class StringDictionary {
+
+    private final File file;
+    private final FileHandle handle;
+    /** The field of each code; null until the table is read */
+    private ArrayList<DictionaryField> fields;
+    private HashMap<String, Integer> codes;
+    /** The length of the file */
+    private long end;
+
+    /**
+     * Open the dictionary stored in a file. The file is read when the
+     * dictionary is first used.
+     */
+    public StringDictionary(File f) {
+        this.file = f;
+        this.handle = new FileHandle(f);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private void load() throws IOException {
+        if (fields != null) {
+            return;
+        }
+        fields = new ArrayList<>();
+        codes = new HashMap<>();
+        byte[] data = new byte[(int)file.length()];
+        end = handle.read(data, 0);
+        ByteBuffer buf = ByteBuffer.wrap(data, 0, (int)end);
+        while (buf.remaining() >= 4) {
+            int len = buf.getInt();
+            if (len < 0 || len > buf.remaining()) {
+                // a torn append; the code was never handed out
+                end = buf.position() - 4;
+                break;
+            }
+            add(new String(data, buf.position(), len));
+            buf.position(buf.position() + len);
+        }
+    }
+
+    private int add(String s) {
+        int code = fields.size();
+        fields.add(new DictionaryField(s, this, code));
+        codes.put(s, code);
+        return code;
+    }
+
+    /** Returns the number of codes handed out */
+    public synchronized int size() throws IOException {
+        load();
+        return fields.size();
+    }
+
+    /**
+     * Returns the code of s, adding s to the dictionary if it is not in it
+     * yet. Strings longer than Type.STRING_LEN are cut off, as in
+     * StringField.
+     */
+    public synchronized int encode(String s) throws IOException {
+        load();
+        if (s.length() > Type.STRING_LEN) {
+            s = s.substring(0, Type.STRING_LEN);
+        }
+        Integer code = codes.get(s);
+        if (code != null) {
+            return code;
+        }
+        byte[] entry = new byte[4 + s.length()];
+        ByteBuffer.wrap(entry).putInt(s.length());
+        for (int k = 0; k < s.length(); k++) {
+            entry[4 + k] = (byte)s.charAt(k);
+        }
+        handle.write(entry, end);
+        handle.force();
+        end += entry.length;
+        return add(s);
+    }
+
+    /**
+     * Returns the field of a code. The same field object is returned for
+     * every call.
+     */
+    public synchronized DictionaryField field(int code) throws IOException {
+        load();
+        return fields.get(code);
+    }
+
+    /**
+     * Returns a field for s that compares by code with the fields of this
+     * dictionary. If s is not in the dictionary, no value of the column
+     * equals it, and the field gets the code -1.
+     */
+    public synchronized DictionaryField field(String s) throws IOException {
+        load();
+        if (s.length() > Type.STRING_LEN) {
+            s = s.substring(0, Type.STRING_LEN);
+        }
+        Integer code = codes.get(s);
+        return code != null ? fields.get(code) : new DictionaryField(s, this, -1);
+    }
+
+    public void close() throws IOException {
+        handle.close();
+    }
+}
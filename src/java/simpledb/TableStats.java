@@ -212,8 +212,9 @@ public class TableStats {
      * @return The estimated cost of scanning the table.
      */
     public double estimateScanCost() {
-        HeapFile hp = (HeapFile)this.file;
-        return hp.numPages() * this.ioCostPerPage;
+        int numPages = file instanceof ColumnarFile ? ((ColumnarFile)file).numPages()
+                                                     : ((HeapFile)file).numPages();
+        return numPages * this.ioCostPerPage;
     }
 
     /**
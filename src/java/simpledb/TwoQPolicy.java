@@ -0,0 +1,115 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TwoQPolicy implements the full 2Q algorithm (Johnson and Shasha, VLDB
+ * 1994), which keeps pages that are touched only once, e.g. by a
+ * sequential scan, from pushing the frequently used pages out of the pool.
+ * <p>
+ * A page read for the first time goes into A1in, a FIFO queue. Hits on
+ * pages in A1in are not counted, since they are usually correlated
+ * references of the same scan or tuple. When a page leaves A1in, its id is
+ * remembered in A1out; if the page is read again while its id is in A1out,
+ * it is put into Am, which is kept in LRU order. Victims are taken from A1in
+ * as long as A1in holds more than its share of the frames, so a scan only
+ * ever recycles the frames of A1in.
+ */
+public class TwoQPolicy implements ReplacementPolicy {
+
+    /** Pages read once, oldest first */
+    private final LinkedHashMap<PageId, Boolean> a1in;
+    /** Ids of pages recently evicted from a1in, oldest first */
+    private final LinkedHashMap<PageId, Boolean> a1out;
+    /** Pages read again after leaving a1in, least recently used first */
+    private final LinkedHashMap<PageId, Boolean> am;
+
+    private final int kin;
+    private final int kout;
+
+    public TwoQPolicy(int capacity) {
+        a1in = new LinkedHashMap<>();
+        a1out = new LinkedHashMap<>();
+        am = new LinkedHashMap<>(16, 0.75f, true);
+        // the paper recommends a quarter of the frames for a1in and ids of
+        // half as many pages as there are frames for a1out; a partition only
+        // sees a slice of the reference stream, so a1out is made larger here
+        kin = Math.max(capacity / 4, 1);
+        kout = Math.max(capacity, 1);
+    }
+
+    public synchronized void insert(PageId pid) {
+        if (a1out.remove(pid) != null) {
+            am.put(pid, Boolean.TRUE);
+        } else {
+            a1in.put(pid, Boolean.TRUE);
+        }
+    }
+
+    public synchronized void access(PageId pid) {
+        // relinks pid if it is in am, a1in is left in FIFO order
+        am.get(pid);
+    }
+
+    public synchronized void remove(PageId pid) {
+        if (a1in.remove(pid) == null) {
+            am.remove(pid);
+        }
+    }
+
+    public synchronized PageId evict(Evictable evictable) {
+        PageId victim = null;
+        if (a1in.size() > kin || am.isEmpty()) {
+            victim = evictFrom(a1in, evictable);
+        }
+        if (victim == null) {
+            victim = evictFrom(am, evictable);
+            if (victim != null) {
+                return victim;
+            }
+            victim = evictFrom(a1in, evictable);
+        }
+        if (victim != null) {
+            a1out.put(victim, Boolean.TRUE);
+            if (a1out.size() > kout) {
+                Iterator<PageId> it = a1out.keySet().iterator();
+                it.next();
+                it.remove();
+            }
+        }
+        return victim;
+    }
+
+    public synchronized List<PageId> coldest(int n) {
+        List<PageId> cold = new ArrayList<>(n);
+        if (a1in.size() > kin || am.isEmpty()) {
+            addFirst(cold, a1in, n);
+            addFirst(cold, am, n);
+        } else {
+            addFirst(cold, am, n);
+            addFirst(cold, a1in, n);
+        }
+        return cold;
+    }
+
+    private void addFirst(List<PageId> cold, LinkedHashMap<PageId, Boolean> queue, int n) {
+        for (PageId pid : queue.keySet()) {
+            if (cold.size() >= n) {
+                return;
+            }
+            cold.add(pid);
+        }
+    }
+
+    private PageId evictFrom(LinkedHashMap<PageId, Boolean> queue, Evictable evictable) {
+        Iterator<PageId> it = queue.keySet().iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.canEvict(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+}
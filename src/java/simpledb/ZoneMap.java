@@ -0,0 +1,242 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * ZoneMap keeps the smallest and the largest value of every integer field
+ * on each page of a HeapFile, so that a scan with a predicate can skip the
+ * pages that cannot hold a matching tuple.
+ * <p>
+ * The map is stored in a side file next to the heap file (its name with
+ * ".zm" appended): the stamp of the heap file (see HeapFile#stamp), then
+ * one entry per page, an int that is 1 once the entry is known, then the
+ * min and max of each int field. A page whose entry is not known is never
+ * skipped. A side file whose stamp does not match the heap file is not
+ * used, so the ranges of a file written anew at the same path, or changed
+ * in a run that did not close the map, are read from its pages again.
+ * <p>
+ * A range may be wider than the values on the page, but it always covers
+ * them. Inserts widen the range of their page in memory. When a page is
+ * written, its range widened by the values on the written page is stored
+ * before the page itself, so a page on disk is covered by its stored range.
+ * Deletes do not narrow a range. Setting the range of a page to the values
+ * on it, e.g. after an abort, only changes the map in memory; the narrower
+ * ranges are stored when the map is closed.
+ *
+ * @Threadsafe
+ */
+public class ZoneMap {
+
+    /** The size of the stamp in front of the entries */
+    private static final int STAMP_BYTES = 16;
+
+    private final File heapFile;
+    private final File sideFile;
+    private final FileHandle handle;
+    /** The int fields of the tuples */
+    private final int[] fields;
+    /** The ints of an entry: the known flag, then a min and max per field */
+    private final int entryInts;
+    private int[] entries;
+    private int numPages;
+    /** Whether entries changed since the side file was last written */
+    private boolean changed;
+
+    /**
+     * Open the zone map of a heap file.
+     *
+     * @param heapFile the file the map describes
+     * @param td the TupleDesc of its tuples
+     * @param numPages the number of pages of the heap file
+     */
+    public ZoneMap(File heapFile, TupleDesc td, int numPages) throws IOException {
+        File f = new File(heapFile.getPath() + ".zm");
+        if (numPages == 0) {
+            // a side file left over from an old file with the same name
+            // would be wrong
+            f.delete();
+        }
+        ArrayList<Integer> ints = new ArrayList<>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                ints.add(i);
+            }
+        }
+        this.fields = new int[ints.size()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = ints.get(i);
+        }
+        this.heapFile = heapFile;
+        this.sideFile = f;
+        this.handle = new FileHandle(f);
+        this.entryInts = 1 + 2 * fields.length;
+        this.numPages = numPages;
+        this.entries = new int[Math.max(numPages, 16) * entryInts];
+        if (f.exists()) {
+            byte[] stamp = new byte[STAMP_BYTES];
+            if (handle.read(stamp, 0) == STAMP_BYTES
+                    && Arrays.equals(stamp, HeapFile.stamp(heapFile))) {
+                byte[] stored = new byte[numPages * entryInts * 4];
+                int n = handle.read(stored, STAMP_BYTES);
+                ByteBuffer.wrap(stored, 0, n - n % 4).asIntBuffer().get(entries, 0, n / 4);
+            } else {
+                handle.truncate(0);
+                changed = true;
+            }
+        }
+    }
+
+    private void ensure(int pageNo) {
+        if ((pageNo + 1) * entryInts > entries.length) {
+            entries = Arrays.copyOf(entries, Math.max(entries.length * 2, (pageNo + 1) * entryInts));
+        }
+        numPages = Math.max(numPages, pageNo + 1);
+    }
+
+    /** The entry of the values on a page */
+    private int[] rangeOf(HeapPage p) {
+        int[] min = new int[fields.length];
+        int[] max = new int[fields.length];
+        Arrays.fill(min, Integer.MAX_VALUE);
+        Arrays.fill(max, Integer.MIN_VALUE);
+        p.intRanges(fields, min, max);
+        int[] e = new int[entryInts];
+        e[0] = 1;
+        for (int i = 0; i < fields.length; i++) {
+            e[1 + 2 * i] = min[i];
+            e[2 + 2 * i] = max[i];
+        }
+        return e;
+    }
+
+    /**
+     * Returns whether the range of a page is known.
+     */
+    public synchronized boolean isKnown(int pageNo) {
+        return pageNo < numPages && entries[pageNo * entryInts] != 0;
+    }
+
+    /**
+     * Set the range of a page to the values on it, e.g. after the changes
+     * made to it in memory were thrown away.
+     */
+    public synchronized void update(int pageNo, HeapPage p) {
+        ensure(pageNo);
+        int[] e = rangeOf(p);
+        int base = pageNo * entryInts;
+        changed |= !Arrays.equals(e, Arrays.copyOfRange(entries, base, base + entryInts));
+        System.arraycopy(e, 0, entries, base, entryInts);
+    }
+
+    /**
+     * Widen the range of a page by a tuple inserted into it.
+     */
+    public synchronized void widen(int pageNo, Tuple t) {
+        ensure(pageNo);
+        int base = pageNo * entryInts;
+        if (entries[base] == 0) {
+            return;
+        }
+        for (int i = 0; i < fields.length; i++) {
+            int v = ((IntField)t.getField(fields[i])).getValue();
+            entries[base + 1 + 2 * i] = Math.min(entries[base + 1 + 2 * i], v);
+            entries[base + 2 + 2 * i] = Math.max(entries[base + 2 + 2 * i], v);
+        }
+        changed = true;
+    }
+
+    /**
+     * Widen the range of a page that is about to be written by the values
+     * on it, and store the entry in the side file. Called before the page
+     * is written.
+     */
+    public void writing(int pageNo, HeapPage p) throws IOException {
+        int[] e = rangeOf(p);
+        synchronized(this) {
+            ensure(pageNo);
+            int base = pageNo * entryInts;
+            if (entries[base] != 0) {
+                for (int i = 0; i < fields.length; i++) {
+                    e[1 + 2 * i] = Math.min(e[1 + 2 * i], entries[base + 1 + 2 * i]);
+                    e[2 + 2 * i] = Math.max(e[2 + 2 * i], entries[base + 2 + 2 * i]);
+                }
+            }
+            System.arraycopy(e, 0, entries, base, entryInts);
+        }
+        ByteBuffer b = ByteBuffer.allocate(entryInts * 4);
+        b.asIntBuffer().put(e);
+        handle.write(b.array(), STAMP_BYTES + (long)pageNo * entryInts * 4);
+    }
+
+    /**
+     * Returns false if no tuple on a page can satisfy p, true if some may.
+     */
+    public synchronized boolean mayMatch(int pageNo, Predicate p) {
+        int base = pageNo * entryInts;
+        if (pageNo >= numPages || entries[base] == 0) {
+            return true;
+        }
+        if (entries[base + 1] > entries[base + 2] && fields.length > 0) {
+            // no tuples on the page
+            return false;
+        }
+        int i = Arrays.binarySearch(fields, p.getField());
+        if (i < 0 || !(p.getOperand() instanceof IntField)) {
+            return true;
+        }
+        int min = entries[base + 1 + 2 * i];
+        int max = entries[base + 2 + 2 * i];
+        int c = ((IntField)p.getOperand()).getValue();
+        switch (p.getOp()) {
+        case EQUALS:
+            return min <= c && c <= max;
+        case NOT_EQUALS:
+            return min != c || max != c;
+        case GREATER_THAN:
+            return max > c;
+        case GREATER_THAN_OR_EQ:
+            return max >= c;
+        case LESS_THAN:
+            return min < c;
+        case LESS_THAN_OR_EQ:
+            return min <= c;
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * Forget the pages from pageNo on, after the heap file was truncated
+     * to pageNo pages.
+     */
+    public void truncate(int pageNo) throws IOException {
+        synchronized(this) {
+            if (pageNo < numPages) {
+                Arrays.fill(entries, pageNo * entryInts, numPages * entryInts, 0);
+                numPages = pageNo;
+            }
+        }
+        handle.truncate(STAMP_BYTES + (long)pageNo * entryInts * 4);
+    }
+
+    /**
+     * Store the whole map in the side file, stamped with the heap file as
+     * it is now, and close it. Called once the heap file was closed.
+     */
+    public void close() throws IOException {
+        synchronized(this) {
+            if (changed) {
+                ByteBuffer b = ByteBuffer.allocate(numPages * entryInts * 4);
+                b.asIntBuffer().put(entries, 0, numPages * entryInts);
+                handle.write(b.array(), STAMP_BYTES);
+                changed = false;
+            }
+        }
+        if (sideFile.exists()) {
+            handle.write(HeapFile.stamp(heapFile), 0);
+        }
+        handle.close();
+    }
+}
@@ -313,6 +313,53 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * The child findChild should return, found by walking the entries
+	 */
+	private BTreePageId linearFindChild(BTreeInternalPage page, Field f) {
+		BTreeEntry last = null;
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			if (f == null || !e.getKey().compare(Predicate.Op.LESS_THAN, f))
+				return e.getLeftChild();
+			last = e;
+		}
+		return last == null ? null : last.getRightChild();
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.findChild()
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		assertEquals(new BTreePageId(-1, 1, BTreePageId.LEAF), page.findChild(null));
+		assertEquals(new BTreePageId(-1, 1, BTreePageId.LEAF), page.findChild(new IntField(1468)));
+		assertEquals(new BTreePageId(-1, 2, BTreePageId.LEAF), page.findChild(new IntField(1469)));
+		assertEquals(new BTreePageId(-1, 21, BTreePageId.LEAF), page.findChild(new IntField(62779)));
+
+		// delete every third entry, leaving holes in the slots
+		Iterator<BTreeEntry> it = page.iterator();
+		ArrayList<BTreeEntry> doomed = new ArrayList<BTreeEntry>();
+		for (int i = 0; it.hasNext(); i++) {
+			BTreeEntry e = it.next();
+			if (i % 3 == 0)
+				doomed.add(e);
+		}
+		for (int round = 0; round < 2; round++) {
+			for (int[] entry : EXAMPLE_VALUES) {
+				for (int d = -1; d <= 1; d++) {
+					IntField f = new IntField(entry[1] + d);
+					assertEquals(linearFindChild(page, f), page.findChild(f));
+				}
+			}
+			if (round == 0) {
+				for (BTreeEntry e : doomed)
+					page.deleteKeyAndRightChild(e);
+			}
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
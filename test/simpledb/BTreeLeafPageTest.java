@@ -336,6 +336,49 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.lowerBound()
+	 */
+	@Test public void lowerBound() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		assertEquals(page.getMaxTuples(), page.lowerBound(new IntField(62779)));
+
+		// delete every third tuple, leaving holes in the slots
+		Iterator<Tuple> it = page.iterator();
+		ArrayList<Tuple> doomed = new ArrayList<Tuple>();
+		for (int i = 0; it.hasNext(); i++) {
+			Tuple t = it.next();
+			if (i % 3 == 0)
+				doomed.add(t);
+		}
+		for (int round = 0; round < 2; round++) {
+			for (int[] tuple : EXAMPLE_VALUES) {
+				for (int d = -1; d <= 1; d++) {
+					IntField f = new IntField(tuple[0] + d);
+					Tuple expected = null;
+					it = page.iterator();
+					while (it.hasNext() && expected == null) {
+						Tuple t = it.next();
+						if (!t.getField(0).compare(Predicate.Op.LESS_THAN, f))
+							expected = t;
+					}
+					int slot = page.lowerBound(f);
+					if (expected == null) {
+						assertEquals(page.getMaxTuples(), slot);
+						assertFalse(page.iterator(slot).hasNext());
+					} else {
+						assertEquals(expected.getRecordId().getTupleNumber(), slot);
+						assertEquals(expected, page.iterator(slot).next());
+					}
+				}
+			}
+			if (round == 0) {
+				for (Tuple t : doomed)
+					page.deleteTuple(t);
+			}
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -0,0 +1,148 @@
+package simpledb;
+
+import simpledb.BTreeUtility.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeLockCouplingTest extends SimpleDbTestBase {
+	private static final int POLL_INTERVAL = 100;
+	private static final int TIMEOUT = 20000;
+
+	private BufferPool bp;
+	private BTreeFile bf;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before public void setUp() throws Exception {
+		// a packed B+ tree of about 100 leaves under one root
+		bf = BTreeUtility.createRandomBTreeFile(2, 50200, null, null, 0);
+		bp = Database.resetBufferPool(500);
+	}
+
+	/**
+	 * Wait for a writer, failing if it is aborted or takes too long
+	 */
+	private void await(BTreeWriter w) throws Exception {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while(!w.succeeded()) {
+			assertNull(w.getError());
+			assertTrue("writer blocked", System.currentTimeMillis() < deadline);
+			Thread.sleep(POLL_INTERVAL);
+		}
+	}
+
+	/**
+	 * A reader keeps only its leaf locked, so a writer can split a leaf into
+	 * the root while the reader's transaction is still running.
+	 */
+	@Test public void readerDoesNotBlockSplit() throws Exception {
+		TransactionId reader = new TransactionId();
+		DbFileIterator it = bf.iterator(reader);
+		it.open();
+		PageId leaf = it.next().getRecordId().getPageId();
+
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+		BTreePageId rootId = ((BTreeRootPtrPage) bp.getPage(reader, rootPtrId,
+				Permissions.READ_ONLY)).getRootId();
+		bp.releasePage(reader, rootPtrId);
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		assertFalse(bp.holdsLock(reader, rootId));
+		assertTrue(bp.holdsLock(reader, leaf));
+
+		// fill the right-most leaf until it splits
+		int pages = bf.numPages();
+		TransactionId writer = new TransactionId();
+		BTreeWriter w = new BTreeWriter(writer, bf, BTreeUtility.MAX_RAND_VALUE,
+				BTreeUtility.getNumTuplesPerPage(2) + 1);
+		w.start();
+		await(w);
+		assertTrue(bf.numPages() > pages);
+		assertTrue(bp.holdsLock(writer, rootId));
+		bp.transactionComplete(writer);
+
+		it.close();
+		bp.transactionComplete(reader);
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * The leaf a reader ends on stays locked, so inserts into it wait.
+	 */
+	@Test public void readerKeepsLeafLocked() throws Exception {
+		TransactionId reader = new TransactionId();
+		DbFileIterator it = bf.iterator(reader);
+		it.open();
+		Tuple first = it.next();
+		int key = ((IntField) first.getField(bf.keyField())).getValue();
+
+		TransactionId writer = new TransactionId();
+		BTreeWriter w = new BTreeWriter(writer, bf, key, 1);
+		w.start();
+		Thread.sleep(5 * POLL_INTERVAL);
+		assertFalse(w.succeeded());
+
+		it.close();
+		bp.transactionComplete(reader);
+		await(w);
+		bp.transactionComplete(writer);
+	}
+
+	/**
+	 * A key above every key of a leaf that is not the right-most one still
+	 * belongs on it, so a writer finds that leaf in a single descent from the
+	 * root: it reads the root pointer, the root and the leaf, and at most the
+	 * leaf's right sibling, instead of giving the leaf up and descending again.
+	 */
+	@Test public void insertAboveLastKeyDescendsOnce() throws Exception {
+		// keys that fall between two leaves and are routed to the left one
+		HashMap<Integer, PageId> gaps = new HashMap<Integer, PageId>();
+		TransactionId reader = new TransactionId();
+		DbFileIterator it = bf.iterator(reader);
+		it.open();
+		Tuple prev = it.next();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			int a = ((IntField) prev.getField(bf.keyField())).getValue();
+			int b = ((IntField) t.getField(bf.keyField())).getValue();
+			if(!t.getRecordId().getPageId().equals(prev.getRecordId().getPageId()) && b - a > 1)
+				gaps.put(a + 1, prev.getRecordId().getPageId());
+			prev = t;
+		}
+		it.close();
+		bp.transactionComplete(reader);
+		assertTrue(gaps.size() > 10);
+
+		TransactionId tid = new TransactionId();
+		long accesses = bp.getHits() + bp.getMisses();
+		for(Map.Entry<Integer, PageId> e : gaps.entrySet()) {
+			BTreeLeafPage leaf = bf.findLeafPage(tid, Permissions.READ_WRITE, new IntField(e.getKey()));
+			assertEquals(e.getValue(), leaf.getId());
+		}
+		assertTrue(bp.getHits() + bp.getMisses() - accesses <= 4 * gaps.size());
+		bp.transactionComplete(tid);
+
+		tid = new TransactionId();
+		for(int key : gaps.keySet())
+			bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(key, 2));
+		bp.transactionComplete(tid);
+		tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLockCouplingTest.class);
+	}
+}
@@ -0,0 +1,202 @@
+package simpledb;
+
+import simpledb.Predicate.Op;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreePrefixCompressionTest extends SimpleDbTestBase {
+	private static final int TUPLES = 5000;
+	// entries of a page with 132-byte string keys in the fixed-size format
+	private static final int FIXED_MAX_ENTRIES = 30;
+	private static final Type[] TYPES = new Type[] { Type.STRING_TYPE, Type.INT_TYPE };
+
+	private TupleDesc td;
+	private Random r;
+
+	@Before public void createTupleDesc() {
+		td = new TupleDesc(TYPES);
+		r = new Random(7);
+	}
+
+	private static StringField key(int i) {
+		return new StringField(String.format("customer-%05d", i), Type.STRING_LEN);
+	}
+
+	private Tuple tuple(int i) {
+		Tuple t = new Tuple(td);
+		t.setField(0, key(i));
+		t.setField(1, new IntField(i));
+		return t;
+	}
+
+	private BTreeFile emptyTree() throws IOException {
+		File f = File.createTempFile("prefix", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = new BTreeFile(f, 0, td);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
+	/** The root page of the tree, read without locks */
+	private BTreePage root(BTreeFile bf) {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+		return (BTreePage) bf.readPage(rootPtr.getRootId());
+	}
+
+	/** Check the tree and return the keys of its tuples in order */
+	private ArrayList<Integer> scan(BTreeFile bf) throws Exception {
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			assertEquals(key(((IntField) t.getField(1)).getValue()), t.getField(0));
+			keys.add(((IntField) t.getField(1)).getValue());
+		}
+		it.close();
+		Database.getBufferPool().transactionComplete(tid);
+		return keys;
+	}
+
+	/**
+	 * A page of string keys holds many times the entries of the fixed-size
+	 * format, and reads back what it wrote.
+	 */
+	@Test public void pageRoundTrip() throws Exception {
+		BTreeFile bf = emptyTree();
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL);
+		BTreeInternalPage page = new BTreeInternalPage(pid, BTreeInternalPage.createEmptyPageData(), 0);
+		assertTrue(page.isPrefixCompressed());
+
+		int n = 0;
+		while (page.hasRoomFor(key(n + 1))) {
+			BTreePageId left = new BTreePageId(bf.getId(), n + 2, BTreePageId.LEAF);
+			BTreePageId right = new BTreePageId(bf.getId(), n + 3, BTreePageId.LEAF);
+			page.insertEntry(new BTreeEntry(key(n + 1), left, right));
+			n++;
+		}
+		assertTrue(n > 10 * FIXED_MAX_ENTRIES);
+		assertFalse(page.isOverfull());
+
+		BTreeInternalPage read = new BTreeInternalPage(pid, page.getPageData(), 0);
+		assertEquals(n, read.getNumEntries());
+		Iterator<BTreeEntry> it = page.iterator();
+		Iterator<BTreeEntry> readIt = read.iterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			BTreeEntry readE = readIt.next();
+			assertEquals(e.getKey(), readE.getKey());
+			assertEquals(e.getLeftChild(), readE.getLeftChild());
+			assertEquals(e.getRightChild(), readE.getRightChild());
+		}
+		assertFalse(readIt.hasNext());
+		assertEquals(read.findChild(key(n / 2)), page.findChild(key(n / 2)));
+
+		// a key that shares none of the prefix needs room for the whole of it
+		assertFalse(page.hasRoomFor(new StringField("a", Type.STRING_LEN)));
+	}
+
+	/**
+	 * Inserts keep the leaves of a string-keyed tree under the root, which would
+	 * take two levels of fixed-size internal pages; deletes merge them again.
+	 */
+	@Test public void insertAndDelete() throws Exception {
+		BTreeFile bf = emptyTree();
+		Database.resetBufferPool(500);
+		ArrayList<Integer> values = new ArrayList<Integer>();
+		for (int i = 0; i < TUPLES; i++)
+			values.add(r.nextInt(100000));
+
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < values.size(); i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(values.get(i)));
+			if (i % 500 == 499) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		Database.getBufferPool().transactionComplete(tid);
+
+		BTreeInternalPage root = (BTreeInternalPage) root(bf);
+		assertEquals(BTreePageId.LEAF, root.iterator().next().getLeftChild().pgcateg());
+		assertTrue(root.getNumEntries() > FIXED_MAX_ENTRIES);
+		Collections.sort(values);
+		assertEquals(values, scan(bf));
+
+		// delete all but every tenth tuple
+		tid = new TransactionId();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		ArrayList<Tuple> doomed = new ArrayList<Tuple>();
+		ArrayList<Integer> kept = new ArrayList<Integer>();
+		int i = 0;
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (i++ % 10 == 0)
+				kept.add(((IntField) t.getField(1)).getValue());
+			else
+				doomed.add(t);
+		}
+		it.close();
+		for (Tuple t : doomed)
+			Database.getBufferPool().deleteTuple(tid, t);
+		Database.getBufferPool().transactionComplete(tid);
+		assertEquals(kept, scan(bf));
+	}
+
+	/**
+	 * The bulk loader packs string keys into prefix-compressed pages too.
+	 */
+	@Test public void bulkLoad() throws Exception {
+		File in = File.createTempFile("prefix", ".txt");
+		in.deleteOnExit();
+		PrintWriter w = new PrintWriter(new FileWriter(in));
+		ArrayList<Integer> values = new ArrayList<Integer>();
+		for (int i = 0; i < TUPLES; i++) {
+			int v = r.nextInt(100000);
+			values.add(v);
+			w.println(key(v).getValue() + "," + v);
+		}
+		w.close();
+		File hFile = File.createTempFile("prefix", ".dat");
+		hFile.deleteOnExit();
+		new File(hFile.getPath() + ".fsm").deleteOnExit();
+		File bFile = File.createTempFile("prefix", ".dat");
+		bFile.deleteOnExit();
+		BTreeFile bf = BTreeFileEncoder.convert(in, hFile, bFile, BufferPool.getPageSize(), 2,
+				TYPES, ',', 0);
+
+		BTreeInternalPage root = (BTreeInternalPage) root(bf);
+		assertTrue(root.isPrefixCompressed());
+		assertEquals(BTreePageId.LEAF, root.iterator().next().getLeftChild().pgcateg());
+		Collections.sort(values);
+		assertEquals(values, scan(bf));
+
+		// lookups go through the compressed root
+		int v = values.get(TUPLES / 2);
+		TransactionId tid = new TransactionId();
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key(v)));
+		it.open();
+		assertTrue(it.hasNext());
+		assertEquals(new IntField(v), it.next().getField(1));
+		it.close();
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreePrefixCompressionTest.class);
+	}
+}
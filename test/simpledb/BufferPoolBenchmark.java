@@ -0,0 +1,82 @@
+package simpledb;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures the throughput of buffer hits in BufferPool.getPage for an
+ * increasing number of threads. The table is small enough to stay in the
+ * buffer pool, so after the warm up every request is a hit.
+ *
+ * Usage: BufferPoolBenchmark [seconds per run] [max threads]
+ */
+public class BufferPoolBenchmark {
+    private static final int TABLE_PAGES = 40;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors() * 2;
+
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+        int pages = hf.numPages();
+
+        System.out.println("threads\thits/s");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            long hits = run(hf.getId(), pages, threads, seconds);
+            System.out.println(threads + "\t" + (hits / seconds));
+        }
+    }
+
+    private static long run(final int tableId, final int pages, int threads, int seconds)
+            throws Exception {
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final CountDownLatch warm = new CountDownLatch(threads);
+        final long[] counts = new long[threads];
+        Thread[] workers = new Thread[threads];
+
+        for (int i = 0; i < threads; i++) {
+            final int id = i;
+            workers[i] = new Thread() {
+                public void run() {
+                    TransactionId tid = new TransactionId();
+                    Random r = new Random(id);
+                    BufferPool bp = Database.getBufferPool();
+                    try {
+                        // fault every page in (and take its lock) before timing
+                        for (int p = 0; p < pages; p++)
+                            bp.getPage(tid, new HeapPageId(tableId, p), Permissions.READ_ONLY);
+                        warm.countDown();
+                        warm.await();
+
+                        long n = 0;
+                        while (!stop.get()) {
+                            bp.getPage(tid, new HeapPageId(tableId, r.nextInt(pages)), Permissions.READ_ONLY);
+                            n++;
+                        }
+                        counts[id] = n;
+                        bp.transactionComplete(tid);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            workers[i].start();
+        }
+
+        warm.await();
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+
+        long total = 0;
+        for (int i = 0; i < threads; i++) {
+            workers[i].join();
+            total += counts[i];
+        }
+        return total;
+    }
+}
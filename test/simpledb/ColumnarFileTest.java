@@ -0,0 +1,234 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ColumnarFileTest extends SimpleDbTestBase {
+    private TupleDesc td;
+    private ColumnarFile cf;
+    private String name;
+
+    @Before public void createFile() throws Exception {
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE },
+                           new String[] { "id", "name", "score" });
+        File f = File.createTempFile("columnar", ".dat");
+        f.deleteOnExit();
+        cf = new ColumnarFile(f, td);
+        name = SystemTestUtil.getUUID();
+        Database.getCatalog().addTable(cf, name);
+    }
+
+    private Tuple tuple(int i) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField("name" + i, Type.STRING_LEN));
+        t.setField(2, new IntField(i * 10));
+        return t;
+    }
+
+    private void insert(int from, int to) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = from; i < to; i++)
+            Database.getBufferPool().insertTuple(tid, cf.getId(), tuple(i));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private ArrayList<Tuple> scan(DbFileIterator it) throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext())
+            tuples.add(it.next());
+        it.close();
+        return tuples;
+    }
+
+    @Test public void insertAndScan() throws Exception {
+        int n = cf.getRowsPerSegment() * 2 + 100;
+        insert(0, n);
+        assertEquals(3, cf.numSegments());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        TransactionId tid = new TransactionId();
+        ArrayList<Tuple> tuples = scan(cf.iterator(tid));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(n, tuples.size());
+        for (int i = 0; i < n; i++) {
+            Tuple t = tuples.get(i);
+            assertEquals(new IntField(i), t.getField(0));
+            assertEquals("name" + i, ((StringField) t.getField(1)).getValue());
+            assertEquals(new IntField(i * 10), t.getField(2));
+        }
+    }
+
+    @Test public void scanReadsOnlyRequestedColumns() throws Exception {
+        insert(0, 500);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        TransactionId tid = new TransactionId();
+        ArrayList<Tuple> tuples = scan(cf.iterator(tid, new int[] { 2 }));
+        assertEquals(500, tuples.size());
+        assertNull(tuples.get(7).getField(0));
+        assertNull(tuples.get(7).getField(1));
+        assertEquals(new IntField(70), tuples.get(7).getField(2));
+
+        BufferPool bp = Database.getBufferPool();
+        assertTrue(bp.isCached(cf.columnPageId(0, 2, 0)));
+        for (int row = 0; row < 500; row++)
+            assertFalse(bp.isCached(cf.columnPageId(0, 1, row)));
+        bp.transactionComplete(tid);
+    }
+
+    @Test public void deleteFreesRow() throws Exception {
+        insert(0, 100);
+        TransactionId tid = new TransactionId();
+        ArrayList<Tuple> tuples = scan(cf.iterator(tid));
+        Database.getBufferPool().deleteTuple(tid, tuples.get(5));
+        Database.getBufferPool().deleteTuple(tid, tuples.get(6));
+        try {
+            Database.getBufferPool().deleteTuple(tid, tuples.get(6));
+            fail("tuple was deleted already");
+        } catch (DbException e) {
+            // expected
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        assertEquals(98, scan(cf.iterator(tid)).size());
+        Tuple t = tuple(1000);
+        Database.getBufferPool().insertTuple(tid, cf.getId(), t);
+        assertEquals(5, t.getRecordId().getTupleNumber());
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1, cf.numSegments());
+    }
+
+    @Test public void abortRemovesInserts() throws Exception {
+        insert(0, 10);
+        TransactionId tid = new TransactionId();
+        for (int i = 10; i < 20; i++)
+            Database.getBufferPool().insertTuple(tid, cf.getId(), tuple(i));
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        assertEquals(10, scan(cf.iterator(tid)).size());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void columnPagesKeepRange() throws Exception {
+        insert(0, 300);
+        TransactionId tid = new TransactionId();
+        ColumnarPage p = (ColumnarPage) Database.getBufferPool().getPage(tid,
+                cf.columnPageId(0, 2, 0), Permissions.READ_ONLY);
+        assertEquals(2, p.getColumn());
+        assertTrue(p.hasRange());
+        assertEquals(0, p.getMin());
+        assertEquals(2990, p.getMax());
+        ColumnarPage rows = (ColumnarPage) Database.getBufferPool().getPage(tid,
+                cf.rowPageId(0), Permissions.READ_ONLY);
+        assertEquals(-1, rows.getColumn());
+        assertEquals(300, rows.getNumUsedRows());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void queryReadsReferencedColumns() throws Exception {
+        insert(0, 200);
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(cf.getId(), 1));
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(cf.getId(), "t");
+        lp.addProjectField("t.score", null);
+        lp.addFilter("t.id", Predicate.Op.LESS_THAN, "3");
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        plan.open();
+        ArrayList<Integer> scores = new ArrayList<Integer>();
+        while (plan.hasNext())
+            scores.add(((IntField) plan.next().getField(0)).getValue());
+        plan.close();
+        assertEquals(3, scores.size());
+        assertEquals(20, (int) scores.get(2));
+
+        // the scan read id and score, but not name
+        BufferPool bp = Database.getBufferPool();
+        assertTrue(bp.isCached(cf.columnPageId(0, 0, 0)));
+        assertFalse(bp.isCached(cf.columnPageId(0, 1, 0)));
+        bp.transactionComplete(tid);
+    }
+
+    @Test public void dictionaryEncodedColumn() throws Exception {
+        File f = File.createTempFile("columnar", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".dict1").deleteOnExit();
+        ColumnarFile dcf = new ColumnarFile(f, td, new boolean[] { false, true, false });
+        Database.getCatalog().addTable(dcf, SystemTestUtil.getUUID());
+        // the codes take a page per segment instead of 35
+        assertEquals(1 + 1 + 1 + 1, dcf.getSegmentPages());
+
+        String[] states = { "open", "closed", "pending" };
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 300; i++) {
+            Tuple t = tuple(i);
+            t.setField(1, new StringField(states[i % 3], Type.STRING_LEN));
+            Database.getBufferPool().insertTuple(tid, dcf.getId(), t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(3, dcf.getDictionary(1).size());
+
+        // read back through a new file object, which reads the dictionary
+        Database.getCatalog().clear();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        dcf = new ColumnarFile(f, td, new boolean[] { false, true, false });
+        Database.getCatalog().addTable(dcf, "orders");
+        tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(dcf.getId(), "o");
+        lp.addProjectField("o.id", null);
+        lp.addFilter("o.name", Predicate.Op.EQUALS, "closed");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("orders", new TableStats(dcf.getId(), 1));
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        plan.open();
+        int count = 0;
+        while (plan.hasNext()) {
+            assertEquals(1, ((IntField) plan.next().getField(0)).getValue() % 3);
+            count++;
+        }
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(100, count);
+    }
+
+    @Test public void catalogOption() throws Exception {
+        File catalog = File.createTempFile("catalog", ".txt");
+        catalog.deleteOnExit();
+        PrintWriter out = new PrintWriter(new FileWriter(catalog));
+        out.println("facts (id int, name string dict) columnar");
+        out.close();
+        Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+        Catalog c = Database.getCatalog();
+        ColumnarFile facts = (ColumnarFile) c.getDatabaseFile(c.getTableId("facts"));
+        assertNull(facts.getDictionary(0));
+        assertNotNull(facts.getDictionary(1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ColumnarFileTest.class);
+    }
+}
@@ -0,0 +1,111 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ExternalSortTest extends SimpleDbTestBase {
+    private static final TupleDesc TD = Utility.getTupleDesc(2);
+
+    /** Sort n tuples of a random key and a distinct second field */
+    private ArrayList<Tuple> sort(ExternalSort sort, int n) throws IOException {
+        Random r = new Random(7);
+        for (int i = 0; i < n; i++) {
+            sort.add(Utility.getHeapTuple(new int[] { r.nextInt(1000), i }));
+        }
+        ArrayList<Tuple> sorted = new ArrayList<Tuple>();
+        Iterator<Tuple> it = sort.sorted();
+        while (it.hasNext()) {
+            sorted.add(it.next());
+        }
+        return sorted;
+    }
+
+    private void assertSorted(ArrayList<Tuple> sorted, int n) {
+        assertEquals(n, sorted.size());
+        HashSet<Field> seconds = new HashSet<Field>();
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                assertFalse(sorted.get(i - 1).getField(0).compare(Predicate.Op.GREATER_THAN,
+                        sorted.get(i).getField(0)));
+            }
+            seconds.add(sorted.get(i).getField(1));
+        }
+        assertEquals(n, seconds.size());
+    }
+
+    @Test public void sortsInMemory() throws Exception {
+        ExternalSort sort = new ExternalSort(TD, new BTreeFileEncoder.TupleComparator(0),
+                ExternalSort.DEFAULT_WORK_MEM);
+        assertSorted(sort(sort, 5000), 5000);
+        assertEquals(0, sort.numRuns());
+        sort.close();
+    }
+
+    @Test public void spillsAndMerges() throws Exception {
+        // room for about a hundred tuples, and a fan-in of two, so the runs
+        // are merged in several passes
+        ExternalSort sort = new ExternalSort(TD, new BTreeFileEncoder.TupleComparator(0), 10000);
+        assertSorted(sort(sort, 5000), 5000);
+        assertTrue(sort.numRuns() > 0);
+        sort.close();
+    }
+
+    private BTreeFile bulkLoad(ArrayList<ArrayList<Integer>> tuples, double fillFactor)
+            throws Exception {
+        File in = File.createTempFile("bulkload", ".txt");
+        in.deleteOnExit();
+        BufferedWriter w = new BufferedWriter(new FileWriter(in));
+        for (ArrayList<Integer> t : tuples) {
+            w.write(t.get(0) + "," + t.get(1) + "\n");
+        }
+        w.close();
+        File hFile = File.createTempFile("bulkload", ".dat");
+        hFile.deleteOnExit();
+        File bFile = File.createTempFile("bulkload_index", ".dat");
+        bFile.deleteOnExit();
+        return BTreeFileEncoder.convert(in, hFile, bFile, BufferPool.getPageSize(), 2,
+                new Type[] { Type.INT_TYPE, Type.INT_TYPE }, ',', 0, fillFactor, 20000);
+    }
+
+    @Test public void bulkLoadsBTree() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeUtility.generateRandomTuples(2, 20000, 5000, null, tuples);
+        BTreeFile full = bulkLoad(tuples, 1.0);
+        BTreeFile half = bulkLoad(tuples, 0.5);
+
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(full, tid, new HashMap<PageId, Page>(), true);
+        BTreeChecker.checkRep(half, tid, new HashMap<PageId, Page>(), false);
+        assertTrue(half.numPages() > full.numPages() * 3 / 2);
+
+        // every tuple is in the tree, in key order
+        DbFileIterator it = half.iterator(tid);
+        it.open();
+        int count = 0;
+        int last = Integer.MIN_VALUE;
+        while (it.hasNext()) {
+            int key = ((IntField) it.next().getField(0)).getValue();
+            assertTrue(last <= key);
+            last = key;
+            count++;
+        }
+        it.close();
+        assertEquals(20000, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ExternalSortTest.class);
+    }
+}
@@ -0,0 +1,137 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class FileHandleTest extends SimpleDbTestBase {
+    private File file;
+    private FileHandle handle;
+
+    @Before public void createFile() throws Exception {
+        file = File.createTempFile("filehandle", ".dat");
+        file.deleteOnExit();
+        handle = new FileHandle(file);
+    }
+
+    private static byte[] filled(int len, int value) {
+        byte[] b = new byte[len];
+        Arrays.fill(b, (byte) value);
+        return b;
+    }
+
+    @Test public void positionalReadWrite() throws Exception {
+        handle.write(filled(100, 1), 0);
+        handle.write(filled(100, 2), 100);
+        byte[] b = new byte[100];
+        assertEquals(100, handle.read(b, 100));
+        assertTrue(Arrays.equals(filled(100, 2), b));
+        // reading past the end stops at the end of the file
+        assertEquals(50, handle.read(b, 150));
+        assertEquals(0, handle.read(b, 200));
+    }
+
+    @Test public void reopensAfterClose() throws Exception {
+        handle.write(filled(10, 3), 0);
+        handle.close();
+        byte[] b = new byte[10];
+        assertEquals(10, handle.read(b, 0));
+        assertTrue(Arrays.equals(filled(10, 3), b));
+        handle.close();
+    }
+
+    @Test public void concurrentReaders() throws Exception {
+        for (int i = 0; i < 16; i++)
+            handle.write(filled(64, i), i * 64);
+        final AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    byte[] b = new byte[64];
+                    try {
+                        for (int round = 0; round < 200; round++) {
+                            int i = round % 16;
+                            handle.read(b, i * 64);
+                            if (!Arrays.equals(filled(64, i), b))
+                                errors.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals(0, errors.get());
+    }
+
+    @Test public void sliceFollowsWritesAndGrowth() throws Exception {
+        handle.write(filled(100, 1), 0);
+        ByteBuffer b = handle.slice(0, 100);
+        assertEquals(100, b.remaining());
+        assertEquals(1, b.get(99));
+        assertNull(handle.slice(50, 100));
+
+        // the file grows past the mapping
+        handle.write(filled(100, 2), 100);
+        b = handle.slice(100, 100);
+        assertEquals(2, b.get(0));
+        // writes through the channel are visible in the mapping
+        handle.write(filled(1, 5), 0);
+        assertEquals(5, handle.slice(0, 1).get(0));
+    }
+
+    @Test public void memoryMappedHeapFile() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        hf.setMemoryMapped(true);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 504 * 2; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().flushAllPages();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(5, hf.numPages());
+
+        // read every page again from the mapping, including the new ones
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(504 * 5, count);
+    }
+
+    @Test public void catalogClearClosesFiles() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Database.getCatalog().clear();
+        // the file is usable again after being closed
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        assertNotNull(hf.readPage(new HeapPageId(hf.getId(), 0)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FileHandleTest.class);
+    }
+}
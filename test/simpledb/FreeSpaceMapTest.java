@@ -0,0 +1,163 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+    private HeapFile hf;
+
+    @Before public void createTable() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+    }
+
+    private int scan(HeapFile f) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    private Tuple tupleOnPage(int pgNo) throws Exception {
+        TransactionId tid = new TransactionId();
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(hf.getId(), pgNo), Permissions.READ_ONLY);
+        Tuple t = p.iterator().next();
+        Database.getBufferPool().transactionComplete(tid);
+        return t;
+    }
+
+    @Test public void insertGoesToPageWithRoom() throws Exception {
+        // opening the map reads that every page is full
+        assertEquals(504 * 20, scan(hf));
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().deleteTuple(tid, tupleOnPage(15));
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getCatalog().clear();
+
+        // a new HeapFile reads the map from the side file
+        HeapFile reopened = new HeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        bp.insertTuple(tid, reopened.getId(), t);
+        assertEquals(15, t.getRecordId().getPageId().getPageNumber());
+        // no other page was read to find it
+        for (int i = 0; i < 20; i++)
+            assertEquals(i == 15, bp.isCached(new HeapPageId(reopened.getId(), i)));
+        bp.transactionComplete(tid);
+        assertEquals(20, reopened.numPages());
+    }
+
+    @Test public void mapOfOldFileIsNotUsed() throws Exception {
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().deleteTuple(tid, tupleOnPage(15));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1, hf.freeSpace().getFree(15));
+        Database.getCatalog().clear();
+
+        // another file with full pages, written behind the map
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        Thread.sleep(10);
+        Files.copy(other.getFile().toPath(), hf.getFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        HeapFile reopened = new HeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+        assertEquals(0, reopened.freeSpace().getFree(15));
+        assertEquals(-1, reopened.freeSpace().findPage(0));
+    }
+
+    @Test public void staleEntriesAreCorrected() throws Exception {
+        // without a side file the map reads the pages when it is opened,
+        // finds that they are full and the insert appends a page
+        TransactionId tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertEquals(20, t.getRecordId().getPageId().getPageNumber());
+        Database.getBufferPool().transactionComplete(tid);
+        FreeSpaceMap fsm = hf.freeSpace();
+        for (int i = 0; i < 20; i++)
+            assertEquals(0, fsm.getFree(i));
+        // 503 free slots, capped
+        assertEquals(255, fsm.getFree(20));
+        assertEquals(20, fsm.findPage(3));
+    }
+
+    @Test public void abortRestoresEntry() throws Exception {
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().deleteTuple(tid, tupleOnPage(15));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1, hf.freeSpace().getFree(15));
+
+        tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertEquals(15, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(0, hf.freeSpace().getFree(15));
+        Database.getBufferPool().transactionComplete(tid, false);
+        assertEquals(1, hf.freeSpace().getFree(15));
+    }
+
+    @Test public void searchStartsAtDifferentPages() throws Exception {
+        File f = File.createTempFile("fsm", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".fsm").deleteOnExit();
+        FreeSpaceMap fsm = new FreeSpaceMap(f, 0);
+        assertEquals(-1, fsm.findPage(0));
+        for (int i = 0; i < 8; i++)
+            fsm.update(i, i % 2 == 0 ? 10 : 0);
+        Set<Integer> found = new HashSet<Integer>();
+        for (int start = 0; start < 8; start++)
+            found.add(fsm.findPage(start));
+        assertEquals(4, found.size());
+        assertEquals(0, fsm.findPage(7));
+
+        // entries survive closing the map
+        fsm.close();
+        FreeSpaceMap again = new FreeSpaceMap(f, 8);
+        assertEquals(10, again.getFree(4));
+        assertEquals(0, again.getFree(5));
+        again.close();
+    }
+
+    @Test public void newFileIgnoresOldSideFile() throws Exception {
+        File f = File.createTempFile("fsm", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".fsm").deleteOnExit();
+        FreeSpaceMap fsm = new FreeSpaceMap(f, 0);
+        fsm.update(0, 0);
+        fsm.close();
+        File side = new File(f.getPath() + ".fsm");
+        assertTrue(side.exists());
+        // an empty heap file starts over
+        new FreeSpaceMap(f, 0).close();
+        assertFalse(side.exists());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -0,0 +1,149 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HeapFileCompactorTest extends SimpleDbTestBase {
+    private static final int PAGES = 20;
+    private static final int ROWS = 504 * PAGES;
+    private HeapFile hf;
+
+    /** A table whose first field is its row number */
+    @Before public void createTable() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < ROWS; i++)
+            tuples.add(new ArrayList<Integer>(Arrays.asList(i, i % 7)));
+        File f = File.createTempFile("compact", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".fsm").deleteOnExit();
+        new File(f.getPath() + ".zm").deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        hf = Utility.openHeapFile(2, "field", f);
+    }
+
+    /** The first fields of the tuples of the table */
+    private HashSet<Integer> values() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        HashSet<Integer> values = new HashSet<Integer>();
+        while (it.hasNext()) {
+            assertTrue(values.add(((IntField) it.next().getField(0)).getValue()));
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return values;
+    }
+
+    /** Delete the tuples whose first field is not a multiple of keep */
+    private HashSet<Integer> deleteAllBut(int keep) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        ArrayList<Tuple> doomed = new ArrayList<Tuple>();
+        HashSet<Integer> kept = new HashSet<Integer>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int v = ((IntField) t.getField(0)).getValue();
+            if (v % keep == 0)
+                kept.add(v);
+            else
+                doomed.add(t);
+        }
+        it.close();
+        for (Tuple t : doomed)
+            Database.getBufferPool().deleteTuple(tid, t);
+        Database.getBufferPool().transactionComplete(tid);
+        return kept;
+    }
+
+    @Test public void reclaimsEmptiedPages() throws Exception {
+        HashSet<Integer> kept = deleteAllBut(4);
+        assertEquals(PAGES, hf.numPages());
+
+        int reclaimed = new HeapFileCompactor(hf).compact();
+        assertEquals(PAGES - PAGES / 4, reclaimed);
+        assertEquals(PAGES / 4, hf.numPages());
+        assertEquals((long) PAGES / 4 * BufferPool.getPageSize(), hf.getFile().length());
+        assertEquals(kept, values());
+
+        // the moved tuples are found through the zone map
+        ArrayList<Predicate> preds = new ArrayList<Predicate>();
+        preds.add(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(ROWS - 4)));
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid, preds);
+        it.open();
+        boolean found = false;
+        while (it.hasNext())
+            found |= ((IntField) it.next().getField(0)).getValue() == ROWS - 4;
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(found);
+    }
+
+    @Test public void runsIncrementally() throws Exception {
+        deleteAllBut(2);
+        HeapFileCompactor c = new HeapFileCompactor(hf);
+        assertEquals(3, c.compact(3));
+        assertEquals(PAGES - 3, hf.numPages());
+        assertEquals(PAGES / 2 - 3, c.compact());
+        assertEquals(PAGES / 2, hf.numPages());
+        assertEquals(0, c.compact());
+    }
+
+    @Test public void stopsWhenTuplesDoNotFit() throws Exception {
+        // a few free slots are not enough for the last page
+        TransactionId tid = new TransactionId();
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+        ArrayList<Tuple> doomed = new ArrayList<Tuple>();
+        for (Tuple t : (Iterable<Tuple>) p::iterator)
+            if (doomed.size() < 10)
+                doomed.add(t);
+        for (Tuple t : doomed)
+            Database.getBufferPool().deleteTuple(tid, t);
+        Database.getBufferPool().transactionComplete(tid);
+
+        assertEquals(0, new HeapFileCompactor(hf).compact());
+        assertEquals(PAGES, hf.numPages());
+        assertEquals(ROWS - 10, values().size());
+    }
+
+    @Test public void insertsAfterTruncation() throws Exception {
+        deleteAllBut(ROWS);
+        assertEquals(PAGES - 1, new HeapFileCompactor(hf).compact());
+        assertEquals(1, hf.numPages());
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 600; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { -i - 1, 0 }));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(2, hf.numPages());
+        assertEquals(601, values().size());
+    }
+
+    @Test public void vacuumStatement() throws Exception {
+        deleteAllBut(2);
+        Database.getCatalog().addTable(hf, "vacuumed");
+        new Parser().processNextStatement("VACUUM vacuumed;");
+        assertEquals(PAGES / 2, hf.numPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileCompactorTest.class);
+    }
+}
@@ -0,0 +1,96 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.file.Files;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HeapFileEncoderTest extends SimpleDbTestBase {
+    private static final Type[] TYPES = new Type[] { Type.INT_TYPE, Type.STRING_TYPE };
+
+    private File text(String contents) throws IOException {
+        File f = File.createTempFile("encoder", ".txt");
+        f.deleteOnExit();
+        Files.write(f.toPath(), contents.getBytes("UTF-8"));
+        return f;
+    }
+
+    private File convert(File in, int threads, long expectedRows) throws IOException {
+        File out = File.createTempFile("encoder", ".dat");
+        out.deleteOnExit();
+        assertEquals(expectedRows, HeapFileEncoder.convert(in, out, BufferPool.getPageSize(),
+                2, TYPES, ',', threads));
+        return out;
+    }
+
+    /** Scan a converted file, checking row i is (i, "row" + i) */
+    private int check(File f) throws Exception {
+        HeapFile hf = new HeapFile(f, new TupleDesc(TYPES));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int i = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(new IntField(i - 3), t.getField(0));
+            assertEquals(new StringField("row" + i, Type.STRING_LEN), t.getField(1));
+            i++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return i;
+    }
+
+    @Test public void parallelMatchesSerial() throws Exception {
+        // enough lines for several chunks, with blank lines, padding and
+        // Windows line endings mixed in
+        StringBuilder sb = new StringBuilder();
+        int rows = 3 * HeapFileEncoder.CHUNK_BYTES / 12;
+        for (int i = 0; i < rows; i++) {
+            if (i % 1000 == 0)
+                sb.append("\n");
+            sb.append(i - 3).append(i % 3 == 0 ? " , row" : ",row").append(i)
+              .append(i % 2 == 0 ? "\r\n" : "\n");
+        }
+        File in = text(sb.toString());
+        File serial = convert(in, 1, rows);
+        File parallel = convert(in, 4, rows);
+        assertArrayEquals(Files.readAllBytes(serial.toPath()), Files.readAllBytes(parallel.toPath()));
+        assertEquals(rows, check(parallel));
+    }
+
+    @Test public void lastLineWithoutNewline() throws Exception {
+        File out = convert(text("-3,row0\n-2,row1"), 2, 2);
+        assertEquals(BufferPool.getPageSize(), out.length());
+        assertEquals(2, check(out));
+    }
+
+    @Test public void emptyFileHasOneEmptyPage() throws Exception {
+        File out = convert(text(""), 2, 0);
+        assertEquals(BufferPool.getPageSize(), out.length());
+        assertEquals(0, check(out));
+    }
+
+    @Test(expected=IOException.class) public void tooManyFields() throws Exception {
+        convert(text("1,a\n2,b,c\n"), 2, 0);
+    }
+
+    @Test(expected=IOException.class) public void tooFewFields() throws Exception {
+        convert(text("1,a\n2\n"), 2, 0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileEncoderTest.class);
+    }
+}
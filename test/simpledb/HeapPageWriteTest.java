@@ -1,9 +1,11 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -126,6 +128,40 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for the before-image, which is copied only on a change
+     */
+    @Test public void beforeImageCopyOnWrite() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        byte[] original = page.getPageData();
+        assertTrue(Arrays.equals(original, page.getBeforeImage().getPageData()));
+
+        page.insertTuple(Utility.getHeapTuple(42, 2));
+        page.insertTuple(Utility.getHeapTuple(43, 2));
+        assertTrue(Arrays.equals(original, page.getBeforeImage().getPageData()));
+        assertFalse(Arrays.equals(original, page.getPageData()));
+
+        page.setBeforeImage();
+        assertTrue(Arrays.equals(page.getPageData(), page.getBeforeImage().getPageData()));
+    }
+
+    /**
+     * Unit test that HeapPage keeps its own copy of inserted tuples
+     */
+    @Test public void insertCopiesTuple() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        Tuple t = Utility.getHeapTuple(7, 2);
+        page.insertTuple(t);
+        t.setField(0, new IntField(8));
+        Tuple stored = page.iterator().next();
+        assertEquals(new IntField(7), stored.getField(0));
+        assertEquals(t.getRecordId(), stored.getRecordId());
+
+        // the image is the page, a new page reads the same tuple
+        HeapPage read = new HeapPage(pid, page.getPageData());
+        assertEquals(new IntField(7), read.iterator().next().getField(0));
+    }
+
     /**
      * JUnit suite target
      */
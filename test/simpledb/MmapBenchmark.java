@@ -0,0 +1,49 @@
+package simpledb;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Compares the two read paths of HeapFile on a table several times larger
+ * than the buffer pool: reading pages with positional reads from the
+ * FileChannel, and building them from a memory mapping of the file. The
+ * file stays in the operating system's cache, so this measures the cost
+ * of getting a page from the kernel into the pool.
+ *
+ * Usage: MmapBenchmark [scans]
+ */
+public class MmapBenchmark {
+    private static final int POOL_PAGES = BufferPool.DEFAULT_PAGES;
+    private static final int TABLE_PAGES = 40 * POOL_PAGES;
+
+    public static void main(String[] args) throws Exception {
+        int scans = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+
+        System.out.println("read path\tpages/s");
+        // the first round warms up the JIT and the page cache
+        for (int round = 0; round < 2; round++) {
+            for (boolean mapped : new boolean[] { false, true }) {
+                hf.setMemoryMapped(mapped);
+                Database.resetBufferPool(POOL_PAGES);
+                long start = System.nanoTime();
+                long pages = 0;
+                for (int s = 0; s < scans; s++) {
+                    TransactionId tid = new TransactionId();
+                    DbFileIterator it = hf.iterator(tid);
+                    it.open();
+                    while (it.hasNext()) {
+                        it.next();
+                    }
+                    it.close();
+                    Database.getBufferPool().transactionComplete(tid);
+                    pages += TABLE_PAGES;
+                }
+                double secs = (System.nanoTime() - start) / 1e9;
+                if (round == 1) {
+                    System.out.printf("%s\t%.0f\n", mapped ? "mmap" : "FileChannel", pages / secs);
+                }
+            }
+        }
+    }
+}
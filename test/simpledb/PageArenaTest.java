@@ -0,0 +1,78 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageArenaTest extends SimpleDbTestBase {
+    private HeapFile hf;
+
+    @Before public void createTable() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+    }
+
+    private HeapPage page(int n) throws Exception {
+        return (HeapPage) hf.readPage(new HeapPageId(hf.getId(), n));
+    }
+
+    @Test public void putAndTake() throws Exception {
+        PageArena arena = new PageArena(4, BufferPool.getPageSize());
+        HeapPage p = page(3);
+        arena.put(p);
+        byte[] data = arena.take(p.getId());
+        assertTrue(Arrays.equals(p.getPageData(), data));
+        // take removes the image
+        assertNull(arena.take(p.getId()));
+    }
+
+    @Test public void dropsOldestWhenFull() throws Exception {
+        PageArena arena = new PageArena(2, BufferPool.getPageSize());
+        arena.put(page(0));
+        arena.put(page(1));
+        arena.put(page(2));
+        assertNull(arena.take(page(0).getId()));
+        assertNotNull(arena.take(page(1).getId()));
+        assertNotNull(arena.take(page(2).getId()));
+    }
+
+    @Test public void removeForgetsImage() throws Exception {
+        PageArena arena = new PageArena(2, BufferPool.getPageSize());
+        arena.put(page(0));
+        arena.remove(page(0).getId());
+        assertNull(arena.take(page(0).getId()));
+    }
+
+    @Test public void bufferPoolRebuildsPagesFromArena() throws Exception {
+        BufferPool bp = Database.resetBufferPool(8, LRUPolicy::new, 32);
+        TransactionId tid = new TransactionId();
+        for (int round = 0; round < 2; round++) {
+            DbFileIterator it = hf.iterator(tid);
+            it.open();
+            int count = 0;
+            while (it.hasNext()) {
+                it.next();
+                count++;
+            }
+            it.close();
+            assertEquals(504 * 20, count);
+        }
+        // the second scan finds the pages that left the pool in the arena
+        assertTrue(bp.getArenaHits() >= 20 - 8);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageArenaTest.class);
+    }
+}
@@ -0,0 +1,128 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageCleanerTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private BufferPool bp;
+
+    /**
+     * Commit a delete on each of the first 8 pages with NO-FORCE, which
+     * leaves 8 dirty pages of committed transactions in the pool.
+     */
+    @Before public void dirtyPages() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        bp = Database.resetBufferPool(16);
+        bp.setForceOnCommit(false);
+        for (int i = 0; i < 8; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            HeapPage p = (HeapPage) bp.getPage(t.getId(), new HeapPageId(hf.getId(), i),
+                    Permissions.READ_WRITE);
+            bp.deleteTuple(t.getId(), p.iterator().next());
+            t.commit();
+        }
+    }
+
+    /** Read every page once, without read-ahead */
+    private void scan() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < hf.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+    }
+
+    @Test public void cleanedPagesAreEvictedWithoutWriting() throws Exception {
+        assertEquals(8, bp.cleanColdPages(16, 100));
+        assertEquals(8, bp.getPagesCleaned());
+        assertEquals(0, bp.cleanColdPages(16, 100));
+
+        // the scan evicts the oldest pages, which the cleaner wrote
+        scan();
+        assertEquals(0, bp.getDirtyEvictions());
+        assertTrue(bp.getEvictions() > 0);
+        assertEquals(bp.getEvictions(), bp.getDirtyEvictionsAvoided());
+    }
+
+    @Test public void cleanerIsRateLimited() throws Exception {
+        assertEquals(3, bp.cleanColdPages(16, 3));
+        assertEquals(3, bp.getPagesCleaned());
+    }
+
+    @Test public void backgroundCleaner() throws Exception {
+        bp.startCleaner(16, 1000);
+        try {
+            for (int i = 0; i < 100 && bp.getPagesCleaned() < 8; i++) {
+                Thread.sleep(20);
+            }
+        } finally {
+            bp.stopCleaner();
+        }
+        assertEquals(8, bp.getPagesCleaned());
+
+        scan();
+        assertEquals(0, bp.getDirtyEvictions());
+    }
+
+    /**
+     * Start a transaction that deletes a tuple of page 0, which a committed
+     * transaction dirtied, in place: it has not marked the page dirty yet
+     */
+    private Transaction changeInPlace() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        HeapPage p = (HeapPage) bp.getPage(t.getId(), new HeapPageId(hf.getId(), 0),
+                Permissions.READ_WRITE);
+        p.deleteTuple(p.iterator().next());
+        return t;
+    }
+
+    /** The number of empty slots of page 0 on disk */
+    private int emptyOnDisk() throws Exception {
+        return ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0))).getNumEmptySlots();
+    }
+
+    @Test public void cleanerSkipsPagesBeingChanged() throws Exception {
+        Transaction t = changeInPlace();
+        assertEquals(7, bp.cleanColdPages(16, 100));
+        assertEquals(0, emptyOnDisk());
+        t.abort();
+    }
+
+    @Test public void writeLogsChangeInProgress() throws Exception {
+        Transaction t = changeInPlace();
+        bp.flushAllPages();
+        assertEquals(2, emptyOnDisk());
+
+        // the update was logged for t, so its abort restores the committed page
+        t.abort();
+        assertEquals(1, emptyOnDisk());
+    }
+
+    @Test public void cleanerNeedsNoForce() throws Exception {
+        bp.setForceOnCommit(true);
+        try {
+            bp.startCleaner(16, 1000);
+            fail("the cleaner started under FORCE");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        assertEquals(0, bp.getPagesCleaned());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCleanerTest.class);
+    }
+}
@@ -0,0 +1,107 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+    private HeapFile hf;
+
+    @Before public void createTable() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 40, null, null);
+    }
+
+    private HeapPageId pid(int n) {
+        return new HeapPageId(hf.getId(), n);
+    }
+
+    private void waitForPrefetch(BufferPool bp, List<PageId> pids) throws Exception {
+        for (PageId p : pids) {
+            for (int i = 0; i < 500 && bp.isPrefetching(p); i++) {
+                Thread.sleep(2);
+            }
+        }
+    }
+
+    @Test public void scanPrefetchesPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        bp.transactionComplete(tid);
+        assertEquals(504 * 40, count);
+        assertTrue(bp.getPrefetches() > 0);
+        assertTrue(bp.getPrefetchHits() > 0);
+    }
+
+    @Test public void scanWithSmallPool() throws Exception {
+        Database.resetBufferPool(8);
+        for (int round = 0; round < 2; round++) {
+            TransactionId tid = new TransactionId();
+            DbFileIterator it = hf.iterator(tid);
+            it.open();
+            int count = 0;
+            while (it.hasNext()) {
+                it.next();
+                count++;
+            }
+            it.close();
+            Database.getBufferPool().transactionComplete(tid);
+            assertEquals(504 * 40, count);
+        }
+    }
+
+    @Test public void unusedPrefetchedPagesAreEvictedFirst() throws Exception {
+        BufferPool bp = Database.resetBufferPool(8);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 4; i++)
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+
+        List<PageId> ahead = new ArrayList<PageId>();
+        for (int i = 4; i < 8; i++)
+            ahead.add(pid(i));
+        bp.prefetchPages(ahead);
+        waitForPrefetch(bp, ahead);
+        assertEquals(4, bp.getPrefetches());
+
+        // the pool is full; the pages read by the transaction stay
+        for (int i = 8; i < 12; i++)
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        for (int i = 0; i < 4; i++)
+            assertTrue(bp.isCached(pid(i)));
+        bp.transactionComplete(tid);
+    }
+
+    @Test public void jumpEndsSequentialRun() throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        ReadAhead ra = new ReadAhead(hf.getId());
+        ra.access(0, 40);
+        ra.access(1, 40);
+        assertEquals(2, ra.getWindow());
+        // a jump ends the sequential run
+        ra.access(20, 40);
+        assertEquals(2, ra.getWindow());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
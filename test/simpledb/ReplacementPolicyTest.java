@@ -0,0 +1,161 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+public class ReplacementPolicyTest {
+
+    private static final ReplacementPolicy.Evictable ANY = new ReplacementPolicy.Evictable() {
+        public boolean canEvict(PageId pid) {
+            return true;
+        }
+    };
+
+    private static PageId pid(int n) {
+        return new HeapPageId(1, n);
+    }
+
+    @Test public void lruEvictsLeastRecentlyUsed() {
+        ReplacementPolicy p = new LRUPolicy(3);
+        p.insert(pid(0));
+        p.insert(pid(1));
+        p.insert(pid(2));
+        p.access(pid(0));
+        assertEquals(pid(1), p.evict(ANY));
+        assertEquals(pid(2), p.evict(ANY));
+        assertEquals(pid(0), p.evict(ANY));
+        assertNull(p.evict(ANY));
+    }
+
+    @Test public void clockGivesSecondChance() {
+        ReplacementPolicy p = new ClockPolicy(3);
+        p.insert(pid(0));
+        p.insert(pid(1));
+        p.insert(pid(2));
+        p.access(pid(0));
+        assertEquals(pid(1), p.evict(ANY));
+        p.insert(pid(3));
+        assertEquals(pid(2), p.evict(ANY));
+    }
+
+    @Test public void pinnedPagesAreNeverEvicted() {
+        final Set<PageId> pinned = new HashSet<PageId>();
+        pinned.add(pid(0));
+        pinned.add(pid(1));
+        ReplacementPolicy.Evictable unpinned = new ReplacementPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                return !pinned.contains(pid);
+            }
+        };
+        ReplacementPolicy[] policies = {
+            new LRUPolicy(2), new ClockPolicy(2), new ClockProPolicy(2)
+        };
+        for (ReplacementPolicy p : policies) {
+            p.insert(pid(0));
+            p.insert(pid(1));
+            assertNull(p.evict(unpinned));
+            pinned.remove(pid(1));
+            assertEquals(pid(1), p.evict(unpinned));
+            pinned.add(pid(1));
+        }
+    }
+
+    @Test public void clockProKeepsReusedPagesOverScan() {
+        ReplacementPolicy p = new ClockProPolicy(4);
+        Set<PageId> resident = new HashSet<PageId>();
+        // two pages that are used over and over
+        for (int i = 0; i < 2; i++) {
+            p.insert(pid(i));
+            resident.add(pid(i));
+        }
+        for (int n = 100; n < 200; n++) {
+            p.access(pid(0));
+            p.access(pid(1));
+            if (resident.size() >= 4) {
+                PageId victim = p.evict(ANY);
+                assertNotNull(victim);
+                resident.remove(victim);
+            }
+            // a one-time scan page
+            p.insert(pid(n));
+            resident.add(pid(n));
+        }
+        assertTrue(resident.contains(pid(0)));
+        assertTrue(resident.contains(pid(1)));
+    }
+
+    @Test public void twoQKeepsReusedPagesOverScan() {
+        ReplacementPolicy p = new TwoQPolicy(16);
+        Set<PageId> resident = new HashSet<PageId>();
+        int next = 100;
+        for (int round = 0; round < 50; round++) {
+            // pages 0 and 1 are requested in every round, evicted or not
+            for (int i = 0; i < 2; i++) {
+                if (resident.contains(pid(i))) {
+                    p.access(pid(i));
+                    continue;
+                }
+                if (resident.size() >= 16)
+                    resident.remove(p.evict(ANY));
+                p.insert(pid(i));
+                resident.add(pid(i));
+            }
+            // followed by a few one-time scan pages
+            for (int i = 0; i < 6; i++) {
+                if (resident.size() >= 16)
+                    resident.remove(p.evict(ANY));
+                p.insert(pid(next));
+                resident.add(pid(next++));
+            }
+        }
+        assertTrue(resident.contains(pid(0)));
+        assertTrue(resident.contains(pid(1)));
+    }
+
+    @Test public void bufferPoolStatistics() throws Exception {
+        HeapFile hf = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        BufferPool bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+        assertEquals(1, bp.getHits());
+        assertEquals(3, bp.getMisses());
+        assertEquals(1, bp.getEvictions());
+        bp.transactionComplete(tid);
+    }
+
+    @Test public void bufferPoolWithEachPolicy() throws Exception {
+        ReplacementPolicy.Factory[] factories = {
+            LRUPolicy::new, ClockPolicy::new, ClockProPolicy::new, TwoQPolicy::new
+        };
+        HeapFile hf = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        for (ReplacementPolicy.Factory f : factories) {
+            Database.resetBufferPool(4, f);
+            TransactionId tid = new TransactionId();
+            DbFileIterator it = hf.iterator(tid);
+            it.open();
+            int count = 0;
+            while (it.hasNext()) {
+                it.next();
+                count++;
+            }
+            it.close();
+            assertEquals(504 * 20, count);
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -0,0 +1,55 @@
+package simpledb;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Runs a mixed workload against the buffer pool with each replacement
+ * policy: point reads on a small hot table interleaved with chunks of a
+ * sequential scan over a table several times the size of the pool. Prints
+ * the hit ratio of the hot table, i.e. how well the hot set is retained,
+ * and the overall statistics of the pool.
+ *
+ * Usage: ScanResistanceBenchmark [rounds]
+ */
+public class ScanResistanceBenchmark {
+    private static final int POOL_PAGES = BufferPool.DEFAULT_PAGES;
+    private static final int HOT_PAGES = 10;
+    private static final int SCAN_PAGES = 4 * POOL_PAGES;
+    private static final int SCAN_CHUNK = POOL_PAGES - 5;
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(2, 504 * HOT_PAGES, null, null);
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * SCAN_PAGES, null, null);
+
+        String[] names = { "LRU", "CLOCK", "CLOCK-Pro", "2Q" };
+        ReplacementPolicy.Factory[] policies = {
+            LRUPolicy::new, ClockPolicy::new, ClockProPolicy::new, TwoQPolicy::new
+        };
+
+        System.out.println("policy\thot hit ratio\thits\tmisses\tevictions");
+        for (int i = 0; i < policies.length; i++) {
+            BufferPool bp = Database.resetBufferPool(POOL_PAGES, policies[i]);
+            long hotHits = 0;
+            long hotReads = 0;
+            int scanPos = 0;
+            for (int r = 0; r < rounds; r++) {
+                TransactionId tid = new TransactionId();
+                for (int p = 0; p < HOT_PAGES; p++) {
+                    long before = bp.getHits();
+                    bp.getPage(tid, new HeapPageId(hot.getId(), p), Permissions.READ_ONLY);
+                    hotHits += bp.getHits() - before;
+                    hotReads++;
+                }
+                for (int p = 0; p < SCAN_CHUNK; p++) {
+                    bp.getPage(tid, new HeapPageId(big.getId(), scanPos), Permissions.READ_ONLY);
+                    scanPos = (scanPos + 1) % SCAN_PAGES;
+                }
+                bp.transactionComplete(tid);
+            }
+            System.out.printf("%s\t%.3f\t%d\t%d\t%d\n", names[i], (double) hotHits / hotReads,
+                    bp.getHits(), bp.getMisses(), bp.getEvictions());
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+    private static final int PAGES = 20;
+    private static final int ROWS = 504 * PAGES;
+    private HeapFile hf;
+    private SecondaryIndex index;
+
+    /**
+     * A table whose first field is its row number, indexed on its second
+     * field, which is the row number backwards
+     */
+    @Before public void createTable() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < ROWS; i++)
+            tuples.add(new ArrayList<Integer>(Arrays.asList(i, ROWS - i)));
+        File f = File.createTempFile("indexed", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".fsm").deleteOnExit();
+        new File(f.getPath() + ".zm").deleteOnExit();
+        File indexFile = new File(f.getParentFile(), "backwards.idx");
+        indexFile.delete();
+        indexFile.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        hf = Utility.openHeapFile(2, "field", f);
+        Database.getCatalog().addTable(hf, "indexed");
+        new Parser().processNextStatement("CREATE INDEX backwards ON indexed (field1);");
+        index = Database.getCatalog().getIndex(hf.getId(), 1);
+        assertNotNull(index);
+    }
+
+    /** The first fields of the tuples whose second field has value v */
+    private ArrayList<Integer> lookup(TransactionId tid, int v) throws Exception {
+        SeqScan scan = new SeqScan(tid, hf.getId());
+        scan.addPredicate(new Predicate(1, Predicate.Op.EQUALS, new IntField(v)));
+        scan.open();
+        ArrayList<Integer> rows = new ArrayList<Integer>();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            assertEquals(new IntField(v), t.getField(1));
+            rows.add(((IntField) t.getField(0)).getValue());
+        }
+        scan.close();
+        return rows;
+    }
+
+    /** The second fields of all tuples, read through the index */
+    private ArrayList<Integer> indexed() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = index.iterator(tid,
+                new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, new IntField(Integer.MIN_VALUE)));
+        it.open();
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        while (it.hasNext())
+            values.add(((IntField) it.next().getField(1)).getValue());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return values;
+    }
+
+    /** The second fields of all tuples, read from the table */
+    private ArrayList<Integer> scanned() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        while (it.hasNext())
+            values.add(((IntField) it.next().getField(1)).getValue());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Collections.sort(values);
+        return values;
+    }
+
+    @Test public void pointQueryReadsOnlyItsPage() throws Exception {
+        assertEquals(scanned(), indexed());
+
+        TransactionId tid = new TransactionId();
+        assertEquals(Arrays.asList(ROWS - 1), lookup(tid, 1));
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), PAGES - 1)));
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), 0)));
+        assertEquals(Collections.emptyList(), lookup(tid, -1));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void maintainedByInsertsAndDeletes() throws Exception {
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { -1, 1 }));
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { -2, -5 }));
+        Database.getBufferPool().transactionComplete(tid, false);
+        assertEquals(scanned(), indexed());
+
+        tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { -1, 1 }));
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        ArrayList<Integer> rows = lookup(tid, 1);
+        Collections.sort(rows);
+        assertEquals(Arrays.asList(-1, ROWS - 1), rows);
+
+        SeqScan scan = new SeqScan(tid, hf.getId());
+        scan.addPredicate(new Predicate(1, Predicate.Op.EQUALS, new IntField(1)));
+        scan.open();
+        ArrayList<Tuple> doomed = new ArrayList<Tuple>();
+        while (scan.hasNext())
+            doomed.add(scan.next());
+        scan.close();
+        for (Tuple t : doomed)
+            Database.getBufferPool().deleteTuple(tid, t);
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        assertEquals(Collections.emptyList(), lookup(tid, 1));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(scanned(), indexed());
+    }
+
+    @Test public void followsCompaction() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        ArrayList<Tuple> doomed = new ArrayList<Tuple>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (((IntField) t.getField(0)).getValue() % 4 != 0)
+                doomed.add(t);
+        }
+        it.close();
+        for (Tuple t : doomed)
+            Database.getBufferPool().deleteTuple(tid, t);
+        Database.getBufferPool().transactionComplete(tid);
+
+        assertEquals(PAGES - PAGES / 4, new HeapFileCompactor(hf).compact());
+        assertEquals(ROWS / 4, indexed().size());
+        assertEquals(scanned(), indexed());
+        tid = new TransactionId();
+        assertEquals(Arrays.asList(ROWS - 4), lookup(tid, 4));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void reopenedFromCatalogFile() throws Exception {
+        File dir = hf.getFile().getParentFile();
+        String name = hf.getFile().getName().replace(".dat", "");
+        File catalog = File.createTempFile("catalog", ".txt", dir);
+        catalog.deleteOnExit();
+        File indexFile = new File(dir, "forwards.idx");
+        indexFile.delete();
+        indexFile.deleteOnExit();
+        PrintWriter out = new PrintWriter(new FileWriter(catalog));
+        out.println(name + " (row int, field1 int)");
+        out.close();
+        Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+        new Parser().processNextStatement("CREATE INDEX forwards ON " + name + " (row);");
+        assertTrue(indexFile.length() > 0);
+
+        Database.reset();
+        Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+        hf = (HeapFile) Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(name));
+        index = Database.getCatalog().getIndex(hf.getId(), 0);
+        assertNotNull(index);
+        assertEquals("forwards", index.getName());
+        assertEquals(ROWS, indexed().size());
+    }
+
+    @Test public void keepsExistingIndexFile() throws Exception {
+        long length = new File(hf.getFile().getParentFile(), "backwards.idx").length();
+        assertTrue(length > 0);
+        Database.getCatalog().removeIndex(index);
+        new Parser().processNextStatement("CREATE INDEX backwards ON indexed (field1);");
+        assertNull(Database.getCatalog().getIndex(hf.getId(), 1));
+        assertEquals(length, new File(hf.getFile().getParentFile(), "backwards.idx").length());
+    }
+
+    @Test public void statementsShareAStream() throws Exception {
+        File indexFile = new File(hf.getFile().getParentFile(), "forwards.idx");
+        indexFile.delete();
+        indexFile.deleteOnExit();
+        InputStream in = new ByteArrayInputStream(
+                "CREATE INDEX forwards ON indexed (field0); DELETE FROM indexed WHERE indexed.field0 < 10;"
+                .getBytes("UTF-8"));
+        TableStats.setTableStats("indexed", new TableStats(hf.getId(), 1));
+        Parser p = new Parser();
+        p.processNextStatement(in);
+        assertNotNull(Database.getCatalog().getIndex(hf.getId(), 0));
+        // the rest of the stream goes to Zql
+        p.processNextStatement(in);
+        assertEquals(ROWS - 10, indexed().size());
+        assertEquals(scanned(), indexed());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SecondaryIndexTest.class);
+    }
+}
@@ -0,0 +1,197 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SlottedHeapPageTest extends SimpleDbTestBase {
+    private TupleDesc td;
+    private HeapPageId pid;
+
+    @Before public void addTable() throws Exception {
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        Database.getCatalog().addTable(new TestUtil.SkeletonFile(-1, td), SystemTestUtil.getUUID());
+        pid = new HeapPageId(-1, 0);
+    }
+
+    private Tuple tuple(int i) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField("name" + i, Type.STRING_LEN));
+        return t;
+    }
+
+    private ArrayList<Integer> keys(HeapPage page) {
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext())
+            keys.add(((IntField) it.next().getField(0)).getValue());
+        return keys;
+    }
+
+    @Test public void emptyPage() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        assertFalse(page.iterator().hasNext());
+        assertTrue(page.getNumEmptySlots() > 0);
+        assertTrue(page.hasRoomFor(tuple(0)));
+    }
+
+    @Test public void shortRecordsFillThePage() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        int n = 0;
+        while (page.hasRoomFor(tuple(n)))
+            page.insertTuple(tuple(n++));
+        // fixed-width slots hold 30 of these tuples
+        int fixed = new HeapPage(pid, HeapPage.createEmptyPageData()).getNumEmptySlots();
+        assertEquals(30, fixed);
+        assertTrue(n > 5 * fixed);
+        try {
+            page.insertTuple(tuple(n));
+            fail("page should be full");
+        } catch (DbException e) {
+            // expected
+        }
+
+        SlottedHeapPage read = new SlottedHeapPage(pid, page.getPageData());
+        assertEquals(keys(page), keys(read));
+        Iterator<Tuple> it = read.iterator();
+        for (int i = 0; i < n; i++) {
+            Tuple t = it.next();
+            assertEquals("name" + i, ((StringField) t.getField(1)).getValue());
+            assertEquals(i, t.getRecordId().getTupleNumber());
+        }
+    }
+
+    @Test public void deleteFreesSpaceAndSlot() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+        for (int i = 0; page.hasRoomFor(tuple(i)); i++) {
+            Tuple t = tuple(i);
+            page.insertTuple(t);
+            inserted.add(t);
+        }
+        page.deleteTuple(inserted.get(3));
+        assertFalse(page.isSlotUsed(3));
+        try {
+            page.deleteTuple(inserted.get(3));
+            fail("tuple was deleted already");
+        } catch (DbException e) {
+            // expected
+        }
+
+        // the slot survives writing the page and is reused
+        SlottedHeapPage read = new SlottedHeapPage(pid, page.getPageData());
+        assertFalse(read.isSlotUsed(3));
+        assertTrue(read.isSlotUsed(4));
+        Tuple t = tuple(-1);
+        assertTrue(read.hasRoomFor(t));
+        read.insertTuple(t);
+        assertEquals(3, t.getRecordId().getTupleNumber());
+    }
+
+    @Test public void tuplesAreCopies() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        Tuple t = tuple(1);
+        page.insertTuple(t);
+        // changing the inserted or returned tuples leaves the page alone
+        t.setField(0, new IntField(2));
+        t.setRecordId(new RecordId(new HeapPageId(-1, 7), 5));
+        Tuple read = page.iterator().next();
+        read.setField(0, new IntField(3));
+        page.getTuple(0).setRecordId(null);
+
+        assertEquals(new IntField(1), page.getTuple(0).getField(0));
+        assertEquals(new RecordId(pid, 0), page.iterator().next().getRecordId());
+        assertEquals(1, keys(new SlottedHeapPage(pid, page.getPageData())).get(0).intValue());
+    }
+
+    @Test public void heapFileOfSlottedPages() throws Exception {
+        File f = File.createTempFile("slotted", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = new HeapFile(f, td, true);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 1000; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(i));
+        Database.getBufferPool().transactionComplete(tid);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        // fixed-width slots need 34 pages
+        assertTrue(hf.numPages() <= 6);
+        tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int key = ((IntField) t.getField(0)).getValue();
+            assertEquals("name" + key, ((StringField) t.getField(1)).getValue());
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1000, count);
+    }
+
+    @Test public void migrateFixedToSlotted() throws Exception {
+        File in = File.createTempFile("fixed", ".dat");
+        in.deleteOnExit();
+        HeapFile fixed = new HeapFile(in, td);
+        Database.getCatalog().addTable(fixed, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 1000; i++)
+            Database.getBufferPool().insertTuple(tid, fixed.getId(), tuple(i));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(34, fixed.numPages());
+
+        File out = File.createTempFile("slotted", ".dat");
+        out.deleteOnExit();
+        assertEquals(1000, HeapFileMigrator.toSlotted(in, out, td));
+        HeapFile slotted = new HeapFile(out, td, true);
+        Database.getCatalog().addTable(slotted, SystemTestUtil.getUUID());
+        assertTrue(slotted.numPages() <= 6);
+
+        tid = new TransactionId();
+        DbFileIterator it = slotted.iterator(tid);
+        it.open();
+        boolean[] seen = new boolean[1000];
+        while (it.hasNext())
+            seen[((IntField) it.next().getField(0)).getValue()] = true;
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        for (boolean s : seen)
+            assertTrue(s);
+    }
+
+    @Test public void catalogOption() throws Exception {
+        File catalog = File.createTempFile("catalog", ".txt");
+        catalog.deleteOnExit();
+        PrintWriter out = new PrintWriter(new FileWriter(catalog));
+        out.println("people (id int, name string) slotted");
+        out.println("ids (id int)");
+        out.close();
+        Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+        Catalog c = Database.getCatalog();
+        assertTrue(((HeapFile) c.getDatabaseFile(c.getTableId("people"))).isSlotted());
+        assertFalse(((HeapFile) c.getDatabaseFile(c.getTableId("ids"))).isSlotted());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedHeapPageTest.class);
+    }
+}
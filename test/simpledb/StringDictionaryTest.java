@@ -0,0 +1,78 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class StringDictionaryTest extends SimpleDbTestBase {
+    private File file;
+    private StringDictionary dict;
+
+    @Before public void createFile() throws Exception {
+        file = File.createTempFile("dictionary", ".dict");
+        file.deleteOnExit();
+        dict = new StringDictionary(file);
+    }
+
+    @Test public void codesAreStable() throws Exception {
+        assertEquals(0, dict.encode("open"));
+        assertEquals(1, dict.encode("closed"));
+        assertEquals(0, dict.encode("open"));
+        assertEquals(2, dict.size());
+        assertEquals("closed", dict.field(1).getValue());
+        assertSame(dict.field(1), dict.field("closed"));
+        dict.close();
+
+        // the table is read back from its file
+        StringDictionary again = new StringDictionary(file);
+        assertEquals(2, again.size());
+        assertEquals(1, again.encode("closed"));
+        assertEquals(2, again.encode("pending"));
+        assertEquals("open", again.field(0).getValue());
+    }
+
+    @Test public void fieldsCompareByCode() throws Exception {
+        dict.encode("red");
+        dict.encode("blue");
+        DictionaryField red = dict.field(0);
+        assertTrue(red.equals(dict.field("red")));
+        assertFalse(red.equals(dict.field(1)));
+        assertTrue(red.compare(Predicate.Op.EQUALS, dict.field("red")));
+        assertTrue(red.compare(Predicate.Op.NOT_EQUALS, dict.field("blue")));
+        assertTrue(red.compare(Predicate.Op.GREATER_THAN, dict.field("blue")));
+
+        // a string that is in no row equals none of them
+        DictionaryField green = dict.field("green");
+        assertEquals(-1, green.getCode());
+        assertFalse(red.equals(green));
+        assertTrue(green.equals(dict.field("green")));
+        assertFalse(green.equals(dict.field("grey")));
+    }
+
+    @Test public void mixesWithStringFields() throws Exception {
+        dict.encode("red");
+        StringField plain = new StringField("red", Type.STRING_LEN);
+        assertTrue(dict.field(0).equals(plain));
+        assertTrue(plain.equals(dict.field(0)));
+        assertEquals(plain.hashCode(), dict.field(0).hashCode());
+
+        HashMap<Field, Integer> map = new HashMap<Field, Integer>();
+        map.put(plain, 1);
+        assertEquals(1, (int) map.get(dict.field(0)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(StringDictionaryTest.class);
+    }
+}
@@ -208,6 +208,10 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public Page createPage(PageId id, byte[] data) {
+            throw new RuntimeException("not implemented");
+        }
+
         public int numPages() {
             throw new RuntimeException("not implemented");
         }
@@ -216,6 +220,9 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public void close() {
+        }
+
         public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
             throw new RuntimeException("not implemented");
@@ -0,0 +1,174 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ZoneMapTest extends SimpleDbTestBase {
+    private static final int PAGES = 20;
+    private static final int ROWS = 504 * PAGES;
+    private HeapFile hf;
+
+    /** A table whose first field is its row number, so pages hold ranges */
+    @Before public void createTable() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < ROWS; i++)
+            tuples.add(new ArrayList<Integer>(Arrays.asList(i, i % 7)));
+        File f = File.createTempFile("zonemap", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".zm").deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        hf = Utility.openHeapFile(2, "field", f);
+    }
+
+    private int scan(DbFileIterator it) throws Exception {
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    private ArrayList<Predicate> greaterThan(int v) {
+        ArrayList<Predicate> preds = new ArrayList<Predicate>();
+        preds.add(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(v)));
+        return preds;
+    }
+
+    @Test public void skipsPagesOutOfRange() throws Exception {
+        // without a stored map, opening it reads the ranges of the pages
+        assertFalse(new File(hf.getFile().getPath() + ".zm").exists());
+        assertFalse(hf.zoneMap().mayMatch(0, greaterThan(ROWS - 10).get(0)));
+
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        // only the last page is read, and all of its tuples are returned
+        assertEquals(504, scan(hf.iterator(tid, greaterThan(ROWS - 10))));
+        for (int i = 0; i < PAGES - 1; i++)
+            assertFalse(bp.isCached(new HeapPageId(hf.getId(), i)));
+        bp.transactionComplete(tid);
+    }
+
+    @Test public void mapIsStored() throws Exception {
+        TransactionId tid = new TransactionId();
+        scan(hf.iterator(tid));
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getCatalog().clear();
+
+        HeapFile reopened = new HeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+        ZoneMap zm = reopened.zoneMap();
+        assertFalse(zm.mayMatch(0, new Predicate(0, Predicate.Op.EQUALS, new IntField(504))));
+        assertTrue(zm.mayMatch(1, new Predicate(0, Predicate.Op.EQUALS, new IntField(504))));
+        assertTrue(zm.mayMatch(1, new Predicate(1, Predicate.Op.LESS_THAN_OR_EQ, new IntField(0))));
+        assertFalse(zm.mayMatch(1, new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(6))));
+    }
+
+    @Test public void mapOfOldFileIsNotUsed() throws Exception {
+        assertFalse(hf.zoneMap().mayMatch(0, greaterThan(ROWS - 10).get(0)));
+        Database.getCatalog().clear();
+        File side = new File(hf.getFile().getPath() + ".zm");
+        assertTrue(side.exists());
+
+        // the same file with the rows backwards, written behind the map
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < ROWS; i++)
+            tuples.add(new ArrayList<Integer>(Arrays.asList(ROWS - 1 - i, i % 7)));
+        File backwards = File.createTempFile("backwards", ".dat");
+        backwards.deleteOnExit();
+        HeapFileEncoder.convert(tuples, backwards, BufferPool.getPageSize(), 2);
+        Thread.sleep(10);
+        Files.copy(backwards.toPath(), hf.getFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        HeapFile reopened = new HeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+        assertTrue(reopened.zoneMap().mayMatch(0, greaterThan(ROWS - 10).get(0)));
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = reopened.iterator(tid, greaterThan(ROWS - 10));
+        it.open();
+        int max = Integer.MIN_VALUE;
+        while (it.hasNext())
+            max = Math.max(max, ((IntField) it.next().getField(0)).getValue());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(ROWS - 1, max);
+
+        // the encoder drops the maps of the file it replaces
+        Database.getCatalog().clear();
+        assertTrue(side.exists());
+        HeapFileEncoder.convert(tuples, hf.getFile(), BufferPool.getPageSize(), 2);
+        assertFalse(side.exists());
+    }
+
+    @Test public void insertWidensRange() throws Exception {
+        TransactionId tid = new TransactionId();
+        scan(hf.iterator(tid));
+        Tuple t = Utility.getHeapTuple(new int[] { -5, 100 });
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        int pgNo = t.getRecordId().getPageId().getPageNumber();
+
+        // the new tuple is found before its page is written
+        ArrayList<Predicate> negative = new ArrayList<Predicate>();
+        negative.add(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(0)));
+        assertTrue(hf.zoneMap().mayMatch(pgNo, negative.get(0)));
+        assertTrue(scan(hf.iterator(tid, negative)) > 0);
+        Database.getBufferPool().transactionComplete(tid);
+
+        // deleting it does not narrow the stored range
+        tid = new TransactionId();
+        Database.getBufferPool().deleteTuple(tid, t);
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(hf.zoneMap().mayMatch(pgNo, negative.get(0)));
+    }
+
+    @Test public void queryPushesFilterIntoScan() throws Exception {
+        TransactionId tid = new TransactionId();
+        scan(hf.iterator(tid));
+        Database.getBufferPool().transactionComplete(tid);
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        String name = Database.getCatalog().getTableName(hf.getId());
+        stats.put(name, new TableStats(hf.getId(), 1));
+
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addProjectField("t.field0", null);
+        lp.addFilter("t.field0", Predicate.Op.GREATER_THAN_OR_EQ, "" + (ROWS - 3));
+        lp.addFilter("t.field1", Predicate.Op.NOT_EQUALS, "100");
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        plan.open();
+        int count = 0;
+        while (plan.hasNext()) {
+            assertTrue(((IntField) plan.next().getField(0)).getValue() >= ROWS - 3);
+            count++;
+        }
+        plan.close();
+        assertEquals(3, count);
+        assertFalse(bp.isCached(new HeapPageId(hf.getId(), 0)));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ZoneMapTest.class);
+    }
+}
@@ -0,0 +1,211 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+/**
+ * Stress test for readers running alongside inserts and deletes that split
+ * and merge pages of a B+ tree.
+ */
+public class BTreeConcurrencyTest extends SimpleDbTestBase {
+    private static final int STABLE_TUPLES = 4000;
+    private static final int RUN_MILLIS = 4000;
+
+    private volatile boolean stop;
+    private BTreeFile bf;
+    /** Tuples that are never deleted, so readers must always find them */
+    private ArrayList<ArrayList<Integer>> stable = new ArrayList<ArrayList<Integer>>();
+    /** Committed inserts not deleted yet */
+    private final LinkedBlockingQueue<ArrayList<Integer>> inserted = new LinkedBlockingQueue<ArrayList<Integer>>();
+    private final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    private final AtomicInteger lookups = new AtomicInteger();
+    private final AtomicInteger deleted = new AtomicInteger();
+
+    @After
+    public void tearDown() throws Exception {
+        BufferPool.resetPageSize();
+        Database.reset();
+    }
+
+    /** Runs body in a transaction until stop, retrying after aborts */
+    private abstract class Worker extends Thread {
+        final Random r;
+
+        Worker(int seed) {
+            r = new Random(seed);
+        }
+
+        abstract void body(TransactionId tid) throws Exception;
+
+        /** Called after the transaction of body committed */
+        void committed() {
+        }
+
+        /** Called after the transaction of body was aborted */
+        void aborted() {
+        }
+
+        public void run() {
+            try {
+                while (!stop) {
+                    TransactionId tid = new TransactionId();
+                    try {
+                        body(tid);
+                        Database.getBufferPool().transactionComplete(tid);
+                        committed();
+                    } catch (TransactionAbortedException e) {
+                        Database.getBufferPool().transactionComplete(tid, false);
+                        aborted();
+                    }
+                }
+            } catch (Throwable e) {
+                errors.add(e);
+            }
+        }
+    }
+
+    private class Inserter extends Worker {
+        ArrayList<ArrayList<Integer>> pending = new ArrayList<ArrayList<Integer>>();
+
+        Inserter(int seed) {
+            super(seed);
+        }
+
+        void body(TransactionId tid) throws Exception {
+            pending.clear();
+            for (int i = 0; i < 5; i++) {
+                int[] data = new int[] { r.nextInt(BTreeUtility.MAX_RAND_VALUE), r.nextInt() };
+                Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(data));
+                pending.add(BTreeUtility.tupleToList(BTreeUtility.getBTreeTuple(data)));
+            }
+        }
+
+        void committed() {
+            inserted.addAll(pending);
+        }
+    }
+
+    private class Deleter extends Worker {
+        ArrayList<Integer> tuple;
+
+        Deleter(int seed) {
+            super(seed);
+        }
+
+        void body(TransactionId tid) throws Exception {
+            tuple = inserted.poll(10, TimeUnit.MILLISECONDS);
+            if (tuple == null)
+                return;
+            DbFileIterator it = bf.indexIterator(tid,
+                    new IndexPredicate(Op.EQUALS, new IntField(tuple.get(0))));
+            it.open();
+            Tuple victim = null;
+            while (it.hasNext() && victim == null) {
+                Tuple t = it.next();
+                if (BTreeUtility.tupleToList(t).equals(tuple))
+                    victim = t;
+            }
+            it.close();
+            assertNotNull("committed insert not found " + tuple, victim);
+            Database.getBufferPool().deleteTuple(tid, victim);
+        }
+
+        void committed() {
+            if (tuple != null)
+                deleted.incrementAndGet();
+            tuple = null;
+        }
+
+        void aborted() {
+            if (tuple != null)
+                inserted.add(tuple);
+            tuple = null;
+        }
+    }
+
+    private class Reader extends Worker {
+        Reader(int seed) {
+            super(seed);
+        }
+
+        void body(TransactionId tid) throws Exception {
+            ArrayList<Integer> tuple = stable.get(r.nextInt(stable.size()));
+            IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(tuple.get(0)));
+            DbFileIterator it = bf.indexIterator(tid, ipred);
+            it.open();
+            boolean found = false;
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                assertEquals(tuple.get(0), BTreeUtility.tupleToList(t).get(0));
+                found |= BTreeUtility.tupleToList(t).equals(tuple);
+            }
+            it.close();
+            assertTrue("stable tuple not found " + tuple, found);
+            lookups.incrementAndGet();
+        }
+    }
+
+    /**
+     * Readers, inserters and deleters run at once on a small-page tree; every
+     * lookup must find its tuple and the tree must be consistent afterwards.
+     */
+    @Test public void readersDuringSplitsAndMerges() throws Exception {
+        BufferPool.setPageSize(1024);
+        bf = BTreeUtility.createRandomBTreeFile(2, STABLE_TUPLES, null, stable, 0);
+        Database.resetBufferPool(1000);
+
+        ArrayList<Worker> workers = new ArrayList<Worker>();
+        for (int i = 0; i < 2; i++)
+            workers.add(new Inserter(i));
+        workers.add(new Deleter(10));
+        for (int i = 0; i < 4; i++)
+            workers.add(new Reader(20 + i));
+        for (Worker w : workers)
+            w.start();
+        Thread.sleep(RUN_MILLIS);
+        stop = true;
+        for (Worker w : workers)
+            w.join();
+        for (Throwable e : errors)
+            e.printStackTrace();
+        assertTrue(errors.isEmpty());
+        assertTrue(lookups.get() > 0);
+        assertTrue(deleted.get() > 0);
+
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        int count = 0;
+        Field prev = null;
+        while (it.hasNext()) {
+            Field key = it.next().getField(bf.keyField());
+            if (prev != null)
+                assertTrue(key.compare(Op.GREATER_THAN_OR_EQ, prev));
+            prev = key;
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(STABLE_TUPLES + inserted.size(), count);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeConcurrencyTest.class);
+    }
+}
@@ -0,0 +1,169 @@
+package simpledb.systemtest;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test bulk loads into HeapFiles, their logging, aborts, and recovery.
+ */
+public class BulkLoadTest extends SimpleDbTestBase {
+    File file;
+    HeapFile hf;
+
+    @Before public void setup() throws IOException {
+        Database.reset();
+        file = File.createTempFile("bulk", ".dat");
+        file.deleteOnExit();
+        new File(file.getPath() + ".fsm").deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    private OpIterator rows(int from, int count) {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = from; i < from + count; i++)
+            tuples.add(Utility.getHeapTuple(new int[] { i, -i }));
+        return new TupleIterator(Utility.getTupleDesc(2), tuples);
+    }
+
+    private int load(Transaction t, int from, int count) throws Exception {
+        BulkInsert load = new BulkInsert(t.getId(), rows(from, count), hf.getId());
+        load.open();
+        int loaded = ((IntField) load.next().getField(0)).getValue();
+        assertFalse(load.hasNext());
+        load.close();
+        return loaded;
+    }
+
+    private int count(HeapFile f) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), f.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            Tuple tu = scan.next();
+            assertEquals(-((IntField) tu.getField(0)).getValue(),
+                         ((IntField) tu.getField(1)).getValue());
+            count++;
+        }
+        scan.close();
+        t.commit();
+        return count;
+    }
+
+    @Test public void loadAppendsPages() throws Exception {
+        int tuples = 504 * 300 + 7;
+        Transaction t = new Transaction();
+        t.start();
+        int records = Database.getLogFile().getTotalRecords();
+        assertEquals(tuples, load(t, 0, tuples));
+        // one allocation record per batch of pages, no page images
+        assertEquals(2, Database.getLogFile().getTotalRecords() - records);
+        // the new pages are not read into the buffer pool
+        assertFalse(Database.getBufferPool().isCached(new HeapPageId(hf.getId(), 5)));
+        t.commit();
+
+        // the empty first page stays, the load starts on a new page
+        assertEquals(1 + 301, hf.numPages());
+        assertEquals(tuples, count(hf));
+    }
+
+    @Test public void abortEmptiesPages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        load(t, 0, 504 * 10);
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        load(t, 10000, 504 * 3);
+        t.abort();
+        assertEquals(504 * 10, count(hf));
+    }
+
+    @Test public void recoveryUndoesUncommittedLoad() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        load(t1, 0, 504 * 5);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        load(t2, 10000, 504 * 5 - 3);
+        // also insert through the buffer pool, maybe into the last page of
+        // the load, and steal the page
+        Database.getBufferPool().insertTuple(t2.getId(), hf.getId(),
+                Utility.getHeapTuple(new int[] { 20000, -20000 }));
+        Database.getBufferPool().flushAllPages();
+
+        // crash
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(504 * 5, count(hf));
+    }
+
+    @Test public void waitForPageLockLeavesFileFree() throws Exception {
+        // another transaction holds the lock of the first page to append
+        TransactionId other = new TransactionId();
+        assertNull(Database.getBufferPool().getPage(other,
+                new HeapPageId(hf.getId(), hf.numPages()), Permissions.READ_WRITE));
+
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread loader = new Thread() {
+            public void run() {
+                try {
+                    Transaction t = new Transaction();
+                    t.start();
+                    load(t, 0, 1000);
+                    t.commit();
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        };
+        loader.start();
+        Thread.sleep(200);
+
+        // while the load waits, the file's monitor is free
+        Thread probe = new Thread() {
+            public void run() {
+                try {
+                    hf.freeSpace();
+                } catch (IOException e) {
+                    errors.add(e);
+                }
+            }
+        };
+        probe.start();
+        probe.join(300);
+        assertFalse(probe.isAlive());
+
+        Database.getBufferPool().transactionComplete(other);
+        loader.join(10000);
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(1000, count(hf));
+    }
+
+    @Test public void copyStatement() throws Exception {
+        File data = File.createTempFile("bulk", ".txt");
+        data.deleteOnExit();
+        PrintWriter out = new PrintWriter(new FileWriter(data));
+        for (int i = 0; i < 2000; i++)
+            out.println(i + "|" + (-i));
+        out.close();
+
+        Database.getCatalog().addTable(hf, "copied");
+        Parser p = new Parser();
+        p.processNextStatement("COPY copied FROM '" + data.getAbsolutePath()
+                + "' DELIMITER '|';");
+        assertEquals(2000, count(hf));
+    }
+}
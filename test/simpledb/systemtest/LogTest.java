@@ -427,6 +427,86 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestNoForceCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // NO-FORCE: T1 inserts and commits, its page is not written
+        // T2 inserts but does not commit
+        // crash
+        // recovery redoes T1 from the log, T2 data should not be there
+
+        Database.getBufferPool().setForceOnCommit(false);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        t1.commit();
+
+        Iterator<Tuple> it = ((HeapPage)hf1.readPage(new HeapPageId(hf1.getId(), 0))).iterator();
+        while (it.hasNext()) {
+            assertTrue(((IntField)it.next().getField(0)).getValue() != 3);
+        }
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 4, 0);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, false);
+        t.commit();
+    }
+
+    @Test public void TestNoForceAbortKeepsCommitted()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // NO-FORCE: T1 inserts and commits, its page is not written
+        // T2 only reads the page and aborts, T3 changes it and aborts
+        // T1's row must still be there, also after a crash
+
+        Database.getBufferPool().setForceOnCommit(false);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        look(hf1, t2, 3, true);
+        t2.abort();
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        insertRow(hf1, t3, 4, 0);
+        t3.abort();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, false);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, false);
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);
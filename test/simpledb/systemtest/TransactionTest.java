@@ -233,7 +233,7 @@ public class TransactionTest extends SimpleDbTestBase {
         // assertEquals(1, 1);
     }
 
-    @Test public void testAllDirtyFails()
+    @Test public void testAllDirtyIsStolen()
             throws IOException, DbException, TransactionAbortedException {
         // Allocate a file with ~10 pages of data
         HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
@@ -246,12 +246,16 @@ public class TransactionTest extends SimpleDbTestBase {
         // Insert a new row
         EvictionTest.insertRow(f, t);
 
-        // Scanning the table must fail because it can't evict the dirty page
-        try {
-            EvictionTest.findMagicTuple(f, t);
-            fail("Expected scan to run out of available buffer pages");
-        } catch (DbException e) {}
-        t.commit();
+        // The dirty page is logged and written out to make room for the
+        // scan, which then reads the new row back from disk
+        assertTrue(EvictionTest.findMagicTuple(f, t));
+        t.abort();
+
+        // Aborting undoes the stolen page on disk
+        Transaction t2 = new Transaction();
+        t2.start();
+        assertFalse(EvictionTest.findMagicTuple(f, t2));
+        t2.commit();
     }
 
     /** Make test compatible with older version of ant. */